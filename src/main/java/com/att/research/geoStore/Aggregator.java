@@ -1,18 +1,13 @@
 package com.att.research.geoStore;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 
 /**
@@ -37,6 +32,8 @@ public class Aggregator extends MapRedJob {
    *
    * @param dateToProcess   an dates string in yyyy/MM/dd format, for which to look
    *                        for data in the raw records of
+   * @param numReducers     number of reduce tasks; if not positive, the number is
+   *                        sized from the input bytes, see MapRedJob.BYTES_PER_REDUCER_KEY
    * @throws IOException
    */
   public Aggregator(String inputPath, String outputPath,
@@ -49,21 +46,36 @@ public class Aggregator extends MapRedJob {
 
     createHadoopConfig(true);
 
-    initHadoopJob(AggregatorMap.class, null, AggregatorReduce.class, TextInputFormat.class, numReducers);
-    setMapOutClasses(Text.class, Text.class);
+    initHadoopJob(AggregatorMap.class, null, AggregatorReduce.class, TextInputFormat.class,
+                  (numReducers > 0) ? numReducers : -1);
+    // A count given by the caller is kept as it is
+    sizeReducers = (numReducers <= 0);
+    setMapOutClasses(ImsiRecordKey.class, NullWritable.class);
     setOutputClasses(Text.class, Text.class);
-    job.setPartitionerClass(MyHashPartitioner.class);
+    job.setPartitionerClass(SkewPartitioner.class);
+    job.setGroupingComparatorClass(ImsiGroupingComparator.class);
 
-    Path pAll = new Path(inputPath);
-    FileInputFormat.addInputPath(job, pAll);
+    attachInputGlob(inputPath);
+  }
+
+  /**
+   * Samples the input to partition heavy entities.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Override
+  protected boolean prepare() throws IOException, InterruptedException {
+    resolveInputPaths();
+    SkewPartitioner.configure(job, new AggregatorSampler());
+    return true;
   }
 }
 
 class AggregatorMap extends
- Mapper<LongWritable, Text, Text, Text> {
+ Mapper<LongWritable, Text, ImsiRecordKey, NullWritable> {
 
-  Text keyout = new Text();
-  Text valout = new Text();
+  ImsiRecordKey keyout = new ImsiRecordKey();
 
   @Override
   protected void setup(Context context) throws IOException,
@@ -77,42 +89,45 @@ class AggregatorMap extends
 
     String[] vals = value.toString().split("\\|", 2);
     if (vals.length == 2) {
-      keyout.set(vals[0]);
-      valout.set(vals[1]);
-      context.write(keyout, valout);
+      keyout.set(vals[0], vals[1]);
+      context.write(keyout, NullWritable.get());
     }
   }
 }
 
 class AggregatorReduce extends
- Reducer<Text, Text, Text, Text> {
+ Reducer<ImsiRecordKey, NullWritable, Text, Text> {
 
+  Text prevElem = new Text();
+  long nrecords = 0;
+
+  // Records arrive sorted, so duplicates are adjacent and only the
+  // previous one needs to be kept to remove them
   @Override
-  protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-    List<Text> sortedList = new ArrayList<Text>();
-    for (Text t : values) {
-        sortedList.add(new Text(t));
-    }
-    Collections.sort(sortedList);
-    Text thisElem = new Text("");
-    Text prevElem = new Text("");
-    for (int i = 0; i < sortedList.size(); i++ ) {
-      thisElem = sortedList.get(i);
-      if (!thisElem.equals(prevElem)) context.write(key, thisElem);
-      prevElem = thisElem;
-      //context.write(key, sortedList.get(i));
+  protected void reduce(ImsiRecordKey key, Iterable<NullWritable> values, Context context)
+      throws IOException, InterruptedException {
+    prevElem.set("");
+    for (NullWritable v : values) {
+      Text thisElem = key.getRecord();
+      if (!thisElem.equals(prevElem)) context.write(key.getImsi(), thisElem);
+      prevElem.set(thisElem);
+      nrecords++;
     }
   }
-}
-
-class MyHashPartitioner extends Partitioner<Text, Text> {
 
   @Override
-  public int getPartition(Text key, Text value, int numReduceTasks) {
-    // The 5843 is just a randomly choosen large integer to make sure
-    // the resulting partitioner evenly distributes the load.
-    return ((key.hashCode() & Integer.MAX_VALUE) / 5843) % numReduceTasks;
+  protected void cleanup(Context context) throws IOException, InterruptedException {
+    SkewPartitioner.countLoad(context, nrecords);
   }
-
 }
 
+class AggregatorSampler implements SkewPartitioner.Sampler {
+
+  // Gives the same key as AggregatorMap
+  public boolean sample(Object key, Object value, ImsiRecordKey out) {
+    String[] vals = value.toString().split("\\|", 2);
+    if (vals.length != 2) return false;
+    out.set(vals[0], vals[1]);
+    return true;
+  }
+}
@@ -0,0 +1,251 @@
+package com.att.research.geoStore;
+
+/**
+ * Static methods for the binary form of the values of the geohash and
+ * entity tables, an alternative to the pipe-delimited text written by
+ * CompactLocationRecord.createHbaseValue. A value is
+ *
+ *   type flags [dur] [subtype] [lat] [lon]
+ *
+ * where type is one byte, the ordinal of the location type with the high
+ * bit set; flags is one byte marking which of the other fields are
+ * present; dur and subtype are zigzag varints; and lat and lon are
+ * big-endian ints, in units of 1e-7 degrees (about 1cm). A typical value
+ * is 12 bytes, against about 40 for the text.
+ *
+ * Text values always start with an ASCII digit, so the two forms can be
+ * told apart by the first byte, and the readers below accept either; a
+ * table may hold a mix of both while it is being migrated. The readers
+ * work on a region of a byte array, such as the value of a Cell, without
+ * copying it.
+ *
+ * @author Taylor Arnold
+ * @see HBaseLoader
+ * @see GeoBoxFilter
+ * @since 0.9
+ */
+public final class CellValueCodec {
+
+  /** returned by the integer readers when a field is missing */
+  public static final int MISSING = Integer.MIN_VALUE;
+
+  /** latitude and longitude are stored as ints of this many units per degree */
+  public static final double SCALE = 1e7;
+
+  static final int HAS_DUR = 1;
+  static final int HAS_SUBTYPE = 2;
+  static final int HAS_LAT = 4;
+  static final int HAS_LON = 8;
+
+  private static final int BINARY = 0x80;
+
+  private CellValueCodec() {
+  }
+
+  /**
+   * @return the binary value of a record
+   */
+  public static byte[] encode(CompactLocationRecord lr) {
+    int type = lr.isNull(CompactLocationRecord.TYPE) ? MISSING : lr.getTypeCode();
+    return encode(type,
+                  lr.isNull(CompactLocationRecord.DUR) ? MISSING : lr.getInt(CompactLocationRecord.DUR),
+                  lr.isNull(CompactLocationRecord.SUBTYPE) ? MISSING : lr.getInt(CompactLocationRecord.SUBTYPE),
+                  lr.isNull(CompactLocationRecord.LAT) ? Double.NaN : lr.getLat(),
+                  lr.isNull(CompactLocationRecord.LON) ? Double.NaN : lr.getLon());
+  }
+
+  /**
+   * Builds a binary value from its fields.
+   *
+   * @param  type     ordinal of the location type, below 128; MISSING for unknown
+   * @param  dur      duration, or MISSING
+   * @param  subtype  location subtype, or MISSING
+   * @param  lat      latitude, or NaN
+   * @param  lon      longitude, or NaN
+   * @return the value
+   */
+  public static byte[] encode(int type, int dur, int subtype, double lat, double lon) {
+    byte[] buf = new byte[2 + 5 + 5 + 4 + 4];
+    int flags = 0;
+    int pos = 2;
+    if (dur != MISSING) {
+      flags |= HAS_DUR;
+      pos = putVarint(buf, pos, dur);
+    }
+    if (subtype != MISSING) {
+      flags |= HAS_SUBTYPE;
+      pos = putVarint(buf, pos, subtype);
+    }
+    if (!Double.isNaN(lat)) {
+      flags |= HAS_LAT;
+      pos = putInt(buf, pos, (int) Math.round(lat * SCALE));
+    }
+    if (!Double.isNaN(lon)) {
+      flags |= HAS_LON;
+      pos = putInt(buf, pos, (int) Math.round(lon * SCALE));
+    }
+    if (type == MISSING) type = LocationType.UNKNOWN.ordinal();
+    buf[0] = (byte) (BINARY | type);
+    buf[1] = (byte) flags;
+
+    byte[] out = new byte[pos];
+    System.arraycopy(buf, 0, out, 0, pos);
+    return out;
+  }
+
+  /**
+   * @return whether a value is in the binary form
+   */
+  public static boolean isBinary(byte[] b, int off, int len) {
+    return len >= 2 && (b[off] & BINARY) != 0;
+  }
+
+  /**
+   * @return the ordinal of the location type, or MISSING
+   */
+  public static int getType(byte[] b, int off, int len) {
+    if (isBinary(b, off, len)) return b[off] & ~BINARY & 0xff;
+    return textInt(b, off, len, 0);
+  }
+
+  /**
+   * @return the duration, or MISSING
+   */
+  public static int getDur(byte[] b, int off, int len) {
+    if (!isBinary(b, off, len)) return textInt(b, off, len, 1);
+    if ((b[off + 1] & HAS_DUR) == 0) return MISSING;
+    return getVarint(b, off + 2);
+  }
+
+  /**
+   * @return the location subtype, or MISSING
+   */
+  public static int getSubtype(byte[] b, int off, int len) {
+    if (!isBinary(b, off, len)) return textInt(b, off, len, 2);
+    int flags = b[off + 1];
+    if ((flags & HAS_SUBTYPE) == 0) return MISSING;
+    int pos = off + 2;
+    if ((flags & HAS_DUR) != 0) pos = skipVarint(b, pos);
+    return getVarint(b, pos);
+  }
+
+  /**
+   * @return the latitude, or NaN if missing
+   */
+  public static double getLat(byte[] b, int off, int len) {
+    if (!isBinary(b, off, len)) return textField(b, off, len, 3);
+    if ((b[off + 1] & HAS_LAT) == 0) return Double.NaN;
+    return getInt(b, positionOffset(b, off)) / SCALE;
+  }
+
+  /**
+   * @return the longitude, or NaN if missing
+   */
+  public static double getLon(byte[] b, int off, int len) {
+    if (!isBinary(b, off, len)) return textField(b, off, len, 4);
+    int flags = b[off + 1];
+    if ((flags & HAS_LON) == 0) return Double.NaN;
+    int pos = positionOffset(b, off);
+    if ((flags & HAS_LAT) != 0) pos += 4;
+    return getInt(b, pos) / SCALE;
+  }
+
+  /**
+   * @return the value in the text form written by createHbaseValue
+   */
+  public static String toText(byte[] b, int off, int len) {
+    if (!isBinary(b, off, len)) return new String(b, off, len);
+    StringBuilder sb = new StringBuilder(48);
+    sb.append(getType(b, off, len)).append('|');
+    int dur = getDur(b, off, len);
+    if (dur != MISSING) sb.append(dur);
+    sb.append('|');
+    int subtype = getSubtype(b, off, len);
+    if (subtype != MISSING) sb.append(subtype);
+    sb.append('|');
+    double lat = getLat(b, off, len);
+    if (!Double.isNaN(lat)) sb.append(Double.toString(lat));
+    sb.append('|');
+    double lon = getLon(b, off, len);
+    if (!Double.isNaN(lon)) sb.append(Double.toString(lon));
+    return sb.toString();
+  }
+
+  /**
+   * Reads a numeric field of a pipe-delimited value.
+   *
+   * @return the value of the field, or NaN if it is missing or empty
+   */
+  static double textField(byte[] b, int off, int len, int index) {
+    int end = off + len;
+    int start = off;
+    for (int k = 0; k < index; k++) {
+      while (start < end && b[start] != '|') start++;
+      if (start >= end) return Double.NaN;
+      start++;
+    }
+    int stop = start;
+    while (stop < end && b[stop] != '|') stop++;
+    if (stop == start) return Double.NaN;
+    try {
+      return Double.parseDouble(new String(b, start, stop - start));
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  private static int textInt(byte[] b, int off, int len, int index) {
+    double v = textField(b, off, len, index);
+    return Double.isNaN(v) ? MISSING : (int) v;
+  }
+
+  // Start of the latitude, or of the longitude when there is no latitude
+  private static int positionOffset(byte[] b, int off) {
+    int flags = b[off + 1];
+    int pos = off + 2;
+    if ((flags & HAS_DUR) != 0) pos = skipVarint(b, pos);
+    if ((flags & HAS_SUBTYPE) != 0) pos = skipVarint(b, pos);
+    return pos;
+  }
+
+  private static int putVarint(byte[] b, int pos, int v) {
+    int z = (v << 1) ^ (v >> 31);
+    while ((z & ~0x7f) != 0) {
+      b[pos++] = (byte) ((z & 0x7f) | 0x80);
+      z >>>= 7;
+    }
+    b[pos++] = (byte) z;
+    return pos;
+  }
+
+  private static int getVarint(byte[] b, int pos) {
+    int z = 0;
+    int shift = 0;
+    byte x;
+    do {
+      x = b[pos++];
+      z |= (x & 0x7f) << shift;
+      shift += 7;
+    } while ((x & 0x80) != 0);
+    return (z >>> 1) ^ -(z & 1);
+  }
+
+  private static int skipVarint(byte[] b, int pos) {
+    while ((b[pos] & 0x80) != 0) pos++;
+    return pos + 1;
+  }
+
+  private static int putInt(byte[] b, int pos, int v) {
+    b[pos] = (byte) (v >>> 24);
+    b[pos + 1] = (byte) (v >>> 16);
+    b[pos + 2] = (byte) (v >>> 8);
+    b[pos + 3] = (byte) v;
+    return pos + 4;
+  }
+
+  private static int getInt(byte[] b, int pos) {
+    return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) |
+           ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+  }
+
+}
@@ -0,0 +1,175 @@
+package com.att.research.geoStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * A class for comparing compression codecs on a sample of a day's parsed
+ * records, to help choose the values of MapRedJob.MAP_CODEC_KEY and
+ * MapRedJob.OUTPUT_CODEC_KEY. A prefix of the files under
+ * /projects/locstore/raw/dt is read into memory and, for each codec,
+ * written compressed to a temporary HDFS file and read back again.
+ *
+ * For each codec the report gives the compression ratio, compression and
+ * decompression throughput in MB per second, and the number of input
+ * splits a following job would see for the whole day: one per block for
+ * a splittable codec, and otherwise one per file.
+ *
+ * @author Taylor Arnold
+ * @see MapRedJob
+ * @since 0.9
+ */
+public class CodecBenchmark {
+
+  /** configuration key for the number of uncompressed bytes to sample */
+  public static final String SAMPLE_BYTES_KEY = "locstore.codec.benchmark.bytes";
+
+  /** codecs compared when none are given */
+  public static final String[] DEFAULT_CODECS = new String[] {
+    "org.apache.hadoop.io.compress.DefaultCodec",
+    "org.apache.hadoop.io.compress.GzipCodec",
+    "org.apache.hadoop.io.compress.BZip2Codec",
+    "org.apache.hadoop.io.compress.SnappyCodec",
+    "org.apache.hadoop.io.compress.Lz4Codec"};
+
+  String dt;
+  Configuration conf;
+  FileSystem fs;
+
+  /**
+   * Constructs a CodecBenchmark instance for a single day of raw records.
+   *
+   * @param dateToProcess  date in yyyy/MM/dd format, which must already be parsed
+   * @param conf_input     Configuration object, should have been parsed by GenericOptionsParser
+   * @throws IOException
+   */
+  public CodecBenchmark(String dateToProcess, Configuration conf_input) throws IOException {
+    dt = dateToProcess;
+    conf = conf_input;
+    fs = FileSystem.get(conf);
+  }
+
+  /**
+   * Runs the benchmark, returning one line per codec of the form
+   * codec|ratio|compressMBs|decompressMBs|splits. Codecs which cannot be
+   * loaded (for example, when the native libraries are missing) are
+   * reported with the message of the exception in place of the numbers.
+   *
+   * @param  codecNames  class names of the codecs to compare
+   * @return the report lines, in the same order as codecNames
+   * @throws IOException
+   */
+  public List<String> run(String[] codecNames) throws IOException {
+    FileStatus[] files = fs.globStatus(new Path("/projects/locstore/raw/" + dt + "/part-*"));
+    if (files == null || files.length == 0) {
+      throw new IOException("No raw records found for " + dt + ".");
+    }
+    Arrays.sort(files);
+
+    // The sample is taken from the decompressed input, whatever its codec
+    long maxBytes = conf.getLong(SAMPLE_BYTES_KEY, 64L * 1024 * 1024);
+    CompressionCodecFactory factory = new CompressionCodecFactory(conf);
+    ByteArrayOutputStream sampleOut = new ByteArrayOutputStream();
+    long storedBytes = 0;
+    long sampledStoredBytes = 0;
+    for (int i = 0; i < files.length; i++) {
+      storedBytes += files[i].getLen();
+      if (sampleOut.size() >= maxBytes) continue;
+      CompressionCodec inCodec = factory.getCodec(files[i].getPath());
+      InputStream in = fs.open(files[i].getPath());
+      if (inCodec != null) in = inCodec.createInputStream(in);
+      try {
+        copyUpTo(in, sampleOut, maxBytes - sampleOut.size());
+      } finally {
+        in.close();
+      }
+      sampledStoredBytes += files[i].getLen();
+    }
+    byte[] sample = sampleOut.toByteArray();
+
+    // Only whole files are counted, so this overestimates slightly when the last is cut short
+    double expansion = (sampledStoredBytes > 0) ? (double) sample.length / sampledStoredBytes : 1.0;
+    double dayBytes = storedBytes * expansion;
+    long blockSize = fs.getDefaultBlockSize(new Path("/tmp"));
+
+    List<String> report = new ArrayList<String>();
+    Path tmp = new Path("/tmp/" + UUID.randomUUID().toString());
+    try {
+      for (String codecName : codecNames) {
+        try {
+          report.add(benchmark(codecName, sample, tmp, dayBytes, blockSize, files.length));
+        } catch (Exception e) {
+          report.add(codecName + "|" + e.getMessage());
+        }
+        fs.delete(tmp, true);
+      }
+    } finally {
+      fs.delete(tmp, true);
+    }
+    return report;
+  }
+
+  private String benchmark(String codecName, byte[] sample, Path tmp, double dayBytes,
+                           long blockSize, int nfiles) throws Exception {
+    CompressionCodec codec = (CompressionCodec)
+      ReflectionUtils.newInstance(conf.getClassByName(codecName), conf);
+
+    long t0 = System.nanoTime();
+    FSDataOutputStream fout = fs.create(tmp, true);
+    OutputStream out = codec.createOutputStream(fout);
+    out.write(sample);
+    out.close();
+    long t1 = System.nanoTime();
+
+    long compressedBytes = fs.getFileStatus(tmp).getLen();
+    InputStream in = codec.createInputStream(fs.open(tmp));
+    byte[] buffer = new byte[65536];
+    try {
+      while (in.read(buffer) > 0) { }
+    } finally {
+      in.close();
+    }
+    long t2 = System.nanoTime();
+
+    double ratio = (double) sample.length / Math.max(compressedBytes, 1);
+    double mb = sample.length / (1024.0 * 1024.0);
+    long splits = nfiles;
+    if (codec instanceof SplittableCompressionCodec) {
+      long dayCompressed = (long) Math.ceil(dayBytes / ratio);
+      splits = Math.max(nfiles, (dayCompressed + blockSize - 1) / blockSize);
+    }
+
+    return codecName + "|" +
+           String.format("%.2f", ratio) + "|" +
+           String.format("%.1f", mb / ((t1 - t0) / 1e9)) + "|" +
+           String.format("%.1f", mb / ((t2 - t1) / 1e9)) + "|" +
+           Long.toString(splits);
+  }
+
+  private static void copyUpTo(InputStream in, OutputStream out, long limit) throws IOException {
+    byte[] buffer = new byte[65536];
+    while (limit > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, limit));
+      if (n <= 0) break;
+      out.write(buffer, 0, n);
+      limit -= n;
+    }
+  }
+
+}
@@ -0,0 +1,380 @@
+package com.att.research.geoStore;
+
+/**
+ * A primitive backed alternative to LocationRecord. The integer attributes
+ * are held in an int array indexed by the column constants below, latitude
+ * and longitude as doubles, and the LocationType and ParseErrors values by
+ * their ordinals. Missing values are tracked in a single null bitmap rather
+ * than with boxed objects, so a record costs a fixed handful of bytes
+ * beyond its strings.
+ *
+ * Instances are mutable and meant to be recycled; a mapper should hold a
+ * single instance, call reset (or let LocationRecordParser do so) for each
+ * input line, and convert to a LocationRecord with toLocationRecord only
+ * when a caller needs the public field interface.
+ *
+ * @author Taylor Arnold
+ * @see LocationRecord
+ * @see LocationRecordParser
+ * @since 0.9
+ */
+public final class CompactLocationRecord {
+
+  /** column index for the tower sequence number */
+  public static final int SEQ = 0;
+  /** column index for the timestamp */
+  public static final int TS = 1;
+  /** column index for the duration */
+  public static final int DUR = 2;
+  /** column index for the location subtype */
+  public static final int SUBTYPE = 3;
+  /** column index for the cause for termination */
+  public static final int CFT = 4;
+  /** column index for the call type */
+  public static final int CT = 5;
+  /** column index for the accuracy */
+  public static final int ACC = 6;
+  /** column index for the use code */
+  public static final int USE = 7;
+  /** column index for the volume up */
+  public static final int VUP = 8;
+  /** column index for the volume down */
+  public static final int VDN = 9;
+  /** number of integer columns */
+  public static final int NUM_INTS = 10;
+
+  /** column index for the latitude */
+  public static final int LAT = 10;
+  /** column index for the longitude */
+  public static final int LON = 11;
+  /** column index for the location type */
+  public static final int TYPE = 12;
+  /** column index for the parse code */
+  public static final int PARSE_CODE = 13;
+
+  private static final LocationType[] LOCATION_TYPES = LocationType.values();
+  private static final ParseErrors[] PARSE_ERRORS = ParseErrors.values();
+
+  // Every column is null, other than the defaults for type and parseCode
+  private static final int DEFAULT_NULLS = ((1 << (PARSE_CODE + 1)) - 1) &
+                                           ~(1 << TYPE) & ~(1 << PARSE_CODE);
+
+  /** full (normally 15 digit) international mobile subscriber identity */
+  public String imsi = null;
+
+  /** international mobile station equipment identity */
+  public String imei = null;
+
+  /** originating telephone number */
+  public String tnOrig = null;
+
+  /** terminating telephone number (voice and text only) */
+  public String tnTerm = null;
+
+  /** value of the locate LACCID, WiFi venue ID, or (for other locates) the 10 digit geohash */
+  public String location = null;
+
+  /** a ten digit geohash as a base-32 string */
+  public String geohash = null;
+
+  private final int[] ints = new int[NUM_INTS];
+  private double lat;
+  private double lon;
+  private int type;
+  private int parseCode;
+  private int nulls;
+
+  /**
+   * Constructs an empty record; equivalent to calling reset.
+   */
+  public CompactLocationRecord() {
+    reset();
+  }
+
+  /**
+   * Returns the record to the same state as a newly constructed
+   * LocationRecord, without allocating.
+   */
+  public void reset() {
+    imsi = null;
+    imei = null;
+    tnOrig = null;
+    tnTerm = null;
+    location = null;
+    geohash = null;
+    for (int i = 0; i < NUM_INTS; i++) ints[i] = 0;
+    lat = 0;
+    lon = 0;
+    type = LocationType.UNKNOWN.ordinal();
+    parseCode = ParseErrors.UNKNOWN_ERROR.ordinal();
+    nulls = DEFAULT_NULLS;
+  }
+
+  /**
+   * @param  column  one of the column constants
+   * @return whether the value in the column is missing
+   */
+  public boolean isNull(int column) {
+    return (nulls & (1 << column)) != 0;
+  }
+
+  /**
+   * Marks the value in a column as missing.
+   *
+   * @param  column  one of the column constants
+   */
+  public void setNull(int column) {
+    nulls |= (1 << column);
+  }
+
+  /**
+   * @param  column  one of the integer column constants, SEQ through VDN
+   * @return the value of the column; 0 when isNull(column)
+   */
+  public int getInt(int column) {
+    return ints[column];
+  }
+
+  public void setInt(int column, int value) {
+    ints[column] = value;
+    nulls &= ~(1 << column);
+  }
+
+  public double getLat() {
+    return lat;
+  }
+
+  public void setLat(double value) {
+    lat = value;
+    nulls &= ~(1 << LAT);
+  }
+
+  public double getLon() {
+    return lon;
+  }
+
+  public void setLon(double value) {
+    lon = value;
+    nulls &= ~(1 << LON);
+  }
+
+  /**
+   * @return the location type, or null if missing
+   */
+  public LocationType getType() {
+    return isNull(TYPE) ? null : LOCATION_TYPES[type];
+  }
+
+  /**
+   * @return the ordinal of the location type; only valid if !isNull(TYPE)
+   */
+  public int getTypeCode() {
+    return type;
+  }
+
+  public void setType(LocationType value) {
+    if (value == null) {
+      setNull(TYPE);
+    } else {
+      type = value.ordinal();
+      nulls &= ~(1 << TYPE);
+    }
+  }
+
+  /**
+   * @return the parse code, or null if missing
+   */
+  public ParseErrors getParseCode() {
+    return isNull(PARSE_CODE) ? null : PARSE_ERRORS[parseCode];
+  }
+
+  public void setParseCode(ParseErrors value) {
+    if (value == null) {
+      setNull(PARSE_CODE);
+    } else {
+      parseCode = value.ordinal();
+      nulls &= ~(1 << PARSE_CODE);
+    }
+  }
+
+  public boolean parseErrorOkay() {
+    if (isNull(PARSE_CODE)) return false;
+    return parseCode == ParseErrors.FINISH_OKAY.ordinal() ||
+           parseCode == ParseErrors.FINISH_OKAY_NON_ATT.ordinal();
+  }
+
+  /**
+   * Copies the values of a LocationRecord into this record.
+   *
+   * @param  lr  the record to copy from
+   * @return this record, for convenience
+   */
+  public CompactLocationRecord set(LocationRecord lr) {
+    reset();
+    imsi = lr.imsi;
+    imei = lr.imei;
+    tnOrig = lr.tnOrig;
+    tnTerm = lr.tnTerm;
+    location = lr.location;
+    geohash = lr.geohash;
+    setType(lr.type);
+    setInteger(SEQ, lr.seq);
+    setInteger(TS, lr.ts);
+    setInteger(DUR, lr.dur);
+    setInteger(SUBTYPE, lr.subtype);
+    setInteger(CFT, lr.cft);
+    setInteger(CT, lr.ct);
+    setInteger(ACC, lr.acc);
+    setInteger(USE, lr.use);
+    setInteger(VUP, lr.vup);
+    setInteger(VDN, lr.vdn);
+    if (lr.lat != null) setLat(lr.lat);
+    if (lr.lon != null) setLon(lr.lon);
+    setParseCode(lr.parseCode);
+    return this;
+  }
+
+  /**
+   * Copies the values of another CompactLocationRecord into this record.
+   *
+   * @param  other  the record to copy from
+   * @return this record, for convenience
+   */
+  public CompactLocationRecord set(CompactLocationRecord other) {
+    imsi = other.imsi;
+    imei = other.imei;
+    tnOrig = other.tnOrig;
+    tnTerm = other.tnTerm;
+    location = other.location;
+    geohash = other.geohash;
+    System.arraycopy(other.ints, 0, ints, 0, NUM_INTS);
+    lat = other.lat;
+    lon = other.lon;
+    type = other.type;
+    parseCode = other.parseCode;
+    nulls = other.nulls;
+    return this;
+  }
+
+  /**
+   * Adapter to the public field interface of LocationRecord.
+   *
+   * @param  lr  the record to fill; every field will be overwritten
+   * @return the record lr, for convenience
+   */
+  public LocationRecord toLocationRecord(LocationRecord lr) {
+    lr.imsi = imsi;
+    lr.imei = imei;
+    lr.tnOrig = tnOrig;
+    lr.tnTerm = tnTerm;
+    lr.location = location;
+    lr.geohash = geohash;
+    lr.type = getType();
+    lr.seq = getInteger(SEQ);
+    lr.ts = getInteger(TS);
+    lr.dur = getInteger(DUR);
+    lr.subtype = getInteger(SUBTYPE);
+    lr.cft = getInteger(CFT);
+    lr.ct = getInteger(CT);
+    lr.acc = getInteger(ACC);
+    lr.use = getInteger(USE);
+    lr.vup = getInteger(VUP);
+    lr.vdn = getInteger(VDN);
+    lr.lat = isNull(LAT) ? null : Double.valueOf(lat);
+    lr.lon = isNull(LON) ? null : Double.valueOf(lon);
+    lr.parseCode = getParseCode();
+    return lr;
+  }
+
+  /**
+   * @return a new LocationRecord holding the values of this record
+   */
+  public LocationRecord toLocationRecord() {
+    return toLocationRecord(new LocationRecord());
+  }
+
+  /**
+   * Same output as LocationRecord.createImsiKey.
+   */
+  public String createImsiKey() {
+    return imsi != null ? imsi : "";
+  }
+
+  /**
+   * Same output as LocationRecord.createRawRecord.
+   */
+  public String createRawRecord() {
+    StringBuilder sb = new StringBuilder(160);
+    appendString(sb, imei).append('|');
+    appendString(sb, tnOrig).append('|');
+    appendString(sb, tnTerm).append('|');
+    appendString(sb, location).append('|');
+    appendString(sb, geohash).append('|');
+    sb.append(isNull(TYPE) ? null : LOCATION_TYPES[type].toString()).append('|');
+    for (int i = 0; i < NUM_INTS; i++) {
+      appendInt(sb, i).append('|');
+    }
+    appendDouble(sb, LAT, lat).append('|');
+    appendDouble(sb, LON, lon).append('|');
+    sb.append(isNull(PARSE_CODE) ? null : PARSE_ERRORS[parseCode].toString());
+    return sb.toString();
+  }
+
+  /**
+   * Same output as LocationRecord.createFlatRecord.
+   */
+  public String createFlatRecord() {
+    StringBuilder sb = new StringBuilder(96);
+    appendInt(sb, TS).append('|');
+    appendInt(sb, SEQ).append('|');
+    appendInt(sb, DUR).append('|');
+    appendString(sb, location).append('|');
+    if (!isNull(TYPE)) sb.append(type);
+    sb.append('|');
+    appendInt(sb, SUBTYPE).append('|');
+    appendInt(sb, CFT).append('|');
+    appendInt(sb, CT).append('|');
+    appendInt(sb, ACC).append('|');
+    appendInt(sb, USE).append('|');
+    appendDouble(sb, LAT, lat).append('|');
+    appendDouble(sb, LON, lon);
+    return sb.toString();
+  }
+
+  /**
+   * Same output as LocationRecord.createHbaseValue.
+   */
+  public String createHbaseValue() {
+    StringBuilder sb = new StringBuilder(48);
+    sb.append(getType().ordinal()).append('|');
+    appendInt(sb, DUR).append('|');
+    appendInt(sb, SUBTYPE).append('|');
+    appendDouble(sb, LAT, lat).append('|');
+    appendDouble(sb, LON, lon);
+    return sb.toString();
+  }
+
+  private void setInteger(int column, Integer value) {
+    if (value != null) setInt(column, value);
+  }
+
+  private Integer getInteger(int column) {
+    return isNull(column) ? null : Integer.valueOf(ints[column]);
+  }
+
+  private StringBuilder appendString(StringBuilder sb, String value) {
+    if (value != null) sb.append(value);
+    return sb;
+  }
+
+  private StringBuilder appendInt(StringBuilder sb, int column) {
+    if (!isNull(column)) sb.append(ints[column]);
+    return sb;
+  }
+
+  private StringBuilder appendDouble(StringBuilder sb, int column, double value) {
+    if (!isNull(column)) sb.append(Double.toString(value));
+    return sb;
+  }
+
+}
@@ -0,0 +1,354 @@
+package com.att.research.geoStore;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.KeyValueSerialization;
+import org.apache.hadoop.hbase.mapreduce.KeyValueSortReducer;
+import org.apache.hadoop.hbase.mapreduce.MutationSerialization;
+import org.apache.hadoop.hbase.mapreduce.ResultSerialization;
+import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+
+/**
+ * Writes HFiles for several HBase tables from a single job, so that
+ * input feeding more than one table only has to be read and parsed once.
+ * Map output keys are the row key prefixed by one byte, the index of the
+ * table in TABLES_KEY. The reducers of the job are divided between the
+ * tables, one per region as with HFileOutputFormat.configureIncrementalLoad,
+ * and the files of each table are written under output_dir/tableName, in
+ * the layout LoadIncrementalHFiles expects.
+ *
+ * Each table is written by its own HFileOutputFormat record writer and
+ * committed by its own FileOutputCommitter, with the compression, bloom
+ * filter and block settings of its column families.
+ *
+ * @author Taylor Arnold
+ * @see HBaseLoader
+ * @since 0.9
+ */
+public class DualHFileOutputFormat extends FileOutputFormat<ImmutableBytesWritable, KeyValue> {
+
+  /** configuration key for the names of the tables written, in order of their key prefix */
+  public static final String TABLES_KEY = "locstore.hbase.dual.tables";
+
+  // Per table settings are stored under this prefix followed by the table index
+  static final String TABLE_PREFIX = "locstore.hbase.dual.";
+
+  // The family settings read by HFileOutputFormat's record writer
+  static final String COMPRESSION_KEY = "hbase.hfileoutputformat.families.compression";
+  static final String BLOOM_TYPE_KEY = "hbase.hfileoutputformat.families.bloomtype";
+  static final String BLOCK_SIZE_KEY = "hbase.mapreduce.hfileoutputformat.blocksize";
+  static final String DATABLOCK_ENCODING_KEY = "hbase.mapreduce.hfileoutputformat.families.datablock.encoding";
+
+  /**
+   * Sets up a job to write HFiles for each of the given tables; the job
+   * must already have its mapper and output path.
+   *
+   * @param  job     the job to configure
+   * @param  tables  the tables, in order of their key prefix
+   * @throws IOException
+   */
+  public static void configureIncrementalLoad(Job job, HTable[] tables) throws IOException {
+    Configuration c = job.getConfiguration();
+    String[] names = new String[tables.length];
+    int nreducers = 0;
+    for (int i = 0; i < tables.length; i++) {
+      names[i] = Bytes.toString(tables[i].getTableName());
+      for (Map.Entry<String, String> e : familySettings(tables[i].getTableDescriptor()).entrySet()) {
+        c.set(TABLE_PREFIX + i + "." + e.getKey(), e.getValue());
+      }
+      byte[][] startKeys = tables[i].getStartKeys();
+      setSplits(c, i, startKeys);
+      nreducers += startKeys.length;
+    }
+    c.setStrings(TABLES_KEY, names);
+    List<String> serializations = new ArrayList<String>(c.getStringCollection("io.serializations"));
+    serializations.add(MutationSerialization.class.getName());
+    serializations.add(ResultSerialization.class.getName());
+    serializations.add(KeyValueSerialization.class.getName());
+    c.setStrings("io.serializations", serializations.toArray(new String[serializations.size()]));
+
+    job.setOutputKeyClass(ImmutableBytesWritable.class);
+    job.setOutputValueClass(KeyValue.class);
+    job.setOutputFormatClass(DualHFileOutputFormat.class);
+    job.setPartitionerClass(DualTablePartitioner.class);
+    job.setReducerClass(KeyValueSortReducer.class);
+    job.setNumReduceTasks(nreducers);
+    TableMapReduceUtil.addDependencyJars(job);
+  }
+
+  /**
+   * The per family settings HFileOutputFormat.configureIncrementalLoad
+   * would set for a table, in the same form: for each setting, the
+   * URL-encoded family names and values joined as family=value&...
+   * Built from the table descriptor directly, as configureIncrementalLoad
+   * also writes a partitions file for the table, which is not used here.
+   */
+  static Map<String, String> familySettings(HTableDescriptor desc) throws IOException {
+    StringBuilder compression = new StringBuilder();
+    StringBuilder bloomType = new StringBuilder();
+    StringBuilder blockSize = new StringBuilder();
+    StringBuilder encoding = new StringBuilder();
+    for (HColumnDescriptor family : desc.getFamilies()) {
+      String name = family.getNameAsString();
+      appendSetting(compression, name, family.getCompression().getName());
+      appendSetting(bloomType, name, family.getBloomFilterType().toString());
+      appendSetting(blockSize, name, Integer.toString(family.getBlocksize()));
+      appendSetting(encoding, name, family.getDataBlockEncoding().toString());
+    }
+    Map<String, String> out = new LinkedHashMap<String, String>();
+    out.put(COMPRESSION_KEY, compression.toString());
+    out.put(BLOOM_TYPE_KEY, bloomType.toString());
+    out.put(BLOCK_SIZE_KEY, blockSize.toString());
+    out.put(DATABLOCK_ENCODING_KEY, encoding.toString());
+    return out;
+  }
+
+  private static void appendSetting(StringBuilder sb, String family, String value) throws IOException {
+    if (sb.length() > 0) sb.append('&');
+    sb.append(URLEncoder.encode(family, "UTF-8")).append('=').append(URLEncoder.encode(value, "UTF-8"));
+  }
+
+  /**
+   * Stores the split points of a table, the start keys of all but its
+   * first region (whose empty start key is not a split point). The count
+   * is stored apart, since a table of a single region has none, and an
+   * empty list does not survive Configuration.getStrings.
+   */
+  static void setSplits(Configuration c, int table, byte[][] startKeys) {
+    int n = Math.max(0, startKeys.length - 1);
+    c.setInt(TABLE_PREFIX + table + ".nsplits", n);
+    if (n == 0) {
+      c.unset(TABLE_PREFIX + table + ".splits");
+      return;
+    }
+    String[] splits = new String[n];
+    for (int j = 0; j < n; j++) splits[j] = Base64.encodeBytes(startKeys[j + 1]);
+    c.setStrings(TABLE_PREFIX + table + ".splits", splits);
+  }
+
+  /**
+   * @return the split points stored by setSplits, in ascending order
+   * @throws IOException if they do not match the stored count
+   */
+  static byte[][] getSplits(Configuration c, int table) throws IOException {
+    int n = c.getInt(TABLE_PREFIX + table + ".nsplits", 0);
+    if (n == 0) return new byte[0][];
+    String[] encoded = c.getStrings(TABLE_PREFIX + table + ".splits");
+    if (encoded == null || encoded.length != n) {
+      throw new IOException("Expected " + n + " split points for table " + table + ".");
+    }
+    byte[][] out = new byte[n][];
+    for (int j = 0; j < n; j++) out[j] = Base64.decode(encoded[j]);
+    return out;
+  }
+
+  /**
+   * @return the directory holding the HFiles of one table
+   */
+  public static Path getTableOutputPath(JobContext context, int table) {
+    String name = context.getConfiguration().getStrings(TABLES_KEY)[table];
+    return new Path(getOutputPath(context), name);
+  }
+
+  @Override
+  public RecordWriter<ImmutableBytesWritable, KeyValue> getRecordWriter(final TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    final int ntables = context.getConfiguration().getStrings(TABLES_KEY).length;
+
+    return new RecordWriter<ImmutableBytesWritable, KeyValue>() {
+
+      // Opened on the first record for each table; a reducer normally sees only one
+      List<RecordWriter<ImmutableBytesWritable, KeyValue>> writers =
+          new ArrayList<RecordWriter<ImmutableBytesWritable, KeyValue>>();
+      List<TaskAttemptContext> contexts = new ArrayList<TaskAttemptContext>();
+
+      // HFileOutputFormat takes the row from the KeyValue, so the prefixed key is passed on as is
+      @Override
+      public void write(ImmutableBytesWritable key, KeyValue kv)
+          throws IOException, InterruptedException {
+        int table = key.get()[key.getOffset()];
+        while (writers.size() < ntables) {
+          writers.add(null);
+          contexts.add(null);
+        }
+        if (writers.get(table) == null) {
+          contexts.set(table, tableContext(context, table));
+          writers.set(table, new HFileOutputFormat().getRecordWriter(contexts.get(table)));
+        }
+        writers.get(table).write(key, kv);
+      }
+
+      @Override
+      public void close(TaskAttemptContext c) throws IOException, InterruptedException {
+        for (int i = 0; i < writers.size(); i++) {
+          if (writers.get(i) != null) writers.get(i).close(contexts.get(i));
+        }
+      }
+    };
+  }
+
+  @Override
+  public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context)
+      throws IOException {
+    List<OutputCommitter> committers = new ArrayList<OutputCommitter>();
+    committers.add(super.getOutputCommitter(context));
+    int ntables = context.getConfiguration().getStrings(TABLES_KEY).length;
+    for (int i = 0; i < ntables; i++) {
+      committers.add(new FileOutputCommitter(getTableOutputPath(context, i), context));
+    }
+    return new MultiOutputCommitter(committers);
+  }
+
+  /**
+   * A copy of a task's context with the output path and family settings
+   * of a single table, as HFileOutputFormat expects.
+   */
+  static TaskAttemptContext tableContext(TaskAttemptContext context, int table) {
+    Configuration c = new Configuration(context.getConfiguration());
+    String prefix = TABLE_PREFIX + table + ".";
+    for (Map.Entry<String, String> e : context.getConfiguration()) {
+      if (e.getKey().startsWith(prefix)) c.set(e.getKey().substring(prefix.length()), e.getValue());
+    }
+    c.set(FileOutputFormat.OUTDIR, getTableOutputPath(context, table).toString());
+    return new TaskAttemptContextImpl(c, context.getTaskAttemptID());
+  }
+
+}
+
+/**
+ * Runs each step of the output commit protocol on every one of a list
+ * of committers.
+ */
+class MultiOutputCommitter extends OutputCommitter {
+
+  private final List<OutputCommitter> committers;
+
+  MultiOutputCommitter(List<OutputCommitter> committers_in) {
+    committers = committers_in;
+  }
+
+  @Override
+  public void setupJob(JobContext context) throws IOException {
+    for (OutputCommitter oc : committers) oc.setupJob(context);
+  }
+
+  @Override
+  public void commitJob(JobContext context) throws IOException {
+    for (OutputCommitter oc : committers) oc.commitJob(context);
+  }
+
+  @Override
+  public void abortJob(JobContext context, JobStatus.State state) throws IOException {
+    for (OutputCommitter oc : committers) oc.abortJob(context, state);
+  }
+
+  @Override
+  public void setupTask(TaskAttemptContext context) throws IOException {
+    for (OutputCommitter oc : committers) oc.setupTask(context);
+  }
+
+  @Override
+  public boolean needsTaskCommit(TaskAttemptContext context) throws IOException {
+    for (OutputCommitter oc : committers) {
+      if (oc.needsTaskCommit(context)) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void commitTask(TaskAttemptContext context) throws IOException {
+    for (OutputCommitter oc : committers) {
+      if (oc.needsTaskCommit(context)) oc.commitTask(context);
+    }
+  }
+
+  @Override
+  public void abortTask(TaskAttemptContext context) throws IOException {
+    for (OutputCommitter oc : committers) oc.abortTask(context);
+  }
+
+}
+
+/**
+ * Sends each prefixed key to a reducer of its table, chosen by the
+ * region holding the row as TotalOrderPartitioner does for a single
+ * table. The reducers of table 0 come first, then those of table 1, and
+ * so on, each table having one more reducer than split points.
+ */
+class DualTablePartitioner extends Partitioner<ImmutableBytesWritable, KeyValue>
+    implements Configurable {
+
+  private Configuration conf;
+  private byte[][][] splits;
+  private int[] offsets;
+
+  @Override
+  public void setConf(Configuration conf_in) {
+    conf = conf_in;
+    int ntables = conf.getStrings(DualHFileOutputFormat.TABLES_KEY).length;
+    splits = new byte[ntables][][];
+    offsets = new int[ntables];
+    int offset = 0;
+    for (int i = 0; i < ntables; i++) {
+      try {
+        splits[i] = DualHFileOutputFormat.getSplits(conf, i);
+      } catch (IOException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+      offsets[i] = offset;
+      offset += splits[i].length + 1;
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public int getPartition(ImmutableBytesWritable key, KeyValue value, int numPartitions) {
+    byte[] b = key.get();
+    int table = b[key.getOffset()];
+    byte[][] s = splits[table];
+
+    // Number of split points at or below the row
+    int lo = 0;
+    int hi = s.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (Bytes.compareTo(s[mid], 0, s[mid].length, b, key.getOffset() + 1, key.getLength() - 1) <= 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return (offsets[table] + lo) % numPartitions;
+  }
+
+}
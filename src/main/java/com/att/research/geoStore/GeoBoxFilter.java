@@ -0,0 +1,102 @@
+package com.att.research.geoStore;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import org.apache.hadoop.hbase.filter.FilterBase;
+
+/**
+ * An HBase filter, run on the region servers, which keeps only the cells
+ * of the geohash and entity tables whose locate lies inside a latitude
+ * and longitude box and a time range. The position is read from the
+ * value written by LocationRecord.createHbaseValue, of the form
+ * type|dur|subtype|lat|lon, or from its binary form (see CellValueCodec),
+ * and the time from the cell timestamp, which
+ * HBaseLoader sets to that of the locate. Cells without a position are
+ * dropped.
+ *
+ * The row key ranges of a geohash box scan cover whole five character
+ * cells, about 5km across, so for a small box most of the rows read are
+ * outside it; the filter drops them before they are sent to the client.
+ * The jar holding this class must be on the classpath of the region
+ * servers.
+ *
+ * @author Taylor Arnold
+ * @see com.att.research.geoStore.client.QueryScanner
+ * @since 0.9
+ */
+public class GeoBoxFilter extends FilterBase {
+
+  private double latMin;
+  private double latMax;
+  private double lonMin;
+  private double lonMax;
+  private long tsMin;
+  private long tsMax;
+
+  /**
+   * @param lat0  latitude at one corner of the box
+   * @param lat1  latitude at the other corner of the box
+   * @param lon0  longitude at one corner of the box
+   * @param lon1  longitude at the other corner of the box
+   * @param ts0   first unix timestamp (in seconds) to keep
+   * @param ts1   last unix timestamp (in seconds) to keep
+   */
+  public GeoBoxFilter(double lat0, double lat1, double lon0, double lon1, long ts0, long ts1) {
+    latMin = Math.min(lat0, lat1);
+    latMax = Math.max(lat0, lat1);
+    lonMin = Math.min(lon0, lon1);
+    lonMax = Math.max(lon0, lon1);
+    tsMin = Math.min(ts0, ts1);
+    tsMax = Math.max(ts0, ts1);
+  }
+
+  @Override
+  public ReturnCode filterKeyValue(Cell c) {
+    long ts = c.getTimestamp() / 1000;
+    if (ts < tsMin || ts > tsMax) return ReturnCode.SKIP;
+    if (!accepts(c.getValueArray(), c.getValueOffset(), c.getValueLength())) return ReturnCode.SKIP;
+    return ReturnCode.INCLUDE;
+  }
+
+  /**
+   * @return whether the position in an HBase value lies inside the box
+   */
+  boolean accepts(byte[] b, int off, int len) {
+    double lat = CellValueCodec.getLat(b, off, len);
+    if (!(lat >= latMin && lat <= latMax)) return false;
+    double lon = CellValueCodec.getLon(b, off, len);
+    return lon >= lonMin && lon <= lonMax;
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    ByteBuffer buf = ByteBuffer.allocate(48);
+    buf.putDouble(latMin).putDouble(latMax).putDouble(lonMin).putDouble(lonMax);
+    buf.putLong(tsMin).putLong(tsMax);
+    return buf.array();
+  }
+
+  /**
+   * Reads a filter written by toByteArray; called by the region servers.
+   *
+   * @throws DeserializationException
+   */
+  public static GeoBoxFilter parseFrom(byte[] bytes) throws DeserializationException {
+    if (bytes == null || bytes.length != 48) {
+      throw new DeserializationException("Bad GeoBoxFilter of " +
+                                         (bytes == null ? 0 : bytes.length) + " bytes.");
+    }
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    return new GeoBoxFilter(buf.getDouble(), buf.getDouble(), buf.getDouble(), buf.getDouble(),
+                            buf.getLong(), buf.getLong());
+  }
+
+  @Override
+  public String toString() {
+    return "GeoBoxFilter " + latMin + "," + lonMin + " " + latMax + "," + lonMax +
+           " " + tsMin + "-" + tsMax;
+  }
+
+}
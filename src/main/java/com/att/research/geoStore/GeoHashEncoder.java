@@ -0,0 +1,156 @@
+package com.att.research.geoStore;
+
+import java.util.Arrays;
+
+/**
+ * Static methods for encoding geohashes without creating any objects
+ * beyond the output. The bits are produced by the same sequence of
+ * range halvings (longitude first, value at or above the midpoint gives
+ * a one) as the ch.hsr.geohash library, so that the results agree with
+ * GeoHash.withCharacterPrecision(lat, lon, n).toBase32() exactly; every
+ * midpoint is a dyadic fraction of the range, so no rounding occurs.
+ *
+ * The per-axis methods allow a cover of geohash cells to be enumerated
+ * directly from the cell indices of two corners, as done by GeoHashBox.
+ *
+ * @author Taylor Arnold
+ * @see McellIndex
+ * @since 0.9
+ */
+public final class GeoHashEncoder {
+
+  /** number of characters in the geohashes stored with each record */
+  public static final int LENGTH = 10;
+
+  private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+  private static final int[] DECODE = new int[128];
+
+  static {
+    Arrays.fill(DECODE, -1);
+    for (int i = 0; i < BASE32.length; i++) DECODE[BASE32[i]] = i;
+  }
+
+  private GeoHashEncoder() {
+  }
+
+  /**
+   * @return the ten character geohash of a point
+   */
+  public static String encode(double lat, double lon) {
+    char[] buf = new char[LENGTH];
+    encode(lat, lon, buf, LENGTH);
+    return new String(buf);
+  }
+
+  /**
+   * Writes the geohash of a point into the start of a buffer.
+   *
+   * @param lat     latitude, between -90 and 90
+   * @param lon     longitude, between -180 and 180
+   * @param buf     output buffer of at least nchars characters
+   * @param nchars  number of characters to write; at most 12
+   */
+  public static void encode(double lat, double lon, char[] buf, int nchars) {
+    toBase32(bits(lat, lon, 5 * nchars), nchars, buf);
+  }
+
+  /**
+   * @return the first nbits bits of the geohash of a point, right aligned
+   */
+  public static long bits(double lat, double lon, int nbits) {
+    int nlon = (nbits + 1) / 2;
+    int nlat = nbits / 2;
+    return interleave(lonBits(lon, nlon), latBits(lat, nlat), nbits);
+  }
+
+  /**
+   * @return index of the latitude band holding lat, out of 2^nbits bands
+   */
+  public static long latBits(double lat, int nbits) {
+    return axisBits(lat, -90.0, 90.0, nbits);
+  }
+
+  /**
+   * @return index of the longitude band holding lon, out of 2^nbits bands
+   */
+  public static long lonBits(double lon, int nbits) {
+    return axisBits(lon, -180.0, 180.0, nbits);
+  }
+
+  /**
+   * Combines the band indices of each axis into geohash bits; the first
+   * (most significant) bit is taken from the longitude.
+   *
+   * @param  lonBits  longitude band index of (nbits + 1) / 2 bits
+   * @param  latBits  latitude band index of nbits / 2 bits
+   * @param  nbits    total number of bits
+   * @return the interleaved bits, right aligned
+   */
+  public static long interleave(long lonBits, long latBits, int nbits) {
+    int nlon = (nbits + 1) / 2;
+    int nlat = nbits / 2;
+    long out = 0;
+    for (int i = 0; i < nbits; i++) {
+      if ((i & 1) == 0) {
+        out = (out << 1) | ((lonBits >>> (nlon - 1 - i / 2)) & 1);
+      } else {
+        out = (out << 1) | ((latBits >>> (nlat - 1 - i / 2)) & 1);
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Writes right aligned geohash bits as base32 characters.
+   *
+   * @param bits    5 * nchars bits, as given by bits or interleave
+   * @param nchars  number of characters to write
+   * @param buf     output buffer of at least nchars characters
+   */
+  public static void toBase32(long bits, int nchars, char[] buf) {
+    for (int i = nchars - 1; i >= 0; i--) {
+      buf[i] = BASE32[(int) (bits & 31)];
+      bits >>>= 5;
+    }
+  }
+
+  /**
+   * Reads the bits of a base32 geohash; the inverse of toBase32.
+   *
+   * @param  s       the geohash
+   * @param  nchars  number of characters to read; a shorter geohash is
+   *                 padded with zero bits
+   * @return the 5 * nchars bits, right aligned, or -1 if a character is
+   *         not a geohash character
+   */
+  public static long fromBase32(CharSequence s, int nchars) {
+    long out = 0;
+    for (int i = 0; i < nchars; i++) {
+      int d = 0;
+      if (i < s.length()) {
+        char ch = s.charAt(i);
+        d = (ch < 128) ? DECODE[ch] : -1;
+        if (d < 0) return -1;
+      }
+      out = (out << 5) | d;
+    }
+    return out;
+  }
+
+  private static long axisBits(double value, double min, double max, int nbits) {
+    long out = 0;
+    for (int i = 0; i < nbits; i++) {
+      double mid = (min + max) / 2;
+      if (value >= mid) {
+        out = (out << 1) | 1;
+        min = mid;
+      } else {
+        out = out << 1;
+        max = mid;
+      }
+    }
+    return out;
+  }
+
+}
@@ -0,0 +1,178 @@
+package com.att.research.geoStore;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.mapreduce.TableMapper;
+
+/**
+ * Copies the rows of the geohash table, keyed by the reversed five
+ * character geohash, into a table keyed by GeoHashRowKey, for moving
+ * existing data to the bucketed layout; new data is loaded into that
+ * table by HBaseLoader with HBaseLoader.GEOHASH_LAYOUT_KEY set to
+ * "bucketed". The bucket length and salts are taken from the same keys
+ * as for HBaseLoader, and the target defaults to the table named by
+ * HBaseLoader.BUCKETED_TABLE_KEY.
+ *
+ * The old table is read by a map only scan, restricted to the locates of
+ * one day (by the cell timestamps) so that a backfill can be run a day
+ * at a time, and written as HFiles for the new table, which are bulk
+ * loaded by the load method as with HBaseLoader. The eight character
+ * geohash of each row is computed from the position held in its value,
+ * since the old key only holds five characters, by
+ * GeoHashRowKey.geohashOf as HBaseLoader does. With
+ * HBaseLoader.VALUE_FORMAT_KEY set to "binary", text values are also
+ * rewritten in the binary form of CellValueCodec.
+ *
+ * @author Taylor Arnold
+ * @see HBaseLoader
+ * @see GeoHashRowKey
+ * @since 0.9
+ */
+public class GeoHashMigrator extends MapRedJob {
+
+  /** configuration key for the table to copy from; default "locstore.geohash" */
+  public static final String SOURCE_TABLE_KEY = "locstore.hbase.geohash.migrate.source";
+
+  /** configuration key for the table to copy into; defaults to HBaseLoader.bucketedTable */
+  public static final String TARGET_TABLE_KEY = "locstore.hbase.geohash.migrate.target";
+
+  protected String source_table;
+  protected String target_table;
+  protected HTable hTable;
+
+  /**
+   * @param dateToProcess  date in yyyy/MM/dd format, of the locates to copy;
+   *                       or "all" to copy the whole table
+   * @param conf_in        Configuration object, should have been parsed by GenericOptionsParser
+   * @throws IOException
+   */
+  public GeoHashMigrator(String dateToProcess, Configuration conf_in) throws IOException {
+    conf = conf_in;
+    dt = dateToProcess;
+    source_table = conf.get(SOURCE_TABLE_KEY, "locstore.geohash");
+    target_table = conf.get(TARGET_TABLE_KEY, HBaseLoader.bucketedTable(conf));
+    if (target_table.equals("locstore.geohash")) {
+      throw new IllegalArgumentException("locstore.geohash cannot hold the bucketed layout.");
+    }
+    output_dir = "/tmp/" + UUID.randomUUID().toString();
+    job_name = this.getClass().getName() + target_table + ":" + dt;
+
+    createHadoopConfig(true);
+    HBaseConfiguration.addHbaseResources(conf);
+    hTable = new HTable(HBaseConfiguration.create(), target_table);
+
+    Scan scan = new Scan();
+    scan.setCaching(1000);
+    scan.setCacheBlocks(false);
+    if (!dt.equals("all")) {
+      SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd");
+      sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try {
+        long day = sdf.parse(dt).getTime();
+        scan.setTimeRange(day, day + 24L * 3600 * 1000);
+      } catch (ParseException e) {
+        throw new IOException("Bad date " + dt + ".");
+      }
+    }
+
+    initHadoopJob(GeoHashMigratorMap.class, null, null, null, -1);
+    TableMapReduceUtil.initTableMapperJob(source_table, scan, GeoHashMigratorMap.class,
+                                          ImmutableBytesWritable.class, KeyValue.class, job);
+    HFileOutputFormat.configureIncrementalLoad(job, hTable);
+  }
+
+  // The input is a table rather than files, so there are no paths to resolve
+  @Override
+  protected boolean prepare() throws IOException, InterruptedException {
+    return true;
+  }
+
+  /**
+   * Loads the HFiles written by the job into the new table. Must be
+   * called after the run method.
+   *
+   * @throws Exception
+   */
+  public void load() throws Exception {
+    LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
+    loader.doBulkLoad(new Path(output_dir), hTable);
+    removeHdfsDirectory(output_dir);
+  }
+
+}
+
+class GeoHashMigratorMap extends TableMapper<ImmutableBytesWritable, KeyValue> {
+
+  // The old key is the reversed geohash, a ten digit timestamp, then the imsi and sequence number
+  static final int HASH_CHARS = 5;
+  static final int TAIL_START = 15;
+
+  GeoHashRowKey bucketed;
+  boolean binaryValues;
+  ImmutableBytesWritable hKey = new ImmutableBytesWritable();
+
+  @Override
+  protected void setup(Context context) throws IOException, InterruptedException {
+    Configuration c = context.getConfiguration();
+    bucketed = HBaseLoader.bucketedLayout(c);
+    binaryValues = HBaseLoader.binaryValues(c);
+  }
+
+  @Override
+  public void map(ImmutableBytesWritable row, Result value, Context context)
+      throws IOException, InterruptedException {
+    byte[] r = row.get();
+    int off = row.getOffset();
+    int len = row.getLength();
+    if (len < TAIL_START) return;
+
+    int ts;
+    try {
+      ts = Integer.parseInt(new String(r, off + HASH_CHARS, TAIL_START - HASH_CHARS));
+    } catch (NumberFormatException e) {
+      return;
+    }
+    String prefix = new StringBuilder(new String(r, off, HASH_CHARS)).reverse().toString();
+
+    for (Cell c : value.rawCells()) {
+      byte[] v = c.getValueArray();
+      int voff = c.getValueOffset();
+      int vlen = c.getValueLength();
+      long hash = GeoHashRowKey.geohashOf(v, voff, vlen, prefix);
+      if (hash < 0) continue;
+
+      byte[] hValue;
+      if (binaryValues && !CellValueCodec.isBinary(v, voff, vlen)) {
+        hValue = CellValueCodec.encode(CellValueCodec.getType(v, voff, vlen), CellValueCodec.getDur(v, voff, vlen),
+                                       CellValueCodec.getSubtype(v, voff, vlen),
+                                       CellValueCodec.getLat(v, voff, vlen), CellValueCodec.getLon(v, voff, vlen));
+      } else {
+        hValue = CellUtil.cloneValue(c);
+      }
+
+      byte[] key = bucketed.encode(hash, ts, r, off + TAIL_START, len - TAIL_START);
+      KeyValue kv = new KeyValue(key, CellUtil.cloneFamily(c), CellUtil.cloneQualifier(c),
+                                 c.getTimestamp(), hValue);
+      hKey.set(key);
+      context.write(hKey, kv);
+    }
+  }
+
+}
@@ -0,0 +1,195 @@
+package com.att.research.geoStore;
+
+/**
+ * The time bucketed binary row key layout of the geohash table, an
+ * alternative to the text key of reversed five character geohash,
+ * timestamp, imsi and sequence number. The key is
+ *
+ *   [salt] bucket geohash ts tail
+ *
+ * where the optional salt is one byte, a hash of the tail modulo the
+ * number of salts; bucket is the timestamp divided by the bucket length,
+ * and ts the timestamp itself, each a big-endian int; geohash is the
+ * first 40 bits (eight characters) of the geohash, in five big-endian
+ * bytes; and tail is the imsi followed by the sequence number, as in the
+ * text key.
+ *
+ * Since the geohash is not reversed, every geohash cell of any length is
+ * a contiguous range of keys within a bucket and salt, so that a box can
+ * be covered by a few ranges of mixed precision, and a short time window
+ * only reads the buckets it overlaps rather than the whole history of
+ * each cell. Leading with the salt and bucket spreads the rows of a busy
+ * cell, and the writes of each day, over as many regions as there are
+ * salts.
+ *
+ * @author Taylor Arnold
+ * @see HBaseLoader
+ * @see com.att.research.geoStore.client.GeoHashBox
+ * @since 0.9
+ */
+public final class GeoHashRowKey {
+
+  /** number of geohash bits in the key */
+  public static final int GEOHASH_BITS = 40;
+
+  /** default length of a time bucket, in seconds */
+  public static final int DEFAULT_BUCKET_SECONDS = 24 * 3600;
+
+  private final int bucketSeconds;
+  private final int salts;
+
+  /**
+   * @param bucketSeconds_in  length of a time bucket, in seconds
+   * @param salts_in          number of salt values, at most 256; 0 for keys without a salt byte
+   */
+  public GeoHashRowKey(int bucketSeconds_in, int salts_in) {
+    if (bucketSeconds_in <= 0) throw new IllegalArgumentException("Bucket length must be positive.");
+    if (salts_in < 0 || salts_in > 256) throw new IllegalArgumentException("Between 0 and 256 salts.");
+    bucketSeconds = bucketSeconds_in;
+    salts = salts_in;
+  }
+
+  public int getBucketSeconds() {
+    return bucketSeconds;
+  }
+
+  public int getSalts() {
+    return salts;
+  }
+
+  /**
+   * @return the length of the key before the tail
+   */
+  public int prefixLength() {
+    return (salts > 0 ? 1 : 0) + 4 + 5 + 4;
+  }
+
+  /**
+   * @return the bucket holding a timestamp
+   */
+  public int bucket(long ts) {
+    return (int) Math.floor((double) ts / bucketSeconds);
+  }
+
+  /**
+   * Builds a row key.
+   *
+   * @param  geohash  the first GEOHASH_BITS bits of the geohash, right aligned
+   * @param  ts       unix timestamp of the locate
+   * @param  tail     imsi followed by the sequence number
+   * @return the key
+   */
+  public byte[] encode(long geohash, int ts, byte[] tail, int off, int len) {
+    byte[] out = new byte[prefixLength() + len];
+    int pos = 0;
+    if (salts > 0) out[pos++] = (byte) salt(tail, off, len);
+    pos = putInt(out, pos, bucket(ts));
+    pos = putGeohash(out, pos, geohash);
+    pos = putInt(out, pos, ts);
+    System.arraycopy(tail, off, out, pos, len);
+    return out;
+  }
+
+  /**
+   * Finds the geohash of a locate from the cell value written for it, so
+   * that HBaseLoader and GeoHashMigrator give a locate the same key. The
+   * position is rounded to the units of CellValueCodec first, as text and
+   * binary values of the same locate must agree. A value without a
+   * position falls back to the first five characters of the geohash given,
+   * all the old text key keeps, padded with zero bits.
+   *
+   * @param  value    a text or binary cell value, see CellValueCodec
+   * @param  geohash  base32 geohash of the locate, or null
+   * @return the first GEOHASH_BITS bits of the geohash, right aligned;
+   *         negative if neither the value nor the geohash is usable
+   */
+  public static long geohashOf(byte[] value, int off, int len, CharSequence geohash) {
+    double lat = CellValueCodec.getLat(value, off, len);
+    double lon = CellValueCodec.getLon(value, off, len);
+    if (!Double.isNaN(lat) && !Double.isNaN(lon)) {
+      return GeoHashEncoder.bits(Math.round(lat * CellValueCodec.SCALE) / CellValueCodec.SCALE,
+                                 Math.round(lon * CellValueCodec.SCALE) / CellValueCodec.SCALE,
+                                 GEOHASH_BITS);
+    }
+    if (geohash == null || geohash.length() < 5) return -1;
+    return GeoHashEncoder.fromBase32(geohash.subSequence(0, 5), GEOHASH_BITS / 5);
+  }
+
+  /**
+   * Builds the first key of a geohash range within a salt and bucket,
+   * for use as the start or (exclusive) stop row of a scan.
+   *
+   * @param  salt     the salt; ignored for keys without a salt byte
+   * @param  bucket   the time bucket
+   * @param  geohash  start of the range, right aligned in GEOHASH_BITS bits;
+   *                  may be 2^GEOHASH_BITS for the end of the bucket
+   */
+  public byte[] rangeKey(int salt, int bucket, long geohash) {
+    if (geohash >= (1L << GEOHASH_BITS)) {
+      byte[] out = new byte[(salts > 0 ? 1 : 0) + 4];
+      if (salts > 0) out[0] = (byte) salt;
+      putInt(out, out.length - 4, bucket + 1);
+      return out;
+    }
+    byte[] out = new byte[(salts > 0 ? 1 : 0) + 4 + 5];
+    int pos = 0;
+    if (salts > 0) out[pos++] = (byte) salt;
+    pos = putInt(out, pos, bucket);
+    putGeohash(out, pos, geohash);
+    return out;
+  }
+
+  /**
+   * @return the geohash bits of a row key
+   */
+  public long getGeohash(byte[] row, int off) {
+    int pos = off + (salts > 0 ? 1 : 0) + 4;
+    long out = 0;
+    for (int i = 0; i < 5; i++) out = (out << 8) | (row[pos + i] & 0xff);
+    return out;
+  }
+
+  /**
+   * @return the timestamp of a row key
+   */
+  public int getTs(byte[] row, int off) {
+    return getInt(row, off + prefixLength() - 4);
+  }
+
+  /**
+   * @return the imsi and sequence number at the end of a row key
+   */
+  public String getTail(byte[] row, int off, int len) {
+    int start = prefixLength();
+    return new String(row, off + start, len - start);
+  }
+
+  // A stable hash of the tail bytes; the same as String.hashCode for ASCII
+  int salt(byte[] tail, int off, int len) {
+    int h = 0;
+    for (int i = off; i < off + len; i++) h = 31 * h + tail[i];
+    return (h & Integer.MAX_VALUE) % salts;
+  }
+
+  private static int putInt(byte[] b, int pos, int v) {
+    b[pos] = (byte) (v >>> 24);
+    b[pos + 1] = (byte) (v >>> 16);
+    b[pos + 2] = (byte) (v >>> 8);
+    b[pos + 3] = (byte) v;
+    return pos + 4;
+  }
+
+  private static int putGeohash(byte[] b, int pos, long v) {
+    for (int i = 4; i >= 0; i--) {
+      b[pos + i] = (byte) v;
+      v >>>= 8;
+    }
+    return pos + 5;
+  }
+
+  private static int getInt(byte[] b, int pos) {
+    return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) |
+           ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+  }
+
+}
@@ -1,7 +1,14 @@
 package com.att.research.geoStore;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -13,6 +20,7 @@ import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
 import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.Mapper;
@@ -30,14 +38,55 @@ import org.apache.hadoop.mapreduce.Mapper;
  * method should be relatively quick as the first step does most of the
  * time-consuming work.
  *
+ * The geohash and entity tables may also be loaded together, by giving
+ * both names to the constructor: each raw record is then read and parsed
+ * once, and a single job writes the HFiles of both tables through
+ * DualHFileOutputFormat. The load method bulk loads the tables at the
+ * same time.
+ *
+ * Rows of the geohash table are keyed by the reversed five character
+ * geohash, timestamp, imsi and sequence number. Rows of the bucketed
+ * geohash table, named by BUCKETED_TABLE_KEY, are keyed by GeoHashRowKey
+ * instead, which leads with a time bucket and an optional salt; the
+ * layout follows the table loaded, so locstore.geohash always keeps the
+ * text keys. GEOHASH_LAYOUT_KEY chooses which of the two tables is
+ * loaded along with the entity table (see recordTables), and
+ * GeoHashMigrator copies an existing table into the new layout. With VALUE_FORMAT_KEY set to
+ * "binary", the cell values of both record tables are written in the
+ * compact form of CellValueCodec rather than as text.
+ *
  * @author Taylor Arnold
  * @see MapRedJob
  * @since 0.2
  */
 public class HBaseLoader extends MapRedJob {
 
+  /** table names accepted by the constructor for loading both record tables in one job */
+  public static final String[] RECORD_TABLES = new String[] {"locstore.geohash", "locstore.entity"};
+
+  /**
+   * Configuration key for the geohash table loaded with the entity table
+   * by recordTables: "text" (the default) for locstore.geohash, or
+   * "bucketed" for the table named by BUCKETED_TABLE_KEY.
+   */
+  public static final String GEOHASH_LAYOUT_KEY = "locstore.hbase.geohash.layout";
+
+  /** configuration key for the name of the table keyed by GeoHashRowKey; default "locstore.geohash.bucketed" */
+  public static final String BUCKETED_TABLE_KEY = "locstore.hbase.geohash.bucketed.table";
+
+  /** configuration key for the length of a time bucket of the bucketed layout, in seconds */
+  public static final String BUCKET_SECONDS_KEY = "locstore.hbase.geohash.bucket.seconds";
+
+  /** configuration key for the number of salts of the bucketed layout; 0 (the default) for none */
+  public static final String SALTS_KEY = "locstore.hbase.geohash.salts";
+
+  /** configuration key for the form of the cell values: "text" (the default) or "binary"; see CellValueCodec */
+  public static final String VALUE_FORMAT_KEY = "locstore.hbase.value.format";
+
   private String hbase_table = "";
   private HTable hTable;
+  private String[] dual_tables = null;
+  private HTable[] dualHTables;
 
   /**
    * Default constructor for creating a LocstoreLoadClient instance for a particular
@@ -48,7 +97,9 @@ public class HBaseLoader extends MapRedJob {
    *
    * @param dateToProcess    date in yyyy/MM/dd format, for which data will be loaded
    * @param hbaseTableName   'locstore.geohash' for loading into the geospatially
-   *                         indexed HBase table, 'locstore.entity' for loading into
+   *                         indexed HBase table (or another table whose name starts
+   *                         with it), the table named by BUCKETED_TABLE_KEY for the
+   *                         bucketed layout, 'locstore.entity' for loading into
    *                         the entity indexed table, 'locstore.mcell' for loading
    *                         the mcell table, or 'locstore.triples' for loading the triples map
    * @throws IOException
@@ -64,16 +115,17 @@ public class HBaseLoader extends MapRedJob {
     conf.set("hbase.table.name", hbaseTableName);
     createHBaseConfig();
 
-    if (hbaseTableName.equals("locstore.entity") | hbaseTableName.equals("locstore.geohash")) {
-      initHadoopJob(HBaseLoaderMap.class, null, null, TextInputFormat.class, -1);
+    if (recordTable(hbaseTableName)) {
+      initHadoopJob(HBaseLoaderMap.class, null, null, rawInputFormat(), -1);
     } else {
       initHadoopJob(HBaseLoaderMetaMap.class, null, null, TextInputFormat.class, -1);
     }
     setMapOutClasses(ImmutableBytesWritable.class, KeyValue.class);
     initHBaseJob();
 
-    if (hbaseTableName.equals("locstore.entity") | hbaseTableName.equals("locstore.geohash")) {
-      attachInputPath("/projects/locstore/raw/" + dt);
+    if (recordTable(hbaseTableName)) {
+      // Only the unread deltas when MapRedJob.DELTA_KEY is set; bulk loads add to the table
+      attachRawInput();
     } else if (hbaseTableName.equals("locstore.triples")) {
       attachInputPath("/projects/locstore/triples/" + dt);
     } else if (hbaseTableName.equals("locstore.venue")) {
@@ -84,16 +136,89 @@ public class HBaseLoader extends MapRedJob {
     }
   }
 
+  /**
+   * Constructor for loading the raw records of a day into several of the
+   * record tables (see RECORD_TABLES) with a single job.
+   *
+   * @param dateToProcess    date in yyyy/MM/dd format, for which data will be loaded
+   * @param hbaseTableNames  names of the tables, as given by recordTables
+   * @throws IOException
+   */
+  public HBaseLoader(String dateToProcess, String[] hbaseTableNames, Configuration conf_in) throws IOException {
+    conf = conf_in;
+    dual_tables = hbaseTableNames;
+    dt = dateToProcess;
+    output_dir = "/tmp/" + UUID.randomUUID().toString();
+    job_name = this.getClass().getName() + "dual:" + dt;
+
+    createHadoopConfig(true);
+    conf.setStrings("hbase.table.name", hbaseTableNames);
+    HBaseConfiguration.addHbaseResources(conf);
+    Configuration hconf = HBaseConfiguration.create();
+    dualHTables = new HTable[hbaseTableNames.length];
+    for (int i = 0; i < hbaseTableNames.length; i++) {
+      dualHTables[i] = new HTable(hconf, hbaseTableNames[i]);
+    }
+
+    initHadoopJob(HBaseLoaderMap.class, null, null, rawInputFormat(), -1);
+    setMapOutClasses(ImmutableBytesWritable.class, KeyValue.class);
+    DualHFileOutputFormat.configureIncrementalLoad(job, dualHTables);
+
+    attachRawInput();
+  }
+
   /**
    * Loads the data processed by the mapreduce job into the relevant
-   * HBase table. Must be called after the run method.
+   * HBase table. Must be called after the run method. When loading
+   * several tables, each is bulk loaded by a thread of its own. Once
+   * loaded, the deltas read are marked as consumed for each table.
    *
    * @throws Exception
    */
   public void load() throws Exception {
-    LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
-    loader.doBulkLoad(new Path(output_dir), hTable);
+    if (dual_tables == null) {
+      LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
+      loader.doBulkLoad(new Path(output_dir), hTable);
+      removeHdfsDirectory(output_dir);
+      commitDeltas();
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(dual_tables.length);
+    try {
+      List<Future<Void>> loads = new ArrayList<Future<Void>>();
+      for (int i = 0; i < dual_tables.length; i++) {
+        final Path dir = new Path(output_dir + "/" + dual_tables[i]);
+        final HTable table = dualHTables[i];
+        loads.add(pool.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            new LoadIncrementalHFiles(new Configuration(conf)).doBulkLoad(dir, table);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> f : loads) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+          throw e;
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
     removeHdfsDirectory(output_dir);
+    commitDeltas();
+  }
+
+  // Each table keeps its own delta watermark, so single and dual loads can be mixed
+  @Override
+  protected String[] deltaConsumers() {
+    String[] tables = (dual_tables == null) ? new String[] {hbase_table} : dual_tables;
+    String[] out = new String[tables.length];
+    for (int i = 0; i < tables.length; i++) out[i] = "HBaseLoader-" + tables[i];
+    return out;
   }
 
   /**
@@ -109,6 +234,54 @@ public class HBaseLoader extends MapRedJob {
     FileInputFormat.addInputPath(job, new Path(inputString));
   }
 
+  /**
+   * @return the record tables for LoadDay to load in one job: the entity
+   *         table and, depending on GEOHASH_LAYOUT_KEY, either
+   *         locstore.geohash or the bucketed table
+   */
+  public static String[] recordTables(Configuration c) {
+    if (!c.get(GEOHASH_LAYOUT_KEY, "text").equals("bucketed")) return RECORD_TABLES;
+    return new String[] {bucketedTable(c), "locstore.entity"};
+  }
+
+  /**
+   * @return the name of the table keyed by GeoHashRowKey
+   * @throws IllegalArgumentException if it is set to locstore.geohash,
+   *         whose rows must keep the text keys
+   */
+  public static String bucketedTable(Configuration c) {
+    String name = c.get(BUCKETED_TABLE_KEY, "locstore.geohash.bucketed");
+    if (name.equals("locstore.geohash")) {
+      throw new IllegalArgumentException("locstore.geohash cannot hold the bucketed layout.");
+    }
+    return name;
+  }
+
+  /**
+   * @return the row key layout of the bucketed table given by the configuration
+   */
+  public static GeoHashRowKey bucketedLayout(Configuration c) {
+    return new GeoHashRowKey(c.getInt(BUCKET_SECONDS_KEY, GeoHashRowKey.DEFAULT_BUCKET_SECONDS),
+                             c.getInt(SALTS_KEY, 0));
+  }
+
+  /**
+   * @return whether the configuration asks for binary cell values
+   */
+  public static boolean binaryValues(Configuration c) {
+    return c.get(VALUE_FORMAT_KEY, "text").equals("binary");
+  }
+
+  static boolean geohashTable(String tableName) {
+    return tableName.startsWith("locstore.geohash");
+  }
+
+  // Tables whose rows are built from the raw records
+  private boolean recordTable(String tableName) {
+    return tableName.equals("locstore.entity") || geohashTable(tableName) ||
+           tableName.equals(bucketedTable(conf));
+  }
+
   protected void createHBaseConfig() throws IOException {
     Configuration hconf = HBaseConfiguration.create();
     HBaseConfiguration.addHbaseResources(conf);
@@ -122,46 +295,88 @@ public class HBaseLoader extends MapRedJob {
 }
 
 class HBaseLoaderMap extends
- Mapper<LongWritable,Text,ImmutableBytesWritable,KeyValue> {
+ Mapper<Writable,Writable,ImmutableBytesWritable,KeyValue> {
+
+  /** counter group of the records which were not loaded */
+  static final String COUNTER_GROUP = "HBaseLoaderMap skipped";
 
-  String table_name;
+  String[] table_names;
   byte[] FAMILY_COLUMN = "d".getBytes();
+  LocationRecordParser parser = new LocationRecordParser();
+  CompactLocationRecord rec = new CompactLocationRecord();
+  String bucketedTable;
+  GeoHashRowKey bucketed;
+  boolean binaryValues = false;
+  long nmissing = 0;
 
   @Override
   protected void setup(Context context) throws IOException,
    InterruptedException {
     Configuration c = context.getConfiguration();
-    table_name = c.get("hbase.table.name");
+    table_names = c.getStrings("hbase.table.name");
+    bucketedTable = HBaseLoader.bucketedTable(c);
+    bucketed = HBaseLoader.bucketedLayout(c);
+    binaryValues = HBaseLoader.binaryValues(c);
   }
 
-  public void map(LongWritable key, Text value, Context context)
+  public void map(Writable key, Writable value, Context context)
       throws IOException, InterruptedException {
 
 
-    LocationRecord lr = new LocationRecord(value.toString());
+    CompactLocationRecord lr = parser.parse(value, rec);
     if (!lr.parseErrorOkay()) return;
 
-    String this_key = "";
-    if (table_name.equals("locstore.entity")) {
-      String imsi_rev = new StringBuilder(lr.imsi).reverse().toString();
-      this_key = imsi_rev + Integer.toString(lr.ts) + Integer.toString(lr.seq);
-    } else if (table_name.equals("locstore.geohash")) {
-      String hash_prefix_rev = new StringBuilder(lr.geohash.substring(0,5)).reverse().toString();
-      this_key = hash_prefix_rev + Integer.toString(lr.ts) + lr.imsi + Integer.toString(lr.seq);
+    // Every row key holds the timestamp and sequence number, which must not default to 0
+    if (lr.isNull(CompactLocationRecord.TS) || lr.isNull(CompactLocationRecord.SEQ)) {
+      nmissing++;
+      return;
     }
 
-    ImmutableBytesWritable hKey = new ImmutableBytesWritable();
-    hKey.set( this_key.getBytes() );
+    byte[] hValue = binaryValues ? CellValueCodec.encode(lr) : lr.createHbaseValue().getBytes();
+    for (int i = 0; i < table_names.length; i++) {
+      byte[] row = new byte[0];
+      if (table_names[i].equals("locstore.entity")) {
+        String imsi_rev = new StringBuilder(lr.imsi).reverse().toString();
+        row = (imsi_rev + Integer.toString(lr.getInt(CompactLocationRecord.TS)) +
+               Integer.toString(lr.getInt(CompactLocationRecord.SEQ))).getBytes();
+      } else if (table_names[i].equals(bucketedTable)) {
+        long hash = GeoHashRowKey.geohashOf(hValue, 0, hValue.length, lr.geohash);
+        if (hash < 0) continue;
+        byte[] tail = (lr.imsi + Integer.toString(lr.getInt(CompactLocationRecord.SEQ))).getBytes();
+        row = bucketed.encode(hash, lr.getInt(CompactLocationRecord.TS), tail, 0, tail.length);
+      } else if (HBaseLoader.geohashTable(table_names[i])) {
+        String hash_prefix_rev = new StringBuilder(lr.geohash.substring(0,5)).reverse().toString();
+        row = (hash_prefix_rev + Integer.toString(lr.getInt(CompactLocationRecord.TS)) + lr.imsi +
+               Integer.toString(lr.getInt(CompactLocationRecord.SEQ))).getBytes();
+      }
 
-    KeyValue kv = new KeyValue(hKey.get(),
-                                FAMILY_COLUMN,
-                                lr.location.getBytes(),
-                                ((long) lr.ts) * 1000,
-                                lr.createHbaseValue().getBytes());
-    context.write(hKey, kv);
+      KeyValue kv = new KeyValue(row,
+                                  FAMILY_COLUMN,
+                                  lr.location.getBytes(),
+                                  ((long) lr.getInt(CompactLocationRecord.TS)) * 1000,
+                                  hValue);
+
+      // With several tables the key is prefixed by the table index; see DualHFileOutputFormat
+      ImmutableBytesWritable hKey = new ImmutableBytesWritable();
+      if (table_names.length == 1) {
+        hKey.set(row);
+      } else {
+        byte[] tagged = new byte[row.length + 1];
+        tagged[0] = (byte) i;
+        System.arraycopy(row, 0, tagged, 1, row.length);
+        hKey.set(tagged);
+      }
+      context.write(hKey, kv);
+    }
 
   }
 
+  @Override
+  protected void cleanup(Context context) throws IOException,
+   InterruptedException {
+    context.getCounter(COUNTER_GROUP, "records without ts or seq").increment(nmissing);
+  }
+
 }
 
 class HBaseLoaderMetaMap extends
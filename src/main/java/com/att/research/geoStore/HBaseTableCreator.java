@@ -1,5 +1,7 @@
 package com.att.research.geoStore.client;
 
+import com.att.research.geoStore.HBaseLoader;
+
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.UUID;
@@ -19,7 +21,9 @@ import org.apache.hadoop.hbase.ZooKeeperConnectionException;
 
 /**
  * A class for constructing and deleting HBase tables. Intelligent
- * splits are provided for the entity, geohash, and mcell tables.
+ * splits are provided for the entity, geohash, and mcell tables. The
+ * table keyed by GeoHashRowKey, named by HBaseLoader.BUCKETED_TABLE_KEY,
+ * is split by salt as in createBucketed.
  *
  * @author Taylor Arnold
  * @since 0.3
@@ -27,6 +31,7 @@ import org.apache.hadoop.hbase.ZooKeeperConnectionException;
 public class HBaseTableCreator {
 
   private HBaseAdmin hba;
+  private Configuration conf;
 
   private static String[] entity_splits = new String[] {
     "016645146","033244946","049881954","066539666","083118585",
@@ -66,7 +71,19 @@ public class HBaseTableCreator {
    * @throws IOException
    */
   public HBaseTableCreator() throws MasterNotRunningException, ZooKeeperConnectionException, IOException  {
-    Configuration conf = HBaseConfiguration.create();
+    this(HBaseConfiguration.create());
+  }
+
+  /**
+   * Constructor for HBaseTableCreator taking the name and salts of the
+   * bucketed table from a configuration, as HBaseLoader does.
+   *
+   * @param conf_in  Configuration object, should have been parsed by GenericOptionsParser
+   * @throws IOException
+   */
+  public HBaseTableCreator(Configuration conf_in)
+      throws MasterNotRunningException, ZooKeeperConnectionException, IOException  {
+    conf = HBaseConfiguration.create(conf_in);
     hba = new HBaseAdmin( conf );
   }
 
@@ -75,7 +92,7 @@ public class HBaseTableCreator {
    * tables used by the locstore package. Will silently ignore requests to construct exisiting tables.
    *
    * @param tableName  name of the HBase table to construct; either locstore.entity, locstore.geohash,
-   *                   locstore.triples or locstore.mcell
+   *                   locstore.triples, locstore.mcell, or the bucketed table
    * @throws IOException
    * @throws NoSuchFieldException
    * @throws IOException
@@ -87,15 +104,38 @@ public class HBaseTableCreator {
     else if (tableName.equals("locstore.mcell")) createThisTable(tableName, mcell_splits);
     else if (tableName.equals("locstore.triples")) createThisTable(tableName, triples_splits);
     else if (tableName.equals("locstore.venue")) createThisTable(tableName, venue_splits);
+    else if (tableName.equals(HBaseLoader.bucketedTable(conf))) {
+      createBucketed(tableName, conf.getInt(HBaseLoader.SALTS_KEY, 0));
+    }
     else throw new IOException("Invalid Table Name.");
   }
 
+  /**
+   * Create a geohash table keyed by GeoHashRowKey, such as the target of
+   * GeoHashMigrator. With salts, the table is split into one region per
+   * salt value; otherwise it starts as a single region, split by HBase as
+   * the buckets fill. Will silently ignore requests to construct exisiting
+   * tables.
+   *
+   * @param tableName  name of the HBase table to construct
+   * @param salts      number of salts of the row key layout, as in HBaseLoader.SALTS_KEY
+   * @throws IOException
+   * @throws NoSuchFieldException
+   * @throws IllegalAccessException
+   */
+  public void createBucketed(String tableName, int salts)
+      throws NoSuchFieldException, IOException, IllegalAccessException {
+    byte[][] splits = new byte[Math.max(0, salts - 1)][];
+    for (int i = 1; i < salts; i++) splits[i - 1] = new byte[] {(byte) i};
+    createThisTable(tableName, splits);
+  }
+
   /**
    * Disable and delete an HBase table. Will only act on one of the three tables used by the locstore
    * package. Will silently ignore requests to delete non-exisiting tables.
    *
    * @param tableName  name of the HBase table to disable and delete; either locstore.entity,
-   *                   locstore.geohash, locstore.triples or locstore.mcell
+   *                   locstore.geohash, locstore.triples, locstore.mcell, or the bucketed table
    * @throws IOException
    * @throws NoSuchFieldException
    * @throws IOException
@@ -107,16 +147,21 @@ public class HBaseTableCreator {
     else if (tableName.equals("locstore.mcell")) deleteThisTable(tableName);
     else if (tableName.equals("locstore.triples")) deleteThisTable(tableName);
     else if (tableName.equals("locstore.venue")) deleteThisTable(tableName);
+    else if (tableName.equals(HBaseLoader.bucketedTable(conf))) deleteThisTable(tableName);
     else throw new IOException("Invalid Table Name.");
   }
 
   private void createThisTable(String tableName, String[] splits)
       throws NoSuchFieldException, IOException, IllegalAccessException {
+    byte[][] bsplit = new byte[splits.length][];
+    for (int i = 0; i < splits.length; i++) bsplit[i] = splits[i].getBytes();
+    createThisTable(tableName, bsplit);
+  }
 
-    if (!hba.tableExists(tableName) ) {
-      byte[][] bsplit = new byte[splits.length][];
-      for (int i = 0; i < splits.length; i++) bsplit[i] = splits[i].getBytes();
+  private void createThisTable(String tableName, byte[][] bsplit)
+      throws NoSuchFieldException, IOException, IllegalAccessException {
 
+    if (!hba.tableExists(tableName) ) {
       TableName tn = TableName.valueOf(tableName);
       HTableDescriptor htd = new HTableDescriptor(tn);
 
@@ -129,7 +174,8 @@ public class HBaseTableCreator {
       hcd.setMinVersions(0);
       htd.addFamily(hcd);
 
-      hba.createTable(htd, bsplit);
+      if (bsplit.length == 0) hba.createTable(htd);
+      else hba.createTable(htd, bsplit);
     }
   }
 
@@ -0,0 +1,55 @@
+package com.att.research.geoStore;
+
+import java.util.Hashtable;
+
+/**
+ * Presents a mcell table in the serialized Hashtable form, whose rows
+ * hold the latitude, longitude, and geohash as strings, as a McellLookup.
+ * Coordinates which do not parse are NaN. The coordinates are parsed on
+ * each call, so this is meant for the fallback and test tables rather
+ * than the main parsing path, which uses McellIndex.
+ *
+ * @author Taylor Arnold
+ * @see McellLookup
+ * @since 0.9
+ */
+public final class HashtableMcellLookup implements McellLookup {
+
+  private final Hashtable<String, String[]> table;
+
+  public HashtableMcellLookup(Hashtable<String, String[]> table_in) {
+    table = table_in;
+  }
+
+  public boolean contains(String laccid) {
+    return row(laccid) != null;
+  }
+
+  public double getLat(String laccid) {
+    return parse(row(laccid), 0);
+  }
+
+  public double getLon(String laccid) {
+    return parse(row(laccid), 1);
+  }
+
+  public String getGeohash(String laccid) {
+    String[] row = row(laccid);
+    return (row == null || row.length < 3) ? null : row[2];
+  }
+
+  // Hashtable does not take null keys
+  private String[] row(String laccid) {
+    return (laccid == null) ? null : table.get(laccid);
+  }
+
+  private static double parse(String[] row, int column) {
+    if (row == null || row.length <= column || row[column] == null) return Double.NaN;
+    try {
+      return Double.parseDouble(row[column]);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+}
@@ -0,0 +1,213 @@
+package com.att.research.geoStore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Composite map output key for jobs which write one line per locate,
+ * sorted by entity and time. The key holds the imsi together with the
+ * flat record (as given by LocationRecord.createFlatRecord, which starts
+ * with the timestamp), and sorts by imsi, then numerically by timestamp,
+ * and finally by the bytes of the record. Used together with
+ * ImsiGroupingComparator and a partitioner on the imsi alone, reducers
+ * receive the records of an entity already in order and can stream them
+ * out; the map output value is NullWritable since the key carries the data.
+ *
+ * A raw comparator is registered for the class, so the shuffle sorts
+ * and merges serialized keys without deserializing them.
+ *
+ * @author Taylor Arnold
+ * @see Saver
+ * @see Aggregator
+ * @since 0.9
+ */
+public class ImsiRecordKey implements WritableComparable<ImsiRecordKey> {
+
+  /** timestamp value used for records without a leading numeric field */
+  public static final long MISSING_TS = Long.MIN_VALUE;
+
+  static {
+    WritableComparator.define(ImsiRecordKey.class, new Comparator());
+  }
+
+  private final Text imsi = new Text();
+  private final Text record = new Text();
+
+  public ImsiRecordKey() {
+  }
+
+  public ImsiRecordKey(String imsi_in, String record_in) {
+    set(imsi_in, record_in);
+  }
+
+  public void set(String imsi_in, String record_in) {
+    imsi.set(imsi_in);
+    record.set(record_in);
+  }
+
+  public Text getImsi() {
+    return imsi;
+  }
+
+  public Text getRecord() {
+    return record;
+  }
+
+  /**
+   * @return the timestamp at the start of the record, or MISSING_TS
+   */
+  public long getTs() {
+    return parseTs(record.getBytes(), 0, record.getLength());
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    imsi.write(out);
+    record.write(out);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    imsi.readFields(in);
+    record.readFields(in);
+  }
+
+  @Override
+  public int compareTo(ImsiRecordKey o) {
+    int cmp = imsi.compareTo(o.imsi);
+    if (cmp != 0) return cmp;
+    long t0 = getTs();
+    long t1 = o.getTs();
+    if (t0 != t1) return (t0 < t1) ? -1 : 1;
+    return record.compareTo(o.record);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ImsiRecordKey)) return false;
+    return imsi.equals(((ImsiRecordKey) o).imsi) && record.equals(((ImsiRecordKey) o).record);
+  }
+
+  @Override
+  public int hashCode() {
+    return imsi.hashCode() * 163 + record.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return imsi.toString() + "|" + record.toString();
+  }
+
+  /**
+   * Reads the integer in the first pipe-delimited field of a flat record.
+   *
+   * @param  b      array holding the record
+   * @param  start  offset of the record
+   * @param  len    length of the record in bytes
+   * @return the timestamp, or MISSING_TS if the field is empty or not an integer
+   */
+  public static long parseTs(byte[] b, int start, int len) {
+    int end = start + len;
+    int i = start;
+    boolean negative = false;
+    if (i < end && b[i] == '-') {
+      negative = true;
+      i++;
+    }
+    int first = i;
+    long val = 0;
+    for (; i < end && b[i] != '|'; i++) {
+      int d = b[i] - '0';
+      if (d < 0 || d > 9 || i - first >= 18) return MISSING_TS;
+      val = val * 10 + d;
+    }
+    if (i == first) return MISSING_TS;
+    return negative ? -val : val;
+  }
+
+  /**
+   * Compares serialized ImsiRecordKeys in the same order as compareTo.
+   */
+  public static class Comparator extends WritableComparator {
+
+    public Comparator() {
+      super(ImsiRecordKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      try {
+        int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+        int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+        int len1 = readVInt(b1, s1);
+        int len2 = readVInt(b2, s2);
+        int cmp = compareBytes(b1, s1 + n1, len1, b2, s2 + n2, len2);
+        if (cmp != 0) return cmp;
+
+        int r1 = s1 + n1 + len1;
+        int r2 = s2 + n2 + len2;
+        n1 = WritableUtils.decodeVIntSize(b1[r1]);
+        n2 = WritableUtils.decodeVIntSize(b2[r2]);
+        len1 = readVInt(b1, r1);
+        len2 = readVInt(b2, r2);
+        long t1 = parseTs(b1, r1 + n1, len1);
+        long t2 = parseTs(b2, r2 + n2, len2);
+        if (t1 != t2) return (t1 < t2) ? -1 : 1;
+        return compareBytes(b1, r1 + n1, len1, b2, r2 + n2, len2);
+      } catch (IOException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+  }
+
+}
+
+/**
+ * Groups ImsiRecordKeys by imsi alone, so that one call to reduce
+ * receives every record of an entity. Compares the serialized imsi
+ * bytes directly.
+ */
+class ImsiGroupingComparator extends WritableComparator {
+
+  protected ImsiGroupingComparator() {
+    super(ImsiRecordKey.class);
+  }
+
+  @Override
+  public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+    try {
+      int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+      int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+      return compareBytes(b1, s1 + n1, readVInt(b1, s1), b2, s2 + n2, readVInt(b2, s2));
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public int compare(WritableComparable a, WritableComparable b) {
+    return ((ImsiRecordKey) a).getImsi().compareTo(((ImsiRecordKey) b).getImsi());
+  }
+
+}
+
+/**
+ * Partitions ImsiRecordKeys on the imsi alone, in the same way as the
+ * default HashPartitioner does for a Text imsi key.
+ */
+class ImsiPartitioner extends Partitioner<ImsiRecordKey, NullWritable> {
+
+  @Override
+  public int getPartition(ImsiRecordKey key, NullWritable value, int numReduceTasks) {
+    return (key.getImsi().hashCode() & Integer.MAX_VALUE) % numReduceTasks;
+  }
+
+}
@@ -0,0 +1,329 @@
+package com.att.research.geoStore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The files found under a set of input roots, as attached to a job by
+ * MapRedJob.attachInputPath. Each file is described by an entry of the
+ * form "path|mtime|bytes", with the modification time in seconds, and
+ * covers the files directly under a root and those one directory further
+ * down (the layout of the hourly data lake directories). As with
+ * FileInputFormat, files and directories whose names start with "_" or
+ * "." (such as _SUCCESS and _logs) are left out.
+ *
+ * Listing is done with a bounded pool of threads, first over the roots
+ * and then over every subdirectory found, so that a driver attaching
+ * many roots with hundreds of subdirectories each is not limited by the
+ * round trip time to the namenode. Entries keep the order of the roots
+ * and of the directory listings.
+ *
+ * A manifest can be written to and read back from HDFS, so that a rerun
+ * for the same day sees the same entries. Each root carries a stamp of
+ * the names, modification times and sizes of everything listed under it,
+ * at both levels, so a file appended to or replaced inside a
+ * subdirectory changes the stamp even when the time of the root does
+ * not. isCurrent therefore lists the roots again to the same depth.
+ *
+ * @author Taylor Arnold
+ * @see MapRedJob
+ * @since 0.9
+ */
+public class InputManifest {
+
+  // Roots in the order attached; a null value marks a root which does not exist
+  private final Map<String, List<String>> roots = new LinkedHashMap<String, List<String>>();
+  private final Map<String, String> stamps = new HashMap<String, String>();
+
+  /**
+   * @return the roots of the manifest which exist, in the order they were listed
+   */
+  public List<String> getRoots() {
+    List<String> out = new ArrayList<String>();
+    for (Map.Entry<String, List<String>> e : roots.entrySet()) {
+      if (e.getValue() != null) out.add(e.getKey());
+    }
+    return out;
+  }
+
+  /**
+   * @return whether every root in paths has been listed in this manifest
+   */
+  public boolean covers(List<String> paths) {
+    return roots.keySet().containsAll(paths);
+  }
+
+  /**
+   * Checks that the roots have not changed since they were listed, by
+   * listing them again to the same depth as list.
+   *
+   * @param  fs        the filesystem holding the roots
+   * @param  paths     the roots to check
+   * @param  nthreads  maximum number of concurrent listing calls
+   * @return whether every root is in the manifest, and exists (or is
+   *         missing) with the same children as when listed
+   * @throws IOException
+   */
+  public boolean isCurrent(FileSystem fs, List<String> paths, int nthreads) throws IOException {
+    return covers(paths) && matches(list(fs, paths, nthreads), paths);
+  }
+
+  /**
+   * @return whether the roots in paths exist (or are missing) with the
+   *         same files in both manifests, as compared by their stamps
+   */
+  boolean matches(InputManifest now, List<String> paths) {
+    for (String path : paths) {
+      boolean existed = roots.get(path) != null;
+      boolean exists = now.roots.get(path) != null;
+      if (!exists && !existed) continue;
+      if (!exists || !existed) return false;
+      if (!now.stamps.get(path).equals(stamps.get(path))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param  root  one of the listed roots
+   * @return entries under the root, or null if the root does not exist
+   */
+  public List<String> getEntries(String root) {
+    return roots.get(root);
+  }
+
+  /**
+   * @return all of the entries of the manifest, in order
+   */
+  public List<String> getEntries() {
+    List<String> out = new ArrayList<String>();
+    for (List<String> entries : roots.values()) {
+      if (entries != null) out.addAll(entries);
+    }
+    return out;
+  }
+
+  /**
+   * Lists the given roots.
+   *
+   * @param  fs        the filesystem holding the roots
+   * @param  paths     the roots to list
+   * @param  nthreads  maximum number of concurrent listing calls
+   * @return the manifest of all files found
+   * @throws IOException
+   */
+  public static InputManifest list(final FileSystem fs, List<String> paths, int nthreads)
+      throws IOException {
+    InputManifest manifest = new InputManifest();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nthreads));
+    try {
+      List<Future<FileStatus[]>> top = new ArrayList<Future<FileStatus[]>>();
+      for (String path : paths) {
+        top.add(pool.submit(listTask(fs, new Path(path))));
+      }
+
+      // Subdirectories of every root are listed together in a second round
+      List<Object> slots = new ArrayList<Object>();
+      Map<String, FileStatus[]> tops = new HashMap<String, FileStatus[]>();
+      for (int i = 0; i < paths.size(); i++) {
+        FileStatus[] files = getListing(top.get(i));
+        if (files == null) {
+          manifest.roots.put(paths.get(i), null);
+          continue;
+        }
+        manifest.roots.put(paths.get(i), new ArrayList<String>());
+        tops.put(paths.get(i), files);
+        for (int j = 0; j < files.length; j++) {
+          if (files[j].isDirectory()) {
+            slots.add(pool.submit(listTask(fs, files[j].getPath())));
+          } else {
+            slots.add(files[j]);
+          }
+        }
+        slots.add(paths.get(i));
+      }
+
+      // Slots hold the files and pending listings of a root, followed by the root itself
+      List<String> entries = new ArrayList<String>();
+      List<FileStatus> below = new ArrayList<FileStatus>();
+      for (Object slot : slots) {
+        if (slot instanceof String) {
+          manifest.roots.get(slot).addAll(entries);
+          entries.clear();
+          below.addAll(0, Arrays.asList(tops.get(slot)));
+          manifest.stamps.put((String) slot, stamp(below.toArray(new FileStatus[below.size()])));
+          below.clear();
+        } else if (slot instanceof FileStatus) {
+          entries.add(entry((FileStatus) slot));
+        } else {
+          FileStatus[] sub = getListing((Future<FileStatus[]>) slot);
+          if (sub == null) continue;
+          for (int k = 0; k < sub.length; k++) entries.add(entry(sub[k]));
+          below.addAll(Arrays.asList(sub));
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return manifest;
+  }
+
+  /**
+   * Reads a manifest written by write.
+   *
+   * @throws IOException
+   */
+  public static InputManifest read(FileSystem fs, Path p) throws IOException {
+    InputManifest manifest = new InputManifest();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(p), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        if (tab < 0) continue;
+        String root = line.substring(0, tab);
+        String entry = line.substring(tab + 1);
+        if (entry.equals("-")) {
+          manifest.roots.put(root, null);
+          continue;
+        }
+        List<String> entries = manifest.roots.get(root);
+        if (entries == null) {
+          entries = new ArrayList<String>();
+          manifest.roots.put(root, entries);
+        }
+        if (entry.startsWith("#")) manifest.stamps.put(root, entry.substring(1));
+        else if (entry.length() > 0) entries.add(entry);
+      }
+    } finally {
+      reader.close();
+    }
+    return manifest;
+  }
+
+  /**
+   * Writes the manifest as one "root TAB entry" line per file; a root
+   * with no files has a single line with an empty entry, and a missing
+   * root has the entry "-". The stamp of a root is written as an entry
+   * starting with "#".
+   *
+   * @throws IOException
+   */
+  public void write(FileSystem fs, Path p) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(p, true), StandardCharsets.UTF_8));
+    try {
+      for (Map.Entry<String, List<String>> e : roots.entrySet()) {
+        if (e.getValue() == null) {
+          writer.write(e.getKey() + "\t-");
+          writer.newLine();
+        } else if (e.getValue().isEmpty()) {
+          writer.write(e.getKey() + "\t");
+          writer.newLine();
+        }
+        if (e.getValue() == null) continue;
+        if (stamps.containsKey(e.getKey())) {
+          writer.write(e.getKey() + "\t#" + stamps.get(e.getKey()));
+          writer.newLine();
+        }
+        for (String entry : e.getValue()) {
+          writer.write(e.getKey() + "\t" + entry);
+          writer.newLine();
+        }
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * @return the entry for a single file, in the form "path|mtime|bytes"
+   */
+  public static String entry(FileStatus f) {
+    String fname = f.getPath().getParent() + "/" + f.getPath().getName();
+    return fname + "|" + Long.toString(f.getModificationTime() / 1000) + "|" +
+           Long.toString(f.getLen());
+  }
+
+  /**
+   * @return the path of the file described by an entry
+   */
+  public static String entryPath(String entry) {
+    int end = entry.lastIndexOf('|', entry.lastIndexOf('|') - 1);
+    return entry.substring(0, end);
+  }
+
+  /**
+   * @return the size in bytes of the file described by an entry
+   */
+  public static long entryBytes(String entry) {
+    return Long.parseLong(entry.substring(entry.lastIndexOf('|') + 1));
+  }
+
+  /**
+   * @return whether a file or directory is hidden from jobs, as by FileInputFormat
+   */
+  static boolean hidden(String name) {
+    return name.startsWith("_") || name.startsWith(".");
+  }
+
+  // A 64 bit hash of the names, times and sizes of a listing
+  static String stamp(FileStatus[] files) {
+    long h = 1125899906842597L;
+    for (FileStatus f : files) {
+      String s = f.getPath().toString() + "|" + f.getModificationTime() + "|" + f.getLen();
+      for (int i = 0; i < s.length(); i++) h = 31 * h + s.charAt(i);
+    }
+    return Long.toHexString(h);
+  }
+
+  // Lists a directory without its hidden children; null if it does not exist
+  private static Callable<FileStatus[]> listTask(final FileSystem fs, final Path p) {
+    return new Callable<FileStatus[]>() {
+      public FileStatus[] call() throws IOException {
+        FileStatus[] all;
+        try {
+          all = fs.listStatus(p);
+        } catch (FileNotFoundException e) {
+          return null;
+        }
+        if (all == null) return null;
+        List<FileStatus> out = new ArrayList<FileStatus>();
+        for (FileStatus f : all) {
+          if (!hidden(f.getPath().getName())) out.add(f);
+        }
+        return out.toArray(new FileStatus[out.size()]);
+      }
+    };
+  }
+
+  private static FileStatus[] getListing(Future<FileStatus[]> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while listing input paths.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+}
@@ -141,6 +141,13 @@ public class LocationRecord
     parseCode = parseCode_in;
   }
 
+  /**
+   * Constructs an empty LocationRecord, with all fields set to their
+   * defaults. Generally used as a reusable target for LocationRecordParser.
+   */
+  public LocationRecord() {
+  }
+
   public LocationRecord(String rawRecord) {
       String[] line = rawRecord.split("\\|", -1);
 
@@ -0,0 +1,310 @@
+package com.att.research.geoStore;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A single pass parser for the pipe-delimited records written by
+ * LocationRecord.createRawRecord. Fields are located by scanning the
+ * backing byte array of a Hadoop Text object, so no regular expression,
+ * intermediate String array, or substring is created. Integers and
+ * doubles are decoded in place and empty or malformed fields are stored
+ * as null without throwing an exception.
+ *
+ * An instance keeps its scratch space between calls, and so should be
+ * reused by a mapper across calls to map; instances are not thread safe.
+ *
+ * The results are identical to those given by the String constructor of
+ * LocationRecord. Inputs outside of the simple ascii forms handled here
+ * (for example, doubles written in scientific notation) fall back to the
+ * same Java parsing methods used by that constructor.
+ *
+ * @author Taylor Arnold
+ * @see LocationRecord
+ * @see CompactLocationRecord
+ * @since 0.9
+ */
+public final class LocationRecordParser {
+
+  /** number of pipe-delimited fields in a raw record */
+  public static final int NUM_FIELDS = 20;
+
+  private static final byte DELIM = (byte) '|';
+
+  // Largest integer which is exactly representable as a double
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  // Powers of ten which are exactly representable as a double
+  private static final double[] POW10 = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private static final LocationType[] LOCATION_TYPES = LocationType.values();
+  private static final byte[][] LOCATION_TYPE_NAMES = enumNames(LOCATION_TYPES);
+  private static final ParseErrors[] PARSE_ERRORS = ParseErrors.values();
+  private static final byte[][] PARSE_ERROR_NAMES = enumNames(PARSE_ERRORS);
+
+  // Offsets of the first byte of each field; the last element is one past the end
+  private final int[] bounds = new int[NUM_FIELDS + 1];
+
+  // Target when parsing into a LocationRecord
+  private final CompactLocationRecord scratch = new CompactLocationRecord();
+
+  /**
+   * Parses the contents of a Text object into the given record.
+   *
+   * @param  rawRecord  a line written by LocationRecord.createRawRecord
+   * @param  lr         the record to fill; every field will be overwritten
+   * @return the record lr, for convenience
+   */
+  public LocationRecord parse(Text rawRecord, LocationRecord lr) {
+    return parse(rawRecord.getBytes(), 0, rawRecord.getLength(), lr);
+  }
+
+  /**
+   * Parses a UTF-8 encoded raw record, stored in a slice of a byte
+   * array, into the given record.
+   *
+   * @param  bytes   the array holding the record
+   * @param  start   offset of the first byte of the record
+   * @param  length  number of bytes in the record
+   * @param  lr      the record to fill; every field will be overwritten
+   * @return the record lr, for convenience
+   */
+  public LocationRecord parse(byte[] bytes, int start, int length, LocationRecord lr) {
+    return parse(bytes, start, length, scratch).toLocationRecord(lr);
+  }
+
+  /**
+   * Parses the contents of a Text object into the given primitive record.
+   *
+   * @param  rawRecord  a line written by LocationRecord.createRawRecord
+   * @param  lr         the record to fill; will be reset first
+   * @return the record lr, for convenience
+   */
+  public CompactLocationRecord parse(Text rawRecord, CompactLocationRecord lr) {
+    return parse(rawRecord.getBytes(), 0, rawRecord.getLength(), lr);
+  }
+
+  /**
+   * Reads a record from either of the raw formats: a Text line as written
+   * by TextOutputFormat, or a LocationRecordWritable from a SequenceFile.
+   * Lets a single mapper accept both.
+   *
+   * @param  value  a Text or LocationRecordWritable input value
+   * @param  lr     the record to fill when value is Text
+   * @return the parsed record; for a LocationRecordWritable this is the
+   *         record it wraps rather than lr
+   */
+  public CompactLocationRecord parse(Writable value, CompactLocationRecord lr) {
+    if (value instanceof LocationRecordWritable) {
+      return ((LocationRecordWritable) value).get();
+    }
+    return parse((Text) value, lr);
+  }
+
+  /**
+   * Parses a UTF-8 encoded raw record, stored in a slice of a byte
+   * array, into the given primitive record.
+   *
+   * @param  bytes   the array holding the record
+   * @param  start   offset of the first byte of the record
+   * @param  length  number of bytes in the record
+   * @param  lr      the record to fill; will be reset first
+   * @return the record lr, for convenience
+   */
+  public CompactLocationRecord parse(byte[] bytes, int start, int length,
+                                     CompactLocationRecord lr) {
+    lr.reset();
+
+    int end = start + length;
+    int nfield = 0;
+    bounds[0] = start;
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == DELIM) {
+        nfield++;
+        if (nfield >= NUM_FIELDS) {
+          lr.setParseCode(ParseErrors.BAD_INPUT_LINE);
+          return lr;
+        }
+        bounds[nfield] = i + 1;
+      }
+    }
+    if (nfield != NUM_FIELDS - 1) {
+      lr.setParseCode(ParseErrors.BAD_INPUT_LINE);
+      return lr;
+    }
+    bounds[NUM_FIELDS] = end + 1;
+
+    lr.imsi      = parseString(bytes, 0);
+    lr.imei      = parseString(bytes, 1);
+    lr.tnOrig    = parseString(bytes, 2);
+    lr.tnTerm    = parseString(bytes, 3);
+    lr.location  = parseString(bytes, 4);
+    lr.geohash   = parseString(bytes, 5);
+    lr.setType(parseEnum(bytes, 6, LOCATION_TYPES, LOCATION_TYPE_NAMES));
+    for (int c = 0; c < CompactLocationRecord.NUM_INTS; c++) {
+      parseInteger(bytes, 7 + c, lr, c);
+    }
+    parseDouble(bytes, 17, lr, CompactLocationRecord.LAT);
+    parseDouble(bytes, 18, lr, CompactLocationRecord.LON);
+    lr.setParseCode(parseEnum(bytes, 19, PARSE_ERRORS, PARSE_ERROR_NAMES));
+    return lr;
+  }
+
+  private String parseString(byte[] b, int field) {
+    int s = bounds[field];
+    int e = bounds[field + 1] - 1;
+    if (s == e) return null;
+    return decode(b, s, e);
+  }
+
+  private static String decode(byte[] b, int s, int e) {
+    if (isAscii(b, s, e)) {
+      return new String(b, s, e - s, StandardCharsets.ISO_8859_1);
+    }
+    try {
+      return Text.decode(b, s, e - s, true);
+    } catch (CharacterCodingException ex) {
+      // Not reachable when malformed input is replaced
+      return null;
+    }
+  }
+
+  private static boolean isAscii(byte[] b, int s, int e) {
+    for (int i = s; i < e; i++) {
+      if (b[i] < 0) return false;
+    }
+    return true;
+  }
+
+  private void parseInteger(byte[] b, int field, CompactLocationRecord lr, int column) {
+    int s = bounds[field];
+    int e = bounds[field + 1] - 1;
+    if (s == e) return;
+
+    // Non-ascii digits are accepted by Integer.parseInt; defer to it
+    if (!isAscii(b, s, e)) {
+      parseIntegerSlow(decode(b, s, e), lr, column);
+      return;
+    }
+
+    boolean negative = false;
+    int i = s;
+    if (b[i] == '-' || b[i] == '+') {
+      negative = (b[i] == '-');
+      i++;
+      if (i == e) return;
+    }
+
+    long limit = negative ? -((long) Integer.MIN_VALUE) : Integer.MAX_VALUE;
+    long val = 0;
+    for (; i < e; i++) {
+      int d = b[i] - '0';
+      if (d < 0 || d > 9) return;
+      val = val * 10 + d;
+      if (val > limit) return;
+    }
+    lr.setInt(column, (int) (negative ? -val : val));
+  }
+
+  private static void parseIntegerSlow(String input, CompactLocationRecord lr, int column) {
+    try {
+      lr.setInt(column, Integer.parseInt(input));
+    } catch (Exception e) {
+      return;
+    }
+  }
+
+  /*
+   * Decimal strings of the form [+-]ddd.ddd whose digits fit into an exactly
+   * representable mantissa, and with at most 22 digits after the decimal
+   * point, are converted with a single correctly rounded division by an
+   * exact power of ten. This gives precisely the value returned by
+   * Double.parseDouble. Everything else is handed to Double.parseDouble.
+   */
+  private void parseDouble(byte[] b, int field, CompactLocationRecord lr, int column) {
+    int s = bounds[field];
+    int e = bounds[field + 1] - 1;
+    if (s == e) return;
+
+    boolean negative = false;
+    int i = s;
+    if (b[i] == '-' || b[i] == '+') {
+      negative = (b[i] == '-');
+      i++;
+    }
+
+    long mantissa = 0;
+    int ndigits = 0;
+    int nfrac = 0;
+    boolean seenPoint = false;
+    for (; i < e; i++) {
+      byte c = b[i];
+      if (c >= '0' && c <= '9') {
+        mantissa = mantissa * 10 + (c - '0');
+        if (mantissa > MAX_EXACT_MANTISSA) {
+          parseDoubleSlow(decode(b, s, e), lr, column);
+          return;
+        }
+        ndigits++;
+        if (seenPoint) nfrac++;
+      } else if (c == '.' && !seenPoint) {
+        seenPoint = true;
+      } else {
+        parseDoubleSlow(decode(b, s, e), lr, column);
+        return;
+      }
+    }
+    if (ndigits == 0 || nfrac >= POW10.length) {
+      parseDoubleSlow(decode(b, s, e), lr, column);
+      return;
+    }
+
+    double val = (double) mantissa;
+    if (nfrac > 0) val = val / POW10[nfrac];
+    setDouble(lr, column, negative ? -val : val);
+  }
+
+  private static void parseDoubleSlow(String input, CompactLocationRecord lr, int column) {
+    try {
+      setDouble(lr, column, Double.parseDouble(input));
+    } catch (Exception e) {
+      return;
+    }
+  }
+
+  private static void setDouble(CompactLocationRecord lr, int column, double val) {
+    if (column == CompactLocationRecord.LAT) {
+      lr.setLat(val);
+    } else {
+      lr.setLon(val);
+    }
+  }
+
+  // Equivalent to Enum.valueOf, returning null rather than throwing on a miss
+  private <T extends Enum<T>> T parseEnum(byte[] b, int field, T[] values, byte[][] names) {
+    int s = bounds[field];
+    int len = bounds[field + 1] - 1 - s;
+    for (int j = 0; j < names.length; j++) {
+      byte[] name = names[j];
+      if (name.length != len) continue;
+      int k = 0;
+      while (k < len && name[k] == b[s + k]) k++;
+      if (k == len) return values[j];
+    }
+    return null;
+  }
+
+  private static byte[][] enumNames(Enum<?>[] values) {
+    byte[][] names = new byte[values.length][];
+    for (int j = 0; j < values.length; j++) {
+      names[j] = values[j].name().getBytes(StandardCharsets.UTF_8);
+    }
+    return names;
+  }
+
+}
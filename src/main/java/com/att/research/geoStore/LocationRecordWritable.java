@@ -0,0 +1,171 @@
+package com.att.research.geoStore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A compact binary serialization of a single location record, for
+ * passing records between jobs without formatting and re-parsing the
+ * pipe-delimited text. The serialized form is:
+ *
+ * <ul>
+ *   <li>a variable length null bitmap covering all twenty fields</li>
+ *   <li>each non-null string as a variable length byte count and UTF-8 bytes</li>
+ *   <li>the LocationType and ParseErrors ordinals as single bytes</li>
+ *   <li>each non-null integer attribute as a variable length int</li>
+ *   <li>latitude and longitude as fixed eight byte doubles</li>
+ * </ul>
+ *
+ * Records are ordered by imsi, timestamp, and sequence number.
+ *
+ * @author Taylor Arnold
+ * @see CompactLocationRecord
+ * @since 0.9
+ */
+public class LocationRecordWritable implements WritableComparable<LocationRecordWritable> {
+
+  // Null bits for the strings follow those of CompactLocationRecord's columns
+  private static final int IMSI_BIT = CompactLocationRecord.PARSE_CODE + 1;
+  private static final int IMEI_BIT = IMSI_BIT + 1;
+  private static final int TN_ORIG_BIT = IMSI_BIT + 2;
+  private static final int TN_TERM_BIT = IMSI_BIT + 3;
+  private static final int LOCATION_BIT = IMSI_BIT + 4;
+  private static final int GEOHASH_BIT = IMSI_BIT + 5;
+
+  private static final LocationType[] LOCATION_TYPES = LocationType.values();
+  private static final ParseErrors[] PARSE_ERRORS = ParseErrors.values();
+
+  private final CompactLocationRecord lr = new CompactLocationRecord();
+
+  public LocationRecordWritable() {
+  }
+
+  public LocationRecordWritable(CompactLocationRecord other) {
+    lr.set(other);
+  }
+
+  /**
+   * @return the underlying record; changes to it are reflected in this object
+   */
+  public CompactLocationRecord get() {
+    return lr;
+  }
+
+  public void set(CompactLocationRecord other) {
+    lr.set(other);
+  }
+
+  public void set(LocationRecord other) {
+    lr.set(other);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    int mask = 0;
+    for (int c = 0; c <= CompactLocationRecord.PARSE_CODE; c++) {
+      if (lr.isNull(c)) mask |= (1 << c);
+    }
+    if (lr.imsi == null) mask |= (1 << IMSI_BIT);
+    if (lr.imei == null) mask |= (1 << IMEI_BIT);
+    if (lr.tnOrig == null) mask |= (1 << TN_ORIG_BIT);
+    if (lr.tnTerm == null) mask |= (1 << TN_TERM_BIT);
+    if (lr.location == null) mask |= (1 << LOCATION_BIT);
+    if (lr.geohash == null) mask |= (1 << GEOHASH_BIT);
+    WritableUtils.writeVInt(out, mask);
+
+    if (lr.imsi != null) Text.writeString(out, lr.imsi);
+    if (lr.imei != null) Text.writeString(out, lr.imei);
+    if (lr.tnOrig != null) Text.writeString(out, lr.tnOrig);
+    if (lr.tnTerm != null) Text.writeString(out, lr.tnTerm);
+    if (lr.location != null) Text.writeString(out, lr.location);
+    if (lr.geohash != null) Text.writeString(out, lr.geohash);
+
+    if (!lr.isNull(CompactLocationRecord.TYPE)) out.writeByte(lr.getTypeCode());
+    if (!lr.isNull(CompactLocationRecord.PARSE_CODE)) out.writeByte(lr.getParseCode().ordinal());
+
+    for (int c = 0; c < CompactLocationRecord.NUM_INTS; c++) {
+      if (!lr.isNull(c)) WritableUtils.writeVInt(out, lr.getInt(c));
+    }
+    if (!lr.isNull(CompactLocationRecord.LAT)) out.writeDouble(lr.getLat());
+    if (!lr.isNull(CompactLocationRecord.LON)) out.writeDouble(lr.getLon());
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    lr.reset();
+    int mask = WritableUtils.readVInt(in);
+
+    if ((mask & (1 << IMSI_BIT)) == 0) lr.imsi = Text.readString(in);
+    if ((mask & (1 << IMEI_BIT)) == 0) lr.imei = Text.readString(in);
+    if ((mask & (1 << TN_ORIG_BIT)) == 0) lr.tnOrig = Text.readString(in);
+    if ((mask & (1 << TN_TERM_BIT)) == 0) lr.tnTerm = Text.readString(in);
+    if ((mask & (1 << LOCATION_BIT)) == 0) lr.location = Text.readString(in);
+    if ((mask & (1 << GEOHASH_BIT)) == 0) lr.geohash = Text.readString(in);
+
+    if ((mask & (1 << CompactLocationRecord.TYPE)) == 0) {
+      lr.setType(LOCATION_TYPES[in.readUnsignedByte()]);
+    } else {
+      lr.setType(null);
+    }
+    if ((mask & (1 << CompactLocationRecord.PARSE_CODE)) == 0) {
+      lr.setParseCode(PARSE_ERRORS[in.readUnsignedByte()]);
+    } else {
+      lr.setParseCode(null);
+    }
+
+    for (int c = 0; c < CompactLocationRecord.NUM_INTS; c++) {
+      if ((mask & (1 << c)) == 0) lr.setInt(c, WritableUtils.readVInt(in));
+    }
+    if ((mask & (1 << CompactLocationRecord.LAT)) == 0) lr.setLat(in.readDouble());
+    if ((mask & (1 << CompactLocationRecord.LON)) == 0) lr.setLon(in.readDouble());
+  }
+
+  @Override
+  public int compareTo(LocationRecordWritable o) {
+    CompactLocationRecord other = o.get();
+    int cmp = compareStrings(lr.imsi, other.imsi);
+    if (cmp != 0) return cmp;
+    cmp = compareColumn(other, CompactLocationRecord.TS);
+    if (cmp != 0) return cmp;
+    return compareColumn(other, CompactLocationRecord.SEQ);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof LocationRecordWritable)) return false;
+    return lr.createImsiKey().equals(((LocationRecordWritable) o).get().createImsiKey()) &&
+           lr.createRawRecord().equals(((LocationRecordWritable) o).get().createRawRecord());
+  }
+
+  @Override
+  public int hashCode() {
+    return lr.createImsiKey().hashCode() * 31 + lr.createRawRecord().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return lr.createImsiKey() + "|" + lr.createRawRecord();
+  }
+
+  // Nulls sort first
+  private static int compareStrings(String a, String b) {
+    if (a == null) return (b == null) ? 0 : -1;
+    if (b == null) return 1;
+    return a.compareTo(b);
+  }
+
+  private int compareColumn(CompactLocationRecord other, int column) {
+    boolean n0 = lr.isNull(column);
+    boolean n1 = other.isNull(column);
+    if (n0 || n1) return (n0 == n1) ? 0 : (n0 ? -1 : 1);
+    int a = lr.getInt(column);
+    int b = other.getInt(column);
+    return (a < b) ? -1 : ((a == b) ? 0 : 1);
+  }
+
+}
@@ -1,14 +1,21 @@
 package com.att.research.geoStore;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -17,6 +24,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -31,11 +40,93 @@ import org.apache.hadoop.mapreduce.Reducer;
  */
 public class MapRedJob {
 
+  /**
+   * Configuration key for the format of the parsed records under
+   * /projects/locstore/raw; either "text" (the default) for pipe-delimited
+   * lines, or "sequence" for SequenceFiles of LocationRecordWritable values.
+   * The same setting must be used when writing and when reading a given day.
+   */
+  public static final String RAW_FORMAT_KEY = "locstore.raw.format";
+
+  /**
+   * Configuration key for the class name of the codec used on map output,
+   * or "none"; may be suffixed with a job's class name (for example
+   * "locstore.compress.map.codec.Saver") to override a single job. When
+   * unset, the cluster's own map output settings are used. A fast codec
+   * such as SnappyCodec suits shuffle data, but needs the native library
+   * on every node.
+   */
+  public static final String MAP_CODEC_KEY = "locstore.compress.map.codec";
+
+  /**
+   * Configuration key for the class name of the codec used on the final
+   * output of jobs which compress it, or "none"; may be suffixed with a
+   * job's class name in the same way as MAP_CODEC_KEY.
+   */
+  public static final String OUTPUT_CODEC_KEY = "locstore.compress.output.codec";
+
+  /**
+   * Configuration key for the SequenceFile compression type of the final
+   * output; "BLOCK" (the default) or "RECORD". Ignored for text output.
+   */
+  public static final String OUTPUT_TYPE_KEY = "locstore.compress.output.type";
+
+  /** configuration key for the number of threads used to list input paths */
+  public static final String LISTING_THREADS_KEY = "locstore.input.listing.threads";
+
+  /**
+   * Configuration key for the number of seconds for which a cached listing
+   * of the input paths may be reused, as long as the roots have not changed
+   * since; 0 disables the cache.
+   */
+  public static final String LISTING_CACHE_TTL_KEY = "locstore.input.listing.cache.ttl";
+
+  /**
+   * Configuration key which, when true, has jobs reading the parsed records
+   * of a day use only the deltas written by incremental RawParser runs
+   * which the job has not yet consumed; see pendingDeltas.
+   */
+  public static final String DELTA_KEY = "locstore.input.delta";
+
+  /**
+   * Configuration key for an explicit number of reduce tasks, which turns
+   * off the sizing by input bytes; may be suffixed with a job's class name
+   * in the same way as MAP_CODEC_KEY.
+   */
+  public static final String REDUCERS_KEY = "locstore.reducers.count";
+
+  /**
+   * Configuration key for the number of input bytes to give each reduce
+   * task, or 0 to keep the number set by the job; may be suffixed with a
+   * job's class name in the same way as MAP_CODEC_KEY. Defaults to the
+   * job's bytesPerReducer.
+   */
+  public static final String BYTES_PER_REDUCER_KEY = "locstore.reducers.bytes";
+
+  /** configuration key for the largest number of reduce tasks given by the sizing */
+  public static final String MAX_REDUCERS_KEY = "locstore.reducers.max";
+
+  /** default final output codec; slow, but splittable for text output */
+  public static final String DEFAULT_OUTPUT_CODEC = "org.apache.hadoop.io.compress.BZip2Codec";
+
   protected String dt = "";
   protected String output_dir = "";
   protected String job_name = "";
   protected boolean logInputFlag = true;
   protected List<String> inputPathGlob = new ArrayList<String>();
+  protected List<String> inputRoots = new ArrayList<String>();
+  protected InputManifest inputManifest = null;
+
+  // When set, only files which are not in this listing are attached as input
+  protected Set<String> previousInputs = null;
+  protected List<String> deltaInputs = new ArrayList<String>();
+  // Deltas read by this job when DELTA_KEY is set, oldest first
+  protected List<String> pendingDeltas = null;
+
+  // Total size of the input attached so far, and whether it sets the number of reducers
+  protected long inputBytes = 0;
+  protected boolean sizeReducers = false;
+  protected long bytesPerReducer = 1L << 30;
 
   protected Configuration conf;
   protected Job job;
@@ -52,8 +143,58 @@ public class MapRedJob {
    * @throws ClassNotFoundException
    */
   public void run() throws IOException, InterruptedException, ClassNotFoundException {
+    if (!prepare()) return;
+    removeHdfsDirectory(output_dir);
+    finish(job.waitForCompletion(true));
+  }
+
+  /**
+   * Submits the job to the cluster and returns without waiting for it, as
+   * an alternative to run for drivers running several jobs at once. The
+   * driver must poll getJob().isComplete(), and then call finish with the
+   * result of getJob().isSuccessful().
+   *
+   * @return false if the job had nothing to do and was not submitted
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  public boolean submit() throws IOException, InterruptedException, ClassNotFoundException {
+    if (!prepare()) return false;
     removeHdfsDirectory(output_dir);
-    job.waitForCompletion(true);
+    job.submit();
+    return true;
+  }
+
+  /**
+   * @return the underlying hadoop job
+   */
+  public Job getJob() {
+    return job;
+  }
+
+  /**
+   * Called by run and submit before the job is submitted; resolves the
+   * input paths. Subclasses may extend it to finish configuring the job
+   * once its input is known.
+   *
+   * @return false if the job has nothing to do and should not be submitted
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  protected boolean prepare() throws IOException, InterruptedException {
+    resolveInputPaths();
+    return true;
+  }
+
+  /**
+   * Called once the job has completed, by run or by the driver which
+   * submitted it. Does nothing unless overridden.
+   *
+   * @param  success  whether the job succeeded
+   * @throws IOException
+   */
+  public void finish(boolean success) throws IOException {
   }
 
   /**
@@ -62,6 +203,7 @@ public class MapRedJob {
    *
    */
   public void currentInputPaths() throws FileNotFoundException, IOException {
+    resolveInputPaths();
     String[] inputPathGlobArray = new String[inputPathGlob.size()];
     inputPathGlob.toArray(inputPathGlobArray); // fill the array
 
@@ -77,7 +219,7 @@ public class MapRedJob {
     writer.close();
 
     if (logInputFlag) {
-      String outputLocation = "/projects/locstore/meta/log/input/" + dt + "/inputFiles.txt";
+      String outputLocation = inputLogDir() + "/inputFiles.txt";
       fs.delete(new Path(outputLocation), true);
       fs.copyFromLocalFile(true, true, new Path(tempFilename),
                            new Path(outputLocation));
@@ -85,48 +227,294 @@ public class MapRedJob {
   }
 
   protected void createHadoopConfig(boolean compress) throws IOException {
+    // The caller's configuration may be shared by the jobs of a day, so the
+    // settings of this job are made on a copy of it
+    conf = new Configuration(conf);
     conf.set("mapreduce.output.textoutputformat.separator", "|");
     conf.setLong("mapreduce.task.timeout", 60000000);
     conf.set("fs.permissions.umask-mode", "000");
 
-    if (compress) {
-      String compressCodecName = "org.apache.hadoop.io.compress.BZip2Codec";
-      conf.set("mapreduce.output.fileoutputformat.compress.type", "RECORD");
-      conf.set("mapreduce.output.fileoutputformat.compress","true");
-      conf.set("mapreduce.output.fileoutputformat.compress.codec", compressCodecName);
+    // Shuffle compression is left to the cluster unless a codec is chosen
+    String mapCodec = getJobSetting(MAP_CODEC_KEY, null);
+    if ("none".equals(mapCodec)) {
+      conf.set("mapreduce.map.output.compress", "false");
+    } else if (mapCodec != null) {
       conf.set("mapreduce.map.output.compress", "true");
-      conf.set("mapreduce.map.output.compress.codec", compressCodecName);
+      conf.set("mapreduce.map.output.compress.codec", mapCodec);
+    }
+
+    String outputCodec = getJobSetting(OUTPUT_CODEC_KEY, DEFAULT_OUTPUT_CODEC);
+    if (compress && !outputCodec.equals("none")) {
+      conf.set("mapreduce.output.fileoutputformat.compress.type",
+               getJobSetting(OUTPUT_TYPE_KEY, "BLOCK"));
+      conf.set("mapreduce.output.fileoutputformat.compress","true");
+      conf.set("mapreduce.output.fileoutputformat.compress.codec", outputCodec);
+    } else {
+      conf.set("mapreduce.output.fileoutputformat.compress","false");
     }
 
     fs = FileSystem.get(conf);
   }
 
+  /**
+   * Looks up a setting which may be overridden for a single job class. For
+   * example, "locstore.compress.map.codec.RawParser" takes precedence over
+   * "locstore.compress.map.codec" for the RawParser job.
+   *
+   * @param  key           the configuration key shared by all jobs
+   * @param  defaultValue  value used if neither key is set
+   */
+  protected String getJobSetting(String key, String defaultValue) {
+    return conf.get(key + "." + this.getClass().getSimpleName(), conf.get(key, defaultValue));
+  }
+
+  /**
+   * Whether the raw records are stored as SequenceFiles; see RAW_FORMAT_KEY.
+   */
+  protected boolean rawSequenceFormat() {
+    return conf.get(RAW_FORMAT_KEY, "text").equals("sequence");
+  }
+
+  /**
+   * The input format needed to read the raw records; see RAW_FORMAT_KEY.
+   */
+  protected Class<? extends InputFormat> rawInputFormat() {
+    if (rawSequenceFormat()) return SequenceFileInputFormat.class;
+    return TextInputFormat.class;
+  }
+
+  /**
+   * Attaches all of the files under a path, and those in its immediate
+   * subdirectories, as input to the job; nothing is attached if the path
+   * does not exist. The listing itself is deferred until the job is run
+   * (or currentInputPaths is called), when every attached path is listed
+   * at once by InputManifest.
+   */
   protected void attachInputPath(String path) throws IOException {
-    Path p = new Path(path);
-    if(fs.exists(p)) {
-      Path pAll = new Path(path + "/*");
-      FileInputFormat.addInputPath(job, pAll);
-      FileStatus[] files = fs.globStatus(pAll);
-      for (int i = 0; i < files.length; i++) {
-        if (files[i].isDirectory()) {
-          Path newPath = files[i].getPath();
-          String newPathName = newPath.getParent() + "/" + newPath.getName() + "/*";
-          FileStatus[] filesSub = fs.globStatus(new Path(newPathName));
-          for (int j = 0; j < filesSub.length; j++) {
-            String fname = filesSub[j].getPath().getParent() + "/" +
-                           (filesSub[j].getPath()).getName();
-            String modTime = Long.toString(filesSub[j].getModificationTime() / 1000);
-            String byteSize = Long.toString(filesSub[j].getLen());
-            inputPathGlob.add(fname + "|" + modTime + "|" + byteSize);
-          }
+    inputRoots.add(path);
+  }
+
+  /**
+   * Attaches the files matching a glob as input to the job, and adds
+   * their size to the input used to set the number of reducers. Unlike
+   * attachInputPath the glob is added as given, and matched again by the
+   * input format when the job is submitted.
+   */
+  protected void attachInputGlob(String glob) throws IOException {
+    FileInputFormat.addInputPath(job, new Path(glob));
+    FileStatus[] files = fs.globStatus(new Path(glob));
+    if (files == null) return;
+    for (FileStatus f : files) {
+      if (f.isDirectory()) {
+        inputBytes += fs.getContentSummary(f.getPath()).getLength();
+      } else {
+        inputBytes += f.getLen();
+      }
+    }
+  }
+
+  /**
+   * Lists the attached input paths and adds those which exist to the job.
+   * The listing is cached under /projects/locstore/meta/log/input/dt, and
+   * a cached listing younger than LISTING_CACHE_TTL_KEY seconds is kept
+   * if listing the roots again finds every file under them unchanged (see
+   * InputManifest.isCurrent); otherwise the new listing replaces it, as
+   * for roots rewritten by an earlier job or with new files. Once the input is
+   * known, the number of reducers is set from its size; see setReducers.
+   * Does nothing after the first call.
+   */
+  protected void resolveInputPaths() throws IOException {
+    if (inputManifest != null) return;
+
+    long ttl = conf.getLong(LISTING_CACHE_TTL_KEY, 3600) * 1000;
+    boolean useCache = logInputFlag && ttl > 0 && !inputRoots.isEmpty();
+    Path cache = new Path(inputLogDir() + "/listing-" + this.getClass().getSimpleName() + ".txt");
+    if (useCache && previousInputs == null && fs.exists(cache) &&
+        System.currentTimeMillis() - fs.getFileStatus(cache).getModificationTime() < ttl) {
+      InputManifest cached = InputManifest.read(fs, cache);
+      if (cached.covers(inputRoots)) {
+        // The same listing decides whether the cache holds and otherwise replaces it
+        InputManifest listed = InputManifest.list(fs, inputRoots, conf.getInt(LISTING_THREADS_KEY, 16));
+        if (cached.matches(listed, inputRoots)) {
+          inputManifest = cached;
         } else {
-          String fname = files[i].getPath().getParent() + "/" + (files[i].getPath()).getName() ;
-          String modTime = Long.toString(files[i].getModificationTime() / 1000);
-          String byteSize = Long.toString(files[i].getLen());
-          inputPathGlob.add(fname + "|" + modTime + "|" + byteSize);
+          inputManifest = listed;
+          inputManifest.write(fs, cache);
         }
       }
     }
+    if (inputManifest == null) {
+      inputManifest = InputManifest.list(fs, inputRoots, conf.getInt(LISTING_THREADS_KEY, 16));
+      if (useCache) inputManifest.write(fs, cache);
+    }
+
+    for (String root : inputRoots) {
+      List<String> entries = inputManifest.getEntries(root);
+      if (entries == null) continue;
+      inputPathGlob.addAll(entries);
+      if (previousInputs == null) {
+        FileInputFormat.addInputPath(job, new Path(root + "/*"));
+        for (String entry : entries) inputBytes += InputManifest.entryBytes(entry);
+        continue;
+      }
+      for (String entry : entries) {
+        if (previousInputs.contains(entry)) continue;
+        FileInputFormat.addInputPath(job, new Path(InputManifest.entryPath(entry)));
+        deltaInputs.add(entry);
+        inputBytes += InputManifest.entryBytes(entry);
+      }
+    }
+    setReducers();
+  }
+
+  /**
+   * Sets the number of reduce tasks of a job with a reducer. An explicit
+   * REDUCERS_KEY is used as given; otherwise, there is one reducer for
+   * every BYTES_PER_REDUCER_KEY bytes of input (1GB unless the job sets
+   * bytesPerReducer), between 1 and MAX_REDUCERS_KEY (default 1000). Jobs
+   * without a reducer, and those whose number of reducers is left to the
+   * output format, are not changed.
+   */
+  protected void setReducers() {
+    if (!sizeReducers) return;
+    String fixed = getJobSetting(REDUCERS_KEY, null);
+    if (fixed != null) {
+      job.setNumReduceTasks(Integer.parseInt(fixed.trim()));
+      return;
+    }
+    long perReducer = Long.parseLong(getJobSetting(BYTES_PER_REDUCER_KEY,
+                                                   Long.toString(bytesPerReducer)).trim());
+    if (perReducer <= 0) return;
+    long n = (inputBytes + perReducer - 1) / perReducer;
+    n = Math.min(n, conf.getInt(MAX_REDUCERS_KEY, 1000));
+    job.setNumReduceTasks((int) Math.max(1, n));
+  }
+
+  /**
+   * @return the directory holding the input logs of the day, dt
+   */
+  protected String inputLogDir() {
+    return "/projects/locstore/meta/log/input/" + dt;
+  }
+
+  /**
+   * Reads the entries written by the last call to currentInputPaths
+   * for the day.
+   *
+   * @return the entries, or null if no input has been logged
+   */
+  protected Set<String> readInputLog() throws IOException {
+    List<String> lines = readLines(new Path(inputLogDir() + "/inputFiles.txt"));
+    return (lines == null) ? null : new HashSet<String>(lines);
+  }
+
+  /**
+   * Finds the deltas of the day which this job has yet to read. Each
+   * incremental RawParser run appends its delta to delta.txt in the input
+   * log directory of the day, and each consumer of the deltas (see
+   * deltaConsumers) keeps a watermark there, the name of the last delta it
+   * has read; delta names sort in the order of the runs. The list is
+   * taken once, so deltas written while the job runs are left for the next
+   * run.
+   *
+   * @return names of the directories, under /projects/locstore/raw/dt, of
+   *         the incremental runs after the watermark, oldest first
+   * @throws IOException if there has been no incremental run, or none since
+   *         the last one consumed
+   */
+  protected List<String> pendingDeltas() throws IOException {
+    if (pendingDeltas != null) return pendingDeltas;
+    List<String> all = readLines(new Path(inputLogDir() + "/delta.txt"));
+    if (all == null || all.isEmpty()) throw new IOException("No incremental run recorded for " + dt + ".");
+    Collections.sort(all);
+
+    // A job consuming for several tables starts from the earliest of their watermarks
+    String mark = null;
+    for (String consumer : deltaConsumers()) {
+      List<String> lines = readLines(watermarkPath(consumer));
+      String m = (lines == null || lines.isEmpty()) ? "" : lines.get(0);
+      if (mark == null || m.compareTo(mark) < 0) mark = m;
+    }
+    List<String> out = new ArrayList<String>();
+    for (String d : all) {
+      if (d.compareTo(mark) > 0) out.add(d);
+    }
+    if (out.isEmpty()) throw new IOException("No incremental run for " + dt + " after " + mark + ".");
+    pendingDeltas = out;
+    return out;
+  }
+
+  /**
+   * @return the names under which the delta watermarks of this job are
+   *         kept; by default the class name of the job
+   */
+  protected String[] deltaConsumers() {
+    return new String[] {this.getClass().getSimpleName()};
+  }
+
+  /**
+   * Moves the watermarks of this job past the deltas it has read, so that
+   * they are not read again. To be called once the output of the job is in
+   * place; does nothing unless pendingDeltas was used.
+   *
+   * @throws IOException
+   */
+  protected void commitDeltas() throws IOException {
+    if (pendingDeltas == null) return;
+    List<String> mark = new ArrayList<String>();
+    mark.add(pendingDeltas.get(pendingDeltas.size() - 1));
+    for (String consumer : deltaConsumers()) writeLines(watermarkPath(consumer), mark);
+  }
+
+  private Path watermarkPath(String consumer) {
+    return new Path(inputLogDir() + "/delta-" + consumer + ".txt");
+  }
+
+  /**
+   * Attaches the parsed records of the day as input: the whole of
+   * /projects/locstore/raw/dt (which includes any deltas), or only the
+   * deltas not yet read by this job when DELTA_KEY is set.
+   */
+  protected void attachRawInput() throws IOException {
+    if (!conf.getBoolean(DELTA_KEY, false)) {
+      attachInputPath("/projects/locstore/raw/" + dt);
+      return;
+    }
+    for (String d : pendingDeltas()) attachInputPath("/projects/locstore/raw/" + dt + "/" + d);
+  }
+
+  /**
+   * @return the non-empty lines of a small HDFS file, or null if it does not exist
+   */
+  protected List<String> readLines(Path p) throws IOException {
+    if (!fs.exists(p)) return null;
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(p), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0) lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Replaces a small HDFS file with the given lines.
+   */
+  protected void writeLines(Path p, List<String> lines) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(p, true), StandardCharsets.UTF_8));
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
   }
 
   protected void addCache(String path) throws IOException {
@@ -158,6 +546,7 @@ public class MapRedJob {
     }
     if (inputFormat != null) job.setInputFormatClass(inputFormat);
     if (numReducers >= 0) job.setNumReduceTasks(numReducers);
+    sizeReducers = (reducer != null && numReducers > 0);
 
     FileOutputFormat.setOutputPath(job, new Path(output_dir));
   }
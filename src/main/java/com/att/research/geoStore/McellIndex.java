@@ -0,0 +1,583 @@
+package com.att.research.geoStore;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A read-only binary index of the mcell table, mapping a LACCID to the
+ * latitude, longitude, and geohash of its tower. It replaces the
+ * serialized Hashtable which each map task of RawParser otherwise reads
+ * with an ObjectInputStream: the file is memory-mapped, so opening it
+ * costs nothing, the data lives outside of the heap, and tasks on the
+ * same node share a single copy in the page cache.
+ *
+ * The file is made of a header (magic number, version, number of cells,
+ * and total key bytes), the offsets of each key, the UTF-8 keys sorted
+ * by their bytes, the latitudes and longitudes as doubles, and the
+ * geohashes as a length byte followed by up to GEOHASH_BYTES - 1 ascii
+ * bytes. All numbers are big-endian. Lookups are a binary search over
+ * the keys.
+ *
+ * Lookups use only absolute reads of the buffer, so a single instance
+ * may be shared by several threads. The positions of recently seen keys
+ * may be kept in a small LRU cache for each thread, so that a tower which
+ * recurs, and the reads of each field of a cell, skip the search.
+ *
+ * @author Taylor Arnold
+ * @see RawParser
+ * @since 0.9
+ */
+public final class McellIndex implements McellLookup {
+
+  /** first four bytes of an index file, "MCEL" */
+  public static final int MAGIC = 0x4d43454c;
+
+  /** version of the file format written by write */
+  public static final int VERSION = 1;
+
+  /** bytes used by the geohash of each cell, including the length byte */
+  public static final int GEOHASH_BYTES = 12;
+
+  private static final int HEADER_BYTES = 16;
+
+  private final ByteBuffer buf;
+  private final int size;
+  private final int keysStart;
+  private final int latStart;
+  private final int lonStart;
+  private final int geohashStart;
+  private final ThreadLocal<LruCache<String, Integer>> positions;
+
+  /**
+   * Wraps an index which has already been read or mapped into a buffer.
+   *
+   * @throws IOException if the buffer does not hold an index
+   */
+  public McellIndex(ByteBuffer buffer) throws IOException {
+    this(buffer, 0);
+  }
+
+  /**
+   * Wraps an index which has already been read or mapped into a buffer.
+   *
+   * @param  cacheSize  number of key positions each thread keeps for the
+   *                    lookups by key; 0 for none
+   * @throws IOException if the buffer does not hold an index
+   */
+  public McellIndex(ByteBuffer buffer, final int cacheSize) throws IOException {
+    buf = buffer;
+    if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+      throw new IOException("Not an mcell index of version " + VERSION + ".");
+    }
+    size = buf.getInt(8);
+    int keyBytes = buf.getInt(12);
+    keysStart = HEADER_BYTES + 4 * (size + 1);
+    latStart = keysStart + keyBytes;
+    lonStart = latStart + 8 * size;
+    geohashStart = lonStart + 8 * size;
+    if (cacheSize <= 0) {
+      positions = null;
+    } else {
+      positions = new ThreadLocal<LruCache<String, Integer>>() {
+        @Override
+        protected LruCache<String, Integer> initialValue() {
+          return new LruCache<String, Integer>(cacheSize);
+        }
+      };
+    }
+  }
+
+  /**
+   * Memory-maps an index file read-only.
+   *
+   * @throws IOException
+   */
+  public static McellIndex open(File f) throws IOException {
+    return open(f, 0);
+  }
+
+  /**
+   * Memory-maps an index file read-only.
+   *
+   * @param  cacheSize  number of key positions each thread keeps; 0 for none
+   * @throws IOException
+   */
+  public static McellIndex open(File f, int cacheSize) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return new McellIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cacheSize);
+    } finally {
+      // The mapping remains valid after the file is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * @return number of cells in the index
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param  laccid  the key of the cell
+   * @return the position of the cell, or -1 if it is not in the index
+   */
+  public int find(String laccid) {
+    byte[] encoded = isAscii(laccid) ? null : laccid.getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = (encoded == null) ? compareKey(mid, laccid) : compareKey(mid, encoded);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the latitude of the cell at position i; NaN if the table had none
+   */
+  public double getLat(int i) {
+    return buf.getDouble(latStart + 8 * i);
+  }
+
+  /**
+   * @return the longitude of the cell at position i; NaN if the table had none
+   */
+  public double getLon(int i) {
+    return buf.getDouble(lonStart + 8 * i);
+  }
+
+  /**
+   * @return the geohash of the cell at position i, or null if the table had none
+   */
+  public String getGeohash(int i) {
+    int p = geohashStart + GEOHASH_BYTES * i;
+    int len = buf.get(p);
+    if (len == 0) return null;
+    char[] c = new char[len - 1];
+    for (int k = 0; k < c.length; k++) c[k] = (char) buf.get(p + 1 + k);
+    return new String(c);
+  }
+
+  public boolean contains(String laccid) {
+    return position(laccid) >= 0;
+  }
+
+  public double getLat(String laccid) {
+    int i = position(laccid);
+    return (i < 0) ? Double.NaN : getLat(i);
+  }
+
+  public double getLon(String laccid) {
+    int i = position(laccid);
+    return (i < 0) ? Double.NaN : getLon(i);
+  }
+
+  public String getGeohash(String laccid) {
+    int i = position(laccid);
+    return (i < 0) ? null : getGeohash(i);
+  }
+
+  // As find, through the cache of the calling thread; misses are cached too
+  private int position(String laccid) {
+    if (laccid == null) return -1;
+    if (positions == null) return find(laccid);
+    LruCache<String, Integer> cache = positions.get();
+    Integer i = cache.get(laccid);
+    if (i == null) {
+      i = find(laccid);
+      cache.put(laccid, i);
+    }
+    return i;
+  }
+
+  /**
+   * @return the key of the cell at position i
+   */
+  public String getKey(int i) {
+    int s = buf.getInt(HEADER_BYTES + 4 * i);
+    int e = buf.getInt(HEADER_BYTES + 4 * (i + 1));
+    byte[] b = new byte[e - s];
+    for (int k = 0; k < b.length; k++) b[k] = buf.get(keysStart + s + k);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes an index of an mcell table, whose rows hold the latitude,
+   * longitude, and geohash as strings. Coordinates which do not parse
+   * are stored as NaN, and geohashes too long to store as null. Rows
+   * with coordinates but no geohash are given one by GeoHashEncoder.
+   *
+   * @param  table  the mcell table
+   * @param  out    stream to write to; not closed
+   * @throws IOException
+   */
+  public static void write(Map<String, String[]> table, OutputStream out) throws IOException {
+    byte[][] keys = new byte[table.size()][];
+    String[][] rows = new String[table.size()][];
+    Integer[] order = new Integer[table.size()];
+    int n = 0;
+    for (Map.Entry<String, String[]> e : table.entrySet()) {
+      keys[n] = e.getKey().getBytes(StandardCharsets.UTF_8);
+      rows[n] = e.getValue();
+      order[n] = n;
+      n++;
+    }
+    final byte[][] sortKeys = keys;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return compareBytes(sortKeys[a], sortKeys[b]);
+      }
+    });
+
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+    int keyBytes = 0;
+    for (int i = 0; i < n; i++) keyBytes += keys[i].length;
+    dos.writeInt(MAGIC);
+    dos.writeInt(VERSION);
+    dos.writeInt(n);
+    dos.writeInt(keyBytes);
+
+    int offset = 0;
+    for (int i = 0; i < n; i++) {
+      dos.writeInt(offset);
+      offset += keys[order[i]].length;
+    }
+    dos.writeInt(offset);
+    for (int i = 0; i < n; i++) dos.write(keys[order[i]]);
+    for (int i = 0; i < n; i++) dos.writeDouble(parseCoordinate(rows[order[i]], 0));
+    for (int i = 0; i < n; i++) dos.writeDouble(parseCoordinate(rows[order[i]], 1));
+
+    byte[] geohash = new byte[GEOHASH_BYTES];
+    for (int i = 0; i < n; i++) {
+      Arrays.fill(geohash, (byte) 0);
+      String[] row = rows[order[i]];
+      String gh = (row != null && row.length > 2) ? row[2] : null;
+      if (gh == null || gh.isEmpty()) {
+        double lat = parseCoordinate(row, 0);
+        double lon = parseCoordinate(row, 1);
+        if (Math.abs(lat) <= 90 && Math.abs(lon) <= 180) gh = GeoHashEncoder.encode(lat, lon);
+      }
+      if (gh != null && gh.length() < GEOHASH_BYTES && isAscii(gh)) {
+        geohash[0] = (byte) (gh.length() + 1);
+        for (int k = 0; k < gh.length(); k++) geohash[k + 1] = (byte) gh.charAt(k);
+      }
+      dos.write(geohash);
+    }
+    dos.flush();
+  }
+
+  /**
+   * Converts a serialized Hashtable mcell table, as used by the
+   * distributed cache file mcell_hashtable, into an index file.
+   *
+   * @param  fs      filesystem holding both files
+   * @param  input   the serialized Hashtable
+   * @param  output  the index to write
+   * @return number of cells written
+   * @throws IOException
+   */
+  public static int convert(FileSystem fs, Path input, Path output) throws IOException {
+    Hashtable<String, String[]> table;
+    ObjectInputStream ois = new ObjectInputStream(fs.open(input));
+    try {
+      table = (Hashtable<String, String[]>) ois.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Bad mcell table " + input + ".");
+    } finally {
+      ois.close();
+    }
+
+    OutputStream out = fs.create(output, true);
+    try {
+      write(table, out);
+    } finally {
+      out.close();
+    }
+    return table.size();
+  }
+
+  /**
+   * Converts a table as convert does, but writes the index beside the
+   * output under a temporary name and then renames it, so that readers
+   * never see a partial file.
+   *
+   * @param  fs      filesystem holding both files
+   * @param  input   the serialized Hashtable
+   * @param  output  the index to write or replace
+   * @return number of cells written
+   * @throws IOException
+   */
+  public static int replace(FileSystem fs, Path input, Path output) throws IOException {
+    Path tmp = new Path(output.getParent(), "_" + output.getName() + "." + UUID.randomUUID().toString());
+    int ncells = convert(fs, input, tmp);
+    fs.delete(output, false);
+    if (!fs.rename(tmp, output)) {
+      fs.delete(tmp, false);
+      throw new IOException("Could not create " + output + ".");
+    }
+    return ncells;
+  }
+
+  private int compareKey(int i, String key) {
+    int s = keysStart + buf.getInt(HEADER_BYTES + 4 * i);
+    int len = buf.getInt(HEADER_BYTES + 4 * (i + 1)) - buf.getInt(HEADER_BYTES + 4 * i);
+    int n = Math.min(len, key.length());
+    for (int k = 0; k < n; k++) {
+      int d = (buf.get(s + k) & 0xff) - key.charAt(k);
+      if (d != 0) return d;
+    }
+    return len - key.length();
+  }
+
+  private int compareKey(int i, byte[] key) {
+    int s = keysStart + buf.getInt(HEADER_BYTES + 4 * i);
+    int len = buf.getInt(HEADER_BYTES + 4 * (i + 1)) - buf.getInt(HEADER_BYTES + 4 * i);
+    int n = Math.min(len, key.length);
+    for (int k = 0; k < n; k++) {
+      int d = (buf.get(s + k) & 0xff) - (key[k] & 0xff);
+      if (d != 0) return d;
+    }
+    return len - key.length;
+  }
+
+  private static int compareBytes(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int k = 0; k < n; k++) {
+      int d = (a[k] & 0xff) - (b[k] & 0xff);
+      if (d != 0) return d;
+    }
+    return a.length - b.length;
+  }
+
+  private static boolean isAscii(String s) {
+    for (int k = 0; k < s.length(); k++) {
+      if (s.charAt(k) >= 0x80) return false;
+    }
+    return true;
+  }
+
+  private static double parseCoordinate(String[] row, int column) {
+    if (row == null || row.length <= column || row[column] == null) return Double.NaN;
+    try {
+      return Double.parseDouble(row[column]);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+}
+
+/**
+ * Presents a McellLookup through the Hashtable interface taken by
+ * LocationMultiRecord, whose rows hold the latitude, longitude, and
+ * geohash as strings. Only the lookups get and containsKey, and size and
+ * isEmpty, are supported; the methods which would list or change the
+ * table throw UnsupportedOperationException, rather than answer from
+ * the empty table the class inherits. Coordinates are formatted by
+ * Double.toString, which parses back to the same values as the strings
+ * in the original table, with null in place of missing values. Unlike
+ * Hashtable, get is not synchronized.
+ *
+ * Rows of recently seen cells are kept in a small LRU cache for each
+ * thread, so a tower which recurs skips the lookup and the formatting.
+ */
+class McellLookupTable extends Hashtable<String, String[]> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final McellLookup lookup;
+  private final int size;
+  private final ThreadLocal<LruCache<String, String[]>> cache;
+
+  McellLookupTable(McellLookup lookup_in, int size_in, final int cacheSize) {
+    lookup = lookup_in;
+    size = size_in;
+    cache = new ThreadLocal<LruCache<String, String[]>>() {
+      @Override
+      protected LruCache<String, String[]> initialValue() {
+        return new LruCache<String, String[]>(cacheSize);
+      }
+    };
+  }
+
+  McellLookupTable(McellIndex index, int cacheSize) {
+    this(index, index.size(), cacheSize);
+  }
+
+  @Override
+  public String[] get(Object key) {
+    if (!(key instanceof String)) return null;
+    LruCache<String, String[]> rows = cache.get();
+    String[] row = rows.get(key);
+    if (row == null) {
+      row = row((String) key);
+      if (row != null && rows.capacity() > 0) rows.put((String) key, row);
+    }
+    return row;
+  }
+
+  private String[] row(String key) {
+    if (!lookup.contains(key)) return null;
+    double lat = lookup.getLat(key);
+    double lon = lookup.getLon(key);
+    return new String[] {
+      Double.isNaN(lat) ? null : Double.toString(lat),
+      Double.isNaN(lon) ? null : Double.toString(lon),
+      lookup.getGeohash(key)};
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return (key instanceof String) && lookup.contains((String) key);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public String[] put(String key, String[] value) {
+    throw readOnly();
+  }
+
+  @Override
+  public String[] remove(Object key) {
+    throw readOnly();
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends String[]> m) {
+    throw readOnly();
+  }
+
+  @Override
+  public void clear() {
+    throw readOnly();
+  }
+
+  @Override
+  public Enumeration<String> keys() {
+    throw notListed();
+  }
+
+  @Override
+  public Enumeration<String[]> elements() {
+    throw notListed();
+  }
+
+  @Override
+  public Set<String> keySet() {
+    throw notListed();
+  }
+
+  @Override
+  public Set<Map.Entry<String, String[]>> entrySet() {
+    throw notListed();
+  }
+
+  @Override
+  public Collection<String[]> values() {
+    throw notListed();
+  }
+
+  @Override
+  public boolean contains(Object value) {
+    throw notListed();
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    throw notListed();
+  }
+
+  @Override
+  public synchronized Object clone() {
+    throw notListed();
+  }
+
+  @Override
+  public synchronized boolean equals(Object o) {
+    return o == this;
+  }
+
+  @Override
+  public synchronized int hashCode() {
+    return System.identityHashCode(this);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "McellLookupTable[" + size + " cells]";
+  }
+
+  private static UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("The mcell table is read-only.");
+  }
+
+  private static UnsupportedOperationException notListed() {
+    return new UnsupportedOperationException("The mcell table only supports lookups.");
+  }
+
+}
+
+/**
+ * A LinkedHashMap in access order which drops its least recently used
+ * entry once it holds more than a fixed number.
+ */
+class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int capacity;
+
+  LruCache(int capacity_in) {
+    super(16, 0.75f, true);
+    capacity = capacity_in;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  @Override
+  protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+    return size() > capacity;
+  }
+
+}
@@ -0,0 +1,35 @@
+package com.att.research.geoStore;
+
+/**
+ * Read-only lookup of the mcell table, from a LACCID to the latitude,
+ * longitude, and geohash of its tower. Implemented by McellIndex, and by
+ * HashtableMcellLookup over the serialized Hashtable table.
+ *
+ * @author Taylor Arnold
+ * @see McellIndex
+ * @see HashtableMcellLookup
+ * @since 0.9
+ */
+public interface McellLookup {
+
+  /**
+   * @return whether the table holds a cell
+   */
+  boolean contains(String laccid);
+
+  /**
+   * @return the latitude of a cell; NaN if it is missing or has none
+   */
+  double getLat(String laccid);
+
+  /**
+   * @return the longitude of a cell; NaN if it is missing or has none
+   */
+  double getLon(String laccid);
+
+  /**
+   * @return the geohash of a cell, or null if it is missing or has none
+   */
+  String getGeohash(String laccid);
+
+}
@@ -5,20 +5,35 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.mapreduce.Mapper;
 
 /**
  * Method for running a map reduce job to pull the raw data records
  * from the data lake. The output consists of one row per locate in
  * a consistent format across locate types; the output is not reduced
- * or sorted in any way.
+ * or sorted in any way. Setting MapRedJob.RAW_FORMAT_KEY to "sequence"
+ * writes block compressed SequenceFiles of LocationRecordWritable
+ * values in place of pipe-delimited text.
  *
  * @author Taylor Arnold
  * @see MapRedJob
@@ -26,6 +41,59 @@ import org.apache.hadoop.mapreduce.Mapper;
  */
 public class RawParser extends MapRedJob {
 
+  /**
+   * Configuration key which, when true, runs RawParser incrementally:
+   * only input files which are new or changed since the manifest logged
+   * by the last run for the day are parsed, into a new delta directory
+   * /projects/locstore/raw/dt/delta-yyyyMMddHHmmss. Other jobs read the
+   * deltas along with the rest of the day, or only those they have not yet
+   * read when MapRedJob.DELTA_KEY is set. A changed file is parsed again in full, so
+   * its earlier records will appear twice in the raw data for the day.
+   * Without a logged manifest a full run is made.
+   */
+  public static final String INCREMENTAL_KEY = "locstore.raw.incremental";
+
+  /**
+   * Configuration key which, when true, runs the monthly hole-plug pass
+   * (a date with day "00") incrementally, as for INCREMENTAL_KEY: plug
+   * files already parsed for the month, as logged in the manifest under
+   * /projects/locstore/meta/log/input/yyyy/MM/00, are skipped, so a run
+   * costs only as much as the plug data added since the last one.
+   */
+  public static final String PLUG_INCREMENTAL_KEY = "locstore.raw.plug.incremental";
+
+  /**
+   * Configuration key for the number of threads parsing within each map
+   * task; values above 1 run RawParserMap under a MultithreadedMapper.
+   * The threads share one mcell table.
+   */
+  public static final String MAP_THREADS_KEY = "locstore.raw.map.threads";
+
+  /**
+   * Configuration key listing the feed of each input root, as
+   * comma-separated FEED=root pairs; set by attachFeed.
+   */
+  public static final String FEEDS_KEY = "locstore.raw.feeds";
+
+  /**
+   * Configuration key for sampling bad input lines: when set to n > 0,
+   * one in every n lines yielding a record with a failed parse code is
+   * written, with the code, under /projects/locstore/raw/dt/_badlines.
+   * The leading underscore keeps the files out of the input of later jobs.
+   */
+  public static final String BAD_LINES_SAMPLE_KEY = "locstore.raw.badlines.sample";
+
+  /**
+   * Configuration key for the number of cells each map thread keeps in
+   * its LRU cache of mcell rows; 0 disables the cache.
+   */
+  public static final String LACCID_CACHE_KEY = "locstore.raw.laccid.cache";
+
+  /** name of the binary mcell index beside each mcell_hashtable */
+  public static final String MCELL_INDEX = "mcell_index";
+
+  private String delta = null;
+
   /**
    * Default constructor for creating a LocstoreLoadClient instance
    * for pulling a particular day of data. The timestamp refers to
@@ -44,54 +112,322 @@ public class RawParser extends MapRedJob {
 
     createHadoopConfig(true);
 
+    boolean plug = dateToProcess.substring(8,10).equals("00");
+    if (conf.getBoolean(INCREMENTAL_KEY, false) ||
+        (plug && conf.getBoolean(PLUG_INCREMENTAL_KEY, false))) {
+      previousInputs = readInputLog();
+      if (previousInputs != null) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        delta = "delta-" + sdf.format(new Date());
+        output_dir = output_dir + "/" + delta;
+        job_name = job_name + ":" + delta;
+      }
+    }
+
     initHadoopJob(RawParserMap.class, null, null, TextInputFormat.class, 0);
-    setMapOutClasses(Text.class, Text.class);
-    setOutputClasses(Text.class, Text.class);
+    int threads = conf.getInt(MAP_THREADS_KEY, 1);
+    if (threads > 1) {
+      // Each thread runs its own RawParserMap; writes to the task's context are synchronized
+      job.setMapperClass(MultithreadedMapper.class);
+      MultithreadedMapper.setMapperClass(job, RawParserMap.class);
+      MultithreadedMapper.setNumberOfThreads(job, threads);
+    }
+    if (conf.getInt(BAD_LINES_SAMPLE_KEY, 0) > 0) {
+      MultipleOutputs.addNamedOutput(job, RawParserMap.BAD_LINES, TextOutputFormat.class,
+                                     Text.class, Text.class);
+    }
+    if (rawSequenceFormat()) {
+      setMapOutClasses(Text.class, LocationRecordWritable.class);
+      setOutputClasses(Text.class, LocationRecordWritable.class);
+      job.setOutputFormatClass(SequenceFileOutputFormat.class);
+      SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
+    } else {
+      setMapOutClasses(Text.class, Text.class);
+      setOutputClasses(Text.class, Text.class);
+    }
 
-    if (dateToProcess.substring(8,10).equals("00")) {
+    if (plug) {
       // Set day to "00" in order to run the hole plugging code
       String datePrefix = dateToProcess.substring(0,7);
-      attachInputPath("/projects/datalake/scamp-plug/wireless/SMSD/" + datePrefix);
-      attachInputPath("/projects/datalake/scamp-plug/wireless/AWSV/" + datePrefix);
-      attachInputPath("/projects/datalake/scamp-plug/wireless/AWSD/" + datePrefix);
+      attachFeed(LocationType.SMSD, "/projects/datalake/scamp-plug/wireless/SMSD/" + datePrefix);
+      attachFeed(LocationType.AWSV, "/projects/datalake/scamp-plug/wireless/AWSV/" + datePrefix);
+      attachFeed(LocationType.AWSD, "/projects/datalake/scamp-plug/wireless/AWSD/" + datePrefix);
+
+      // Every plug run of the month uses this table, so ship it as a prebuilt index
+      buildMcellIndex("/projects/locstore/meta/mcell/" + datePrefix + "/30");
+      addMcellCache("/projects/locstore/meta/mcell/" + datePrefix + "/30");
+    } else {
+      attachFeed(LocationType.SMSD, "/projects/datalake/scamp-plug/wireless/SMSD/" + dt);
+      attachFeed(LocationType.AWSV, "/projects/datalake/scamp-plug/wireless/AWSV/" + dt);
+      attachFeed(LocationType.AWSD, "/projects/datalake/scamp-plug/wireless/AWSD/" + dt);
+      attachFeed(LocationType.SMSD, "/projects/datalake/scamp3/wireless/SMSD/" + dt);
+      attachFeed(LocationType.AWSV, "/projects/datalake/scamp3/wireless/AWSV/" + dt);
+      attachFeed(LocationType.AWSD, "/projects/datalake/scamp3/wireless/AWSD/" + dt);
+      attachFeed(LocationType.NELOS, "/projects/datalake/nelos2/locations/" + dt);
+      attachFeed(LocationType.CLOSENUPH, "/projects/datalake/closenuph/" + dt);
+      attachFeed(LocationType.WIFI, "/projects/locstore/meta/wifi/" + dt);
+
+      addMcellCache("/projects/locstore/meta/mcell/" + dt);
+    }
+  }
+
+  /**
+   * Attaches an input path holding a single feed. Map tasks look up the
+   * feed of their split from FEEDS_KEY, to count lines and parse codes by
+   * feed and to say why a line LocationMultiRecord rejects was bad. Every
+   * line is still parsed by LocationMultiRecord, which detects the feed
+   * itself; the tag does not choose the parser.
+   *
+   * @param feed  the type of the records under path
+   * @param path  the root to attach, as for attachInputPath
+   */
+  protected void attachFeed(LocationType feed, String path) throws IOException {
+    attachInputPath(path);
+    String feeds = job.getConfiguration().get(FEEDS_KEY, "");
+    if (!feeds.isEmpty()) feeds = feeds + ",";
+    job.getConfiguration().set(FEEDS_KEY, feeds + feed.name() + "=" + path);
+  }
 
-      addCache("/projects/locstore/meta/mcell/" + datePrefix + "/30/mcell_hashtable");
+  /**
+   * Builds the binary mcell_index of a directory from its mcell_hashtable,
+   * unless an index at least as new as the table is already there. The
+   * index is replaced through McellIndex.replace, so tasks never see a
+   * partial file.
+   */
+  protected void buildMcellIndex(String dir) throws IOException {
+    Path table = new Path(dir + "/mcell_hashtable");
+    Path index = new Path(dir + "/" + MCELL_INDEX);
+    if (!fs.exists(table)) return;
+    if (fs.exists(index) &&
+        fs.getFileStatus(index).getModificationTime() >= fs.getFileStatus(table).getModificationTime()) {
+      return;
+    }
+
+    McellIndex.replace(fs, table, index);
+  }
+
+  /**
+   * Ships the mcell table in a directory to the map tasks: the binary
+   * mcell_index (see McellIndex) when one has been built, and otherwise
+   * the serialized mcell_hashtable.
+   */
+  protected void addMcellCache(String dir) throws IOException {
+    if (fs.exists(new Path(dir + "/" + MCELL_INDEX))) {
+      addCache(dir + "/" + MCELL_INDEX);
     } else {
-      attachInputPath("/projects/datalake/scamp-plug/wireless/SMSD/" + dt);
-      attachInputPath("/projects/datalake/scamp-plug/wireless/AWSV/" + dt);
-      attachInputPath("/projects/datalake/scamp-plug/wireless/AWSD/" + dt);
-      attachInputPath("/projects/datalake/scamp3/wireless/SMSD/" + dt);
-      attachInputPath("/projects/datalake/scamp3/wireless/AWSV/" + dt);
-      attachInputPath("/projects/datalake/scamp3/wireless/AWSD/" + dt);
-      attachInputPath("/projects/datalake/nelos2/locations/" + dt);
-      attachInputPath("/projects/datalake/closenuph/" + dt);
-      attachInputPath("/projects/locstore/meta/wifi/" + dt);
+      addCache(dir + "/mcell_hashtable");
+    }
+  }
 
-      addCache("/projects/locstore/meta/mcell/" + dt + "/mcell_hashtable");
+  /**
+   * An incremental run with no new or changed input files does nothing.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Override
+  protected boolean prepare() throws IOException, InterruptedException {
+    resolveInputPaths();
+    return delta == null || !deltaInputs.isEmpty();
+  }
+
+  /**
+   * Once the job succeeds, the manifest of the input for the day is
+   * logged, as the baseline for later incremental runs. The delta of an
+   * incremental run is added to the record of the deltas of the day, for
+   * MapRedJob.pendingDeltas; a full run replaces any earlier deltas, and so
+   * clears the record.
+   *
+   * @throws IOException
+   */
+  @Override
+  public void finish(boolean success) throws IOException {
+    if (!success) return;
+
+    currentInputPaths();
+    Path deltaLog = new Path(inputLogDir() + "/delta.txt");
+    if (delta == null) {
+      fs.delete(deltaLog, false);
+      return;
     }
+    List<String> deltas = readLines(deltaLog);
+    if (deltas == null) deltas = new ArrayList<String>();
+    deltas.add(delta);
+    writeLines(deltaLog, deltas);
+  }
+
+  /**
+   * @return number of input files parsed by an incremental run, or -1 for a full run
+   */
+  public int getDeltaFileCount() throws IOException {
+    if (delta == null) return -1;
+    resolveInputPaths();
+    return deltaInputs.size();
   }
 
 }
 
 class RawParserMap extends
- Mapper<LongWritable, Text, Text, Text> {
+ Mapper<LongWritable, Text, Text, Writable> {
+
+  /** counter group holding the records and milliseconds spent in map by each thread */
+  static final String THREAD_COUNTER_GROUP = "RawParserMap threads";
+
+  // Shared by every instance in the JVM, so the threads of a
+  // MultithreadedMapper hold a single copy of the mcell table
+  private static Hashtable<String, String[]> sharedLaccidMeta = null;
+  private static final AtomicInteger threadIds = new AtomicInteger();
+
+  /** counter group holding the lines read from each feed, and those whose records had another type */
+  static final String FEED_COUNTER_GROUP = "RawParserMap feeds";
+
+  /** counter group holding the number of records written for each feed and parse code */
+  static final String PARSE_COUNTER_GROUP = "RawParserMap parse codes";
+
+  /** named output holding the sampled bad lines */
+  static final String BAD_LINES = "badlines";
+
+  private static final ParseErrors[] PARSE_ERRORS = ParseErrors.values();
+
+  // Indexed by parse code ordinal, with a final slot for a null code
+  long[] parseCounts = new long[PARSE_ERRORS.length + 1];
+  MultipleOutputs<Text, Writable> mos = null;
+  Text reasonout = new Text();
+  int badLineSample = 0;
+  long nbad = 0;
+
+  LocationType feed = null;
+  int threadId;
+  long nrecords = 0;
+  long nanos = 0;
+  long nmismatched = 0;
 
   SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd@kk:mm:ss");
 
   Hashtable<String, String[]> laccid_meta = null;
   Text keyout = new Text();
   Text valout = new Text();
+  LocationRecordWritable recout = new LocationRecordWritable();
+  boolean sequenceFormat = false;
 
   @Override
   protected void setup(Context context) throws IOException,
    InterruptedException {
     Configuration c = context.getConfiguration();
     sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+    sequenceFormat = c.get(MapRedJob.RAW_FORMAT_KEY, "text").equals("sequence");
+    threadId = threadIds.getAndIncrement();
+    feed = findFeed(c.get(RawParser.FEEDS_KEY, ""), context.getInputSplit());
+    badLineSample = c.getInt(RawParser.BAD_LINES_SAMPLE_KEY, 0);
+    if (badLineSample > 0) mos = new MultipleOutputs<Text, Writable>(context);
+
+    synchronized (RawParserMap.class) {
+      if (sharedLaccidMeta == null) {
+        loadLaccidMeta(context);
+        sharedLaccidMeta = laccid_meta;
+      }
+      laccid_meta = sharedLaccidMeta;
+    }
+  }
 
-    loadLaccidMeta();
+  @Override
+  protected void cleanup(Context context) throws IOException,
+   InterruptedException {
+    context.getCounter(THREAD_COUNTER_GROUP, "thread-" + threadId + " records").increment(nrecords);
+    context.getCounter(THREAD_COUNTER_GROUP, "thread-" + threadId + " ms").increment(nanos / 1000000);
+    context.getCounter(FEED_COUNTER_GROUP, feedName() + " lines").increment(nrecords);
+    context.getCounter(FEED_COUNTER_GROUP, feedName() + " mismatched").increment(nmismatched);
+    for (int j = 0; j < parseCounts.length; j++) {
+      if (parseCounts[j] == 0) continue;
+      String code = (j < PARSE_ERRORS.length) ? PARSE_ERRORS[j].name() : "NULL";
+      context.getCounter(PARSE_COUNTER_GROUP, feedName() + " " + code).increment(parseCounts[j]);
+    }
+    if (mos != null) mos.close();
   }
 
-  protected void loadLaccidMeta() {
+  /**
+   * Writes every badLineSample-th bad line to the side output, keyed
+   * by the reason it was rejected.
+   */
+  protected void sampleBadLine(ParseErrors code, Text value) throws IOException,
+   InterruptedException {
+    if (mos == null) return;
+    if (nbad++ % badLineSample != 0) return;
+    reasonout.set(feedName() + "|" + ((code == null) ? "NULL" : code.name()));
+    // One file per thread, as each MultithreadedMapper thread has its own MultipleOutputs
+    mos.write(BAD_LINES, reasonout, value, "_badlines/part-t" + threadId);
+  }
+
+  /**
+   * Writes an error record in place of a line which could not be parsed.
+   */
+  protected void writeError(ParseErrors code, Text value, Context context)
+   throws IOException, InterruptedException {
+    LocationRecord lr = new LocationRecord();
+    lr.type = (feed == null) ? LocationType.UNKNOWN : feed;
+    lr.parseCode = code;
+    writeVal(lr, context);
+    sampleBadLine(code, value);
+  }
+
+  protected String feedName() {
+    return (feed == null) ? "UNTAGGED" : feed.name();
+  }
+
+  /**
+   * Finds the feed of a split from the FEED=root pairs set by
+   * RawParser.attachFeed.
+   *
+   * @return the feed, or null if the split is not under any of the roots
+   */
+  static LocationType findFeed(String feeds, InputSplit split) {
+    if (!(split instanceof FileSplit) || feeds.isEmpty()) return null;
+    String path = ((FileSplit) split).getPath().toUri().getPath();
+    for (String pair : feeds.split(",")) {
+      int eq = pair.indexOf('=');
+      if (path.startsWith(pair.substring(eq + 1) + "/")) {
+        return LocationType.valueOf(pair.substring(0, eq));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Test of whether a line has the shape of its feed: a comma for
+   * CLOSENUPH and a pipe for the others, and a leading yyyy-MM-dd@
+   * timestamp for the CDR and NELOS feeds. Lines of an unknown feed pass.
+   * Only used on lines LocationMultiRecord has rejected, to tell those of
+   * the wrong shape (BAD_INPUT_LINE) from the rest (UNKNOWN_ERROR), so it
+   * costs nothing for lines which parse.
+   */
+  static boolean hasFeedShape(LocationType feed, Text value) {
+    if (feed == null) return true;
+    byte[] b = value.getBytes();
+    int n = value.getLength();
+    if (feed == LocationType.SMSD || feed == LocationType.AWSV ||
+        feed == LocationType.AWSD || feed == LocationType.NELOS) {
+      if (n < 11 || b[4] != '-' || b[7] != '-' || b[10] != '@') return false;
+    }
+    byte delim = (feed == LocationType.CLOSENUPH) ? (byte) ',' : (byte) '|';
+    for (int i = 0; i < n; i++) {
+      if (b[i] == delim) return true;
+    }
+    return false;
+  }
+
+  protected void loadLaccidMeta(Context context) {
+    File index = new File(RawParser.MCELL_INDEX);
+    if (index.exists()) {
+      try {
+        int cacheSize = context.getConfiguration().getInt(RawParser.LACCID_CACHE_KEY, 10000);
+        laccid_meta = new McellLookupTable(McellIndex.open(index), cacheSize);
+        return;
+      } catch (IOException e) {
+        // Fall back to the serialized table, if it was shipped as well
+      }
+    }
+
     try {
       FileInputStream fis = new FileInputStream("mcell_hashtable");
       ObjectInputStream ois = new ObjectInputStream(fis);
@@ -106,28 +442,55 @@ class RawParserMap extends
   }
 
   public void writeVal(LocationRecord lr, Context context) throws IOException, InterruptedException {
+    parseCounts[(lr.parseCode == null) ? PARSE_ERRORS.length : lr.parseCode.ordinal()]++;
     keyout.set(lr.createImsiKey());
-    valout.set(lr.createRawRecord());
-    context.write(keyout, valout);
+    if (sequenceFormat) {
+      recout.set(lr);
+      context.write(keyout, recout);
+    } else {
+      valout.set(lr.createRawRecord());
+      context.write(keyout, valout);
+    }
+  }
+
+  /**
+   * Splits a line into its records.
+   *
+   * @return the records, or null if LocationMultiRecord rejects the line,
+   *         which it does by throwing a runtime exception. Only those are
+   *         caught, around the parse alone, so that failures in writing
+   *         the output still fail the task rather than pass for bad lines.
+   */
+  LocationRecord[] parseLine(Text value) {
+    try {
+      return new LocationMultiRecord(value.toString(), laccid_meta).getLocationRecords();
+    } catch (RuntimeException e) {
+      return null;
+    }
   }
 
   @Override
   public void map(LongWritable key, Text value, Context context)
    throws IOException, InterruptedException {
 
-    int i = 0;
-    try {
-      LocationMultiRecord lmr = new LocationMultiRecord(value.toString(), laccid_meta);
-      LocationRecord[] lrs = lmr.getLocationRecords();
-      for (i = 0; i < lrs.length; i++) {
+    long t0 = System.nanoTime();
+    nrecords++;
+
+    LocationRecord[] lrs = parseLine(value);
+    if (lrs == null) {
+      writeError(hasFeedShape(feed, value) ? ParseErrors.UNKNOWN_ERROR : ParseErrors.BAD_INPUT_LINE,
+                 value, context);
+    } else {
+      // Problems with the fields of a record are reported by its parse code
+      if (feed != null && lrs.length > 0 && lrs[0].type != feed) nmismatched++;
+      ParseErrors failed = null;
+      for (int i = 0; i < lrs.length; i++) {
         writeVal(lrs[i], context);
+        if (failed == null && !lrs[i].parseErrorOkay()) failed = lrs[i].parseCode;
       }
-    } catch (Exception e) {
-      LocationRecord lr = (new LocationMultiRecord("",laccid_meta)).getLocationRecords()[0];
-      lr.parseCode = ParseErrors.UNKNOWN_ERROR;
-      if (i != 0) lr.parseCode = ParseErrors.UNKNOWN_MULTI_ERROR;
-      writeVal(lr, context);
+      if (failed != null) sampleBadLine(failed, value);
     }
+    nanos += System.nanoTime() - t0;
   }
 }
 
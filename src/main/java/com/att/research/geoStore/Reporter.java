@@ -1,31 +1,38 @@
 package com.att.research.geoStore;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 
 /**
  * A class for creating the data for several reports based on
  * a single day's worth of data records. Reports are created
  * for type crossed with time buckets (15 minutes), geohash
- * buckets (3 digits), and error codes.
+ * buckets (3 digits), and error codes. Counts are aggregated inside
+ * each mapper and flushed as LongWritables at the end of the task, or
+ * earlier when the table of counters grows large.
  *
  * @author Taylor Arnold
  * @see MapRedJob
@@ -33,6 +40,12 @@ import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
  */
 public class Reporter extends MapRedJob {
 
+  /** names of the MultipleOutputs written by ReporterReduce; e, t, and g keys respectively */
+  static final String[] REPORT_NAMES = new String[] {"errors", "time", "geohash"};
+
+  /** files under /projects/locstore/meta/reporter/dt holding each report */
+  static final String[] REPORT_FILES = new String[] {"errors.txt", "time.txt", "geohash.txt"};
+
   /**
    * Default constructor for creating a LocReporter instance.
    *
@@ -46,133 +59,114 @@ public class Reporter extends MapRedJob {
     output_dir = "/tmp/" + UUID.randomUUID().toString();
     job_name = this.getClass().getName() + ":" + dateToProcess;
 
+    // The combiner leaves little for the reducers to do
+    bytesPerReducer = 4L << 30;
     createHadoopConfig(false);
 
-    initHadoopJob(ReporterMap.class, ReporterReduce.class,
-                  ReporterReduce.class, TextInputFormat.class, 50);
-    setMapOutClasses(Text.class, Text.class);
-    setOutputClasses(Text.class, Text.class);
+    initHadoopJob(ReporterMap.class, ReporterCombine.class,
+                  ReporterReduce.class, rawInputFormat(), 50);
+    setMapOutClasses(ReporterKey.class, LongWritable.class);
+    setOutputClasses(Text.class, LongWritable.class);
+
+    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+    for (int i = 0; i < REPORT_NAMES.length; i++) {
+      MultipleOutputs.addNamedOutput(job, REPORT_NAMES[i], TextOutputFormat.class,
+                                     Text.class, LongWritable.class);
+    }
 
     attachInputPath("/projects/locstore/raw/" + dateToProcess);
   }
 
   /**
-   * Parses the reporter output into four files, one for each type of
-   * report (time, geospatial, error code, and laccid/venue)
+   * Collects the reporter output into three files, one for each type of
+   * report (error code, time, and geospatial), under
+   * /projects/locstore/meta/reporter. The reducers have already split the
+   * counts with MultipleOutputs, so this only concatenates the part files
+   * of each report; the data is streamed within HDFS and never held in
+   * memory or copied to the local disk.
    *
    */
   public void save() throws IOException {
-    List<String> eout = new ArrayList<String>();
-    List<String> tout = new ArrayList<String>();
-    List<String> gout = new ArrayList<String>();
-
-    String tmpdir = "/" + UUID.randomUUID().toString() + "/";
-    String mrOutput = "/tmp" + tmpdir + "tempMrOut/";
-    String efile = "/tmp" + tmpdir + "errors.txt";
-    String tfile = "/tmp" + tmpdir + "time.txt";
-    String gfile = "/tmp" + tmpdir + "geohash.txt";
-
-    fs.copyToLocalFile(false, new Path(output_dir), new Path(mrOutput));
-    File inputDir = new File(mrOutput);
-    File[] inputFiles = inputDir.listFiles();
-
-    for (int i = 0; i < inputFiles.length; i++) {
-      BufferedReader br = new BufferedReader(new FileReader(inputFiles[i]));
-      String line;
-      while ((line = br.readLine()) != null) {
-        String[] ll = line.split("\\|", -1);
-        if (ll.length == 4) {
-          if (ll[2].equals("e")) {
-            String out = new String();
-            out = ll[0] + "|" + ll[1] + "|" + ll[3];
-            eout.add(out);
-          }
-          if (ll[2].equals("t")) {
-            String out = new String();
-            out = ll[0] + "|" + ll[1] + "|" + ll[3];
-            tout.add(out);
-          }
-          if (ll[2].equals("g")) {
-            String out = new String();
-            out = ll[0] + "|" + ll[1] + "|" + ll[3];
-            gout.add(out);
-          }
-        }
-      }
-      br.close();
-    }
-
-    BufferedWriter writer;
-
-    writer = new BufferedWriter(new FileWriter(efile));
-    for(int i = 0; i < eout.size(); i++) {
-      writer.write(eout.get(i));
-      writer.newLine();
-    }
-    writer.close();
-
-    writer = new BufferedWriter(new FileWriter(tfile));
-    for(int i = 0; i < tout.size(); i++) {
-      writer.write(tout.get(i));
-      writer.newLine();
-    }
-    writer.close();
-
-    writer = new BufferedWriter(new FileWriter(gfile));
-    for(int i = 0; i < gout.size(); i++) {
-      writer.write(gout.get(i));
-      writer.newLine();
-    }
-    writer.close();
-
     String outputSaveDir = "/projects/locstore/meta/reporter/" + dt;
     fs.delete(new Path(outputSaveDir), true);
     fs.mkdirs(new Path(outputSaveDir));
 
-    fs.copyFromLocalFile(true, true, new Path(efile),
-                         new Path(outputSaveDir));
-    fs.copyFromLocalFile(true, true, new Path(tfile),
-                         new Path(outputSaveDir));
-    fs.copyFromLocalFile(true, true, new Path(gfile),
-                         new Path(outputSaveDir));
+    for (int i = 0; i < REPORT_NAMES.length; i++) {
+      FileStatus[] parts = fs.globStatus(new Path(output_dir + "/" + REPORT_NAMES[i] + "-r-*"));
+      if (parts == null) parts = new FileStatus[0];
+      Arrays.sort(parts);
 
-    FileUtils.deleteDirectory(new File("/tmp" + tmpdir));
+      FSDataOutputStream out = fs.create(new Path(outputSaveDir + "/" + REPORT_FILES[i]));
+      try {
+        for (int j = 0; j < parts.length; j++) {
+          FSDataInputStream in = fs.open(parts[j].getPath());
+          try {
+            IOUtils.copyBytes(in, out, conf, false);
+          } finally {
+            in.close();
+          }
+        }
+      } finally {
+        out.close();
+      }
+    }
+
+    removeHdfsDirectory(output_dir);
   }
 }
 
 class ReporterMap extends
- Mapper<LongWritable, Text, Text, Text> {
+ Mapper<Writable, Writable, ReporterKey, LongWritable> {
 
-  Text keyout = new Text();
-  Text valout = new Text();
+  /** configuration key for the maximum number of counters held before a flush */
+  static final String MAX_COUNTERS_KEY = "locstore.reporter.map.counters";
+
+  // How often, in records, to check the heap for memory pressure
+  static final int MEMORY_CHECK_INTERVAL = 10000;
+
+  ReporterKey probe = new ReporterKey();
+  LongWritable valout = new LongWritable();
+  LocationRecordParser parser = new LocationRecordParser();
+  CompactLocationRecord rec = new CompactLocationRecord();
+  Map<ReporterKey, long[]> counters = new HashMap<ReporterKey, long[]>();
+  int maxCounters;
+  long nrecords = 0;
 
   @Override
   protected void setup(Context context) throws IOException,
    InterruptedException {
     Configuration c = context.getConfiguration();
+    maxCounters = c.getInt(MAX_COUNTERS_KEY, 100000);
+  }
+
+  protected void increment(int type, byte kind, long bucket) {
+    probe.set(type, kind, bucket);
+    long[] count = counters.get(probe);
+    if (count == null) {
+      count = new long[1];
+      counters.put(new ReporterKey(probe), count);
+    }
+    count[0]++;
   }
 
-  protected void writeToContext(LocationRecord lr, Context context)
+  protected void writeToContext(CompactLocationRecord lr, Context context)
    throws IOException, InterruptedException {
 
-    valout.set("1");
+    int type = lr.getType().ordinal();
 
     // Error codes (e)
-    if (lr.parseCode != null) {
-      keyout.set(lr.type.toString() + "|" + lr.parseCode.toString() + "|e");
-      context.write(keyout, valout);
+    if (lr.getParseCode() != null) {
+      increment(type, ReporterKey.ERROR, lr.getParseCode().ordinal());
     }
 
     // Time buckets (t)
-    if (lr.ts != null) {
-      keyout.set(lr.type.toString() + "|" + Integer.toString(lr.ts / (15 * 60)) + "|t");
-      context.write(keyout, valout);
+    if (!lr.isNull(CompactLocationRecord.TS)) {
+      increment(type, ReporterKey.TIME, lr.getInt(CompactLocationRecord.TS) / (15 * 60));
     }
 
     // Geographic buckets (g)
     if (lr.geohash != null) {
-      keyout.set(lr.type.toString() + "|" + lr.geohash.substring(0,3) + "|g");
-      context.write(keyout, valout);
+      increment(type, ReporterKey.GEOHASH, ReporterKey.packGeohash(lr.geohash));
     }
 
     // laccid/venue buckets (l)
@@ -180,35 +174,225 @@ class ReporterMap extends
       //keyout.set(lr.type.toString() + "|" + lr.location + "|l");
       //if (!lr.type.equals(LocationType.NELOS)) context.write(keyout, valout);
     }
+
+    nrecords++;
+    if (counters.size() >= maxCounters) {
+      flush(context);
+    } else if (nrecords % MEMORY_CHECK_INTERVAL == 0) {
+      Runtime rt = Runtime.getRuntime();
+      long used = rt.totalMemory() - rt.freeMemory();
+      if (used > 0.8 * rt.maxMemory()) flush(context);
+    }
+  }
+
+  protected void flush(Context context) throws IOException, InterruptedException {
+    for (Map.Entry<ReporterKey, long[]> e : counters.entrySet()) {
+      valout.set(e.getValue()[0]);
+      context.write(e.getKey(), valout);
+    }
+    counters.clear();
   }
 
   @Override
-  public void map(LongWritable key, Text value, Context context)
+  public void map(Writable key, Writable value, Context context)
       throws IOException, InterruptedException {
 
-    LocationRecord lr = new LocationRecord(value.toString());
+    CompactLocationRecord lr = parser.parse(value, rec);
     writeToContext(lr, context);
 
   }
+
+  @Override
+  protected void cleanup(Context context) throws IOException,
+   InterruptedException {
+    flush(context);
+  }
+}
+
+class ReporterCombine extends
+ Reducer<ReporterKey, LongWritable, ReporterKey, LongWritable> {
+
+  LongWritable valout = new LongWritable();
+
+  @Override
+  protected void reduce(ReporterKey key, Iterable<LongWritable> values, Context context)
+      throws IOException, InterruptedException {
+    long count = 0;
+    for (LongWritable val : values) {
+      count += val.get();
+    }
+
+    valout.set(count);
+    context.write(key, valout);
+  }
 }
 
 class ReporterReduce extends
- Reducer<Text, Text, Text, Text> {
+ Reducer<ReporterKey, LongWritable, Text, LongWritable> {
+
+  Text keyout = new Text();
+  LongWritable valout = new LongWritable();
+  MultipleOutputs<Text, LongWritable> mos;
+
+  @Override
+  protected void setup(Context context) throws IOException,
+   InterruptedException {
+    mos = new MultipleOutputs<Text, LongWritable>(context);
+  }
 
   @Override
-  protected void reduce(Text key, Iterable<Text> values, Context context)
+  protected void reduce(ReporterKey key, Iterable<LongWritable> values, Context context)
       throws IOException, InterruptedException {
-    Text valout = new Text();
     long count = 0;
-    for (Text val : values) {
-      try {
-        count += Long.parseLong(val.toString(), 10);
-      } catch (NumberFormatException e) {
-        count++;
-      }
+    for (LongWritable val : values) {
+      count += val.get();
     }
 
-    valout.set(Long.toString(count));
-    context.write(key,valout);
+    keyout.set(key.toReportString());
+    valout.set(count);
+    mos.write(Reporter.REPORT_NAMES[key.getKindIndex()], keyout, valout);
   }
+
+  @Override
+  protected void cleanup(Context context) throws IOException,
+   InterruptedException {
+    mos.close();
+  }
+}
+
+/**
+ * Map output key for the reporter: a location type, a report kind
+ * (error code, time bucket, or geohash bucket) and a bucket id, in
+ * a fixed ten byte serialization. The string form matches the keys
+ * previously written as Text, "type|bucket|kind".
+ */
+class ReporterKey implements WritableComparable<ReporterKey> {
+
+  static final byte ERROR = (byte) 'e';
+  static final byte TIME = (byte) 't';
+  static final byte GEOHASH = (byte) 'g';
+
+  private static final LocationType[] LOCATION_TYPES = LocationType.values();
+  private static final ParseErrors[] PARSE_ERRORS = ParseErrors.values();
+
+  static {
+    WritableComparator.define(ReporterKey.class, new Comparator());
+  }
+
+  private int type;
+  private byte kind;
+  private long bucket;
+
+  public ReporterKey() {
+  }
+
+  public ReporterKey(ReporterKey other) {
+    set(other.type, other.kind, other.bucket);
+  }
+
+  public void set(int type_in, byte kind_in, long bucket_in) {
+    type = type_in;
+    kind = kind_in;
+    bucket = bucket_in;
+  }
+
+  // Packs the first three characters of a geohash into a long, 16 bits each
+  static long packGeohash(String geohash) {
+    return ((long) geohash.charAt(0) << 32) | ((long) geohash.charAt(1) << 16) |
+           (long) geohash.charAt(2);
+  }
+
+  static String unpackGeohash(long packed) {
+    char[] c = new char[3];
+    c[0] = (char) ((packed >> 32) & 0xFFFF);
+    c[1] = (char) ((packed >> 16) & 0xFFFF);
+    c[2] = (char) (packed & 0xFFFF);
+    return new String(c);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(type);
+    out.writeByte(kind);
+    out.writeLong(bucket);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    type = in.readUnsignedByte();
+    kind = in.readByte();
+    bucket = in.readLong();
+  }
+
+  @Override
+  public int compareTo(ReporterKey o) {
+    if (type != o.type) return (type < o.type) ? -1 : 1;
+    if (kind != o.kind) return (kind < o.kind) ? -1 : 1;
+    if (bucket != o.bucket) return (bucket < o.bucket) ? -1 : 1;
+    return 0;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ReporterKey)) return false;
+    ReporterKey k = (ReporterKey) o;
+    return type == k.type && kind == k.kind && bucket == k.bucket;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (bucket ^ (bucket >>> 32)) * 31 * 31 + kind * 31 + type;
+  }
+
+  /**
+   * @return position of this key's report in Reporter.REPORT_NAMES
+   */
+  public int getKindIndex() {
+    if (kind == ERROR) return 0;
+    if (kind == TIME) return 1;
+    return 2;
+  }
+
+  /**
+   * @return the line written to this key's report, "type|bucket"
+   */
+  public String toReportString() {
+    String bucketString;
+    if (kind == ERROR) {
+      bucketString = PARSE_ERRORS[(int) bucket].toString();
+    } else if (kind == GEOHASH) {
+      bucketString = unpackGeohash(bucket);
+    } else {
+      bucketString = Long.toString(bucket);
+    }
+    return LOCATION_TYPES[type].toString() + "|" + bucketString;
+  }
+
+  @Override
+  public String toString() {
+    return toReportString() + "|" + (char) kind;
+  }
+
+  /**
+   * Compares serialized ReporterKeys in the same order as compareTo.
+   */
+  public static class Comparator extends WritableComparator {
+
+    public Comparator() {
+      super(ReporterKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int t1 = b1[s1] & 0xFF;
+      int t2 = b2[s2] & 0xFF;
+      if (t1 != t2) return (t1 < t2) ? -1 : 1;
+      if (b1[s1 + 1] != b2[s2 + 1]) return (b1[s1 + 1] < b2[s2 + 1]) ? -1 : 1;
+      long v1 = readLong(b1, s1 + 2);
+      long v2 = readLong(b2, s2 + 2);
+      if (v1 != v2) return (v1 < v2) ? -1 : 1;
+      return 0;
+    }
+  }
+
 }
@@ -1,16 +1,14 @@
 package com.att.research.geoStore;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 
@@ -34,6 +32,18 @@ public class Saver extends MapRedJob {
    * occur; the Saver class then provides a way to capture these late-arriving
    * records.
    *
+   * When MapRedJob.DELTA_KEY is set only the incremental RawParser deltas
+   * not yet read by a Saver are read, and the sorted records are written
+   * to a directory beside the day named for the newest of them rather than
+   * replacing the day. The deltas are marked as read once the job succeeds.
+   *
+   * Records are partitioned on the imsi alone, by ImsiPartitioner, and not
+   * by SkewPartitioner: the monthly Combiner picks up a fixed subset of the
+   * daily part files by name, so every entity must stay in one part file,
+   * at the same reducer number, every day. For the same reason the job
+   * keeps its 200 reducers whatever the size of the input; see
+   * setReducers.
+   *
    * @param dateToProcess   an dates string in yyyy/MM/dd format, for which to look
    *                        for data in the raw records of
    * @throws IOException
@@ -45,21 +55,53 @@ public class Saver extends MapRedJob {
     job_name = this.getClass().getName() + ":" + dt;
 
     createHadoopConfig(true);
+    if (conf.getBoolean(DELTA_KEY, false)) {
+      // Sits beside the day, where the monthly Combiner glob picks it up too
+      List<String> deltas = pendingDeltas();
+      output_dir = output_dir + "-" + deltas.get(deltas.size() - 1);
+    }
 
-    initHadoopJob(SaverMap.class, null, SaverReduce.class, TextInputFormat.class, 200);
-    setMapOutClasses(Text.class, Text.class);
+    initHadoopJob(SaverMap.class, null, SaverReduce.class, rawInputFormat(), 200);
+    setMapOutClasses(ImsiRecordKey.class, NullWritable.class);
     setOutputClasses(Text.class, Text.class);
+    job.setPartitionerClass(ImsiPartitioner.class);
+    job.setGroupingComparatorClass(ImsiGroupingComparator.class);
+
+    attachRawInput();
+  }
+
+  /**
+   * Sizes the reduce tasks only when MapRedJob.REDUCERS_KEY or
+   * MapRedJob.BYTES_PER_REDUCER_KEY is set for Saver by name (for example
+   * locstore.reducers.bytes.Saver); the settings for all jobs are ignored.
+   * A number other than 200 changes the part files picked up by the
+   * monthly Combiner.
+   */
+  @Override
+  protected void setReducers() {
+    String name = "." + this.getClass().getSimpleName();
+    if (conf.get(REDUCERS_KEY + name) == null && conf.get(BYTES_PER_REDUCER_KEY + name) == null) return;
+    super.setReducers();
+  }
 
-    attachInputPath("/projects/locstore/raw/" + dt);
+  /**
+   * Marks the deltas read as consumed once the job succeeds.
+   *
+   * @throws IOException
+   */
+  @Override
+  public void finish(boolean success) throws IOException {
+    if (success) commitDeltas();
   }
 
 }
 
 class SaverMap extends
- Mapper<LongWritable, Text, Text, Text> {
+ Mapper<Writable, Writable, ImsiRecordKey, NullWritable> {
 
-  Text keyout = new Text();
-  Text valout = new Text();
+  ImsiRecordKey keyout = new ImsiRecordKey();
+  LocationRecordParser parser = new LocationRecordParser();
+  CompactLocationRecord rec = new CompactLocationRecord();
 
   @Override
   protected void setup(Context context) throws IOException,
@@ -68,31 +110,36 @@ class SaverMap extends
   }
 
   @Override
-  public void map(LongWritable key, Text value, Context context)
+  public void map(Writable key, Writable value, Context context)
       throws IOException, InterruptedException {
 
-    LocationRecord lr = new LocationRecord(value.toString());
+    CompactLocationRecord lr = parser.parse(value, rec);
     if (!lr.parseErrorOkay()) return;
 
-    keyout.set(lr.createImsiKey());
-    valout.set(lr.createFlatRecord());
+    keyout.set(lr.createImsiKey(), lr.createFlatRecord());
 
-    context.write(keyout, valout);
+    context.write(keyout, NullWritable.get());
 
   }
 }
 
 class SaverReduce extends
- Reducer<Text, Text, Text, Text> {
+ Reducer<ImsiRecordKey, NullWritable, Text, Text> {
 
+  long nrecords = 0;
+
+  // Records arrive sorted by timestamp; the key is updated as values are iterated
   @Override
-  protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-    List<Text> sortedList = new ArrayList<Text>();
-    for (Text t : values) {
-        sortedList.add(new Text(t));
+  protected void reduce(ImsiRecordKey key, Iterable<NullWritable> values, Context context)
+      throws IOException, InterruptedException {
+    for (NullWritable v : values) {
+      context.write(key.getImsi(), key.getRecord());
+      nrecords++;
     }
-    Collections.sort(sortedList);
-    for (int i = 0; i < sortedList.size(); i++ )
-      context.write(key, sortedList.get(i));
+  }
+
+  @Override
+  protected void cleanup(Context context) throws IOException, InterruptedException {
+    SkewPartitioner.countLoad(context, nrecords);
   }
 }
@@ -0,0 +1,257 @@
+package com.att.research.geoStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Partitions ImsiRecordKeys on the imsi, except that the few entities
+ * which hold too large a share of the records are split by time across
+ * several consecutive reducers.
+ *
+ * Before the job is submitted, configure reads a sample of the input in
+ * the driver, maps it to keys with a Sampler, and builds a histogram of
+ * the sampled records per imsi. An imsi with more than HEAVY_KEY's share
+ * of an average reducer's load is cut into slices of about that size at
+ * timestamps taken from its sampled records; only these slice boundaries
+ * are passed to the tasks, in the job configuration. All other entities
+ * go to the reducer Aggregator has always used, (hash / 5843) % n of the
+ * hash of the imsi, and the slices of a heavy entity start from it.
+ *
+ * Since a key's slice depends only on its imsi and timestamp, identical
+ * records always meet in the same reducer and each reducer still sees
+ * the records of its slice in order; an entity is simply written to
+ * several output files, each covering a contiguous time range.
+ *
+ * The slices of an entity go to consecutive reducers, which may fall on
+ * either side of a boundary in the part file numbers (9 and 10, or 109
+ * and 110), and the reducer of an entity depends on the day's sample.
+ * It must therefore not be used by a job whose output is later selected
+ * by part file name, as the monthly Combiner does with the Saver output;
+ * Saver partitions by ImsiPartitioner for that reason.
+ *
+ * @author Taylor Arnold
+ * @see Aggregator
+ * @since 0.9
+ */
+public class SkewPartitioner extends Partitioner<ImsiRecordKey, NullWritable>
+    implements Configurable {
+
+  /** configuration key for the number of records sampled; 0 disables the sampling */
+  public static final String SAMPLE_KEY = "locstore.partition.sample";
+
+  /** configuration key for the maximum number of input splits the sample is read from */
+  public static final String SAMPLE_SPLITS_KEY = "locstore.partition.sample.splits";
+
+  /**
+   * Configuration key for the fraction of an average reducer's load above
+   * which an entity is split across reducers; defaults to 0.5.
+   */
+  public static final String HEAVY_KEY = "locstore.partition.heavy";
+
+  /** configuration key under which the slice boundaries are passed to the tasks */
+  public static final String SPLITS_KEY = "locstore.partition.splits";
+
+  /** group of the counters reporting the distribution of reducer loads */
+  public static final String COUNTER_GROUP = "Reducer load";
+
+  /**
+   * Maps a sampled input record to the key the job's mapper would write.
+   */
+  public interface Sampler {
+
+    /**
+     * @param  key    key from the input format
+     * @param  value  value from the input format
+     * @param  out    key to fill in
+     * @return whether the record gives a map output key
+     */
+    boolean sample(Object key, Object value, ImsiRecordKey out);
+  }
+
+  private Configuration conf;
+
+  // Slice boundaries of the heavy entities, sorted ascending
+  private Map<Text, long[]> splits = new HashMap<Text, long[]>();
+
+  @Override
+  public void setConf(Configuration conf_in) {
+    conf = conf_in;
+    load(conf.getStrings(SPLITS_KEY, new String[0]));
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public int getPartition(ImsiRecordKey key, NullWritable value, int numReduceTasks) {
+    int base = (key.getImsi().hashCode() & Integer.MAX_VALUE) / 5843;
+    long[] bounds = splits.get(key.getImsi());
+    if (bounds == null) return base % numReduceTasks;
+
+    // Slice i holds the timestamps from bounds[i-1] up to, but not including, bounds[i]
+    long ts = key.getTs();
+    int slice = 0;
+    while (slice < bounds.length && ts >= bounds[slice]) slice++;
+    return (int) ((base + (long) slice) % numReduceTasks);
+  }
+
+  /**
+   * Samples the input of a job and, if any entity is heavy enough to be
+   * split, sets SPLITS_KEY on the job; installs SkewPartitioner as the
+   * job's partitioner either way. Must be called once the input paths
+   * and the number of reducers are final.
+   *
+   * @param  job      the job to configure
+   * @param  sampler  maps input records to the job's map output keys
+   * @return the number of entities split across reducers
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static int configure(Job job, Sampler sampler)
+      throws IOException, InterruptedException {
+    job.setPartitionerClass(SkewPartitioner.class);
+    Configuration c = job.getConfiguration();
+    c.unset(SPLITS_KEY);
+    int nsample = c.getInt(SAMPLE_KEY, 100000);
+    if (nsample <= 0 || job.getNumReduceTasks() <= 1) return 0;
+
+    List<ImsiRecordKey> keys = sample(job, sampler, nsample, c.getInt(SAMPLE_SPLITS_KEY, 20));
+    String[] entries = plan(keys, job.getNumReduceTasks(), c.getFloat(HEAVY_KEY, 0.5f));
+    if (entries.length > 0) c.setStrings(SPLITS_KEY, entries);
+    return entries.length;
+  }
+
+  /**
+   * Adds the number of records a reducer has handled to the COUNTER_GROUP
+   * counters: the total, and a count of reducers for each power of two
+   * band, so that the job history shows how evenly the load was spread.
+   * Called from the cleanup of the reducers of partitioned jobs.
+   */
+  public static void countLoad(TaskInputOutputContext context, long nrecords) {
+    context.getCounter(COUNTER_GROUP, "records").increment(nrecords);
+    String band;
+    if (nrecords == 0) {
+      band = "reducers with 0 records";
+    } else {
+      int k = 63 - Long.numberOfLeadingZeros(nrecords);
+      band = "reducers with 2^" + (k < 10 ? "0" : "") + k + " records";
+    }
+    context.getCounter(COUNTER_GROUP, band).increment(1);
+  }
+
+  /**
+   * Reads the first records of up to maxSplits evenly spaced input splits,
+   * as InputSampler.SplitSampler does, for a total of about nsample keys.
+   */
+  static List<ImsiRecordKey> sample(Job job, Sampler sampler, int nsample, int maxSplits)
+      throws IOException, InterruptedException {
+    List<ImsiRecordKey> keys = new ArrayList<ImsiRecordKey>();
+    InputFormat inf;
+    try {
+      inf = ReflectionUtils.newInstance(job.getInputFormatClass(), job.getConfiguration());
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+    List<InputSplit> inputSplits = inf.getSplits(job);
+    if (inputSplits.isEmpty()) return keys;
+
+    int nsplits = Math.min(Math.max(1, maxSplits), inputSplits.size());
+    int perSplit = Math.max(1, nsample / nsplits);
+    int step = inputSplits.size() / nsplits;
+    for (int i = 0; i < nsplits; i++) {
+      TaskAttemptContext ctx = new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID());
+      RecordReader reader = inf.createRecordReader(inputSplits.get(i * step), ctx);
+      try {
+        reader.initialize(inputSplits.get(i * step), ctx);
+        int n = 0;
+        while (n < perSplit && reader.nextKeyValue()) {
+          ImsiRecordKey k = new ImsiRecordKey();
+          if (!sampler.sample(reader.getCurrentKey(), reader.getCurrentValue(), k)) continue;
+          keys.add(k);
+          n++;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Finds the heavy entities of a sample and where to cut them.
+   *
+   * @param  keys         the sampled keys
+   * @param  nreducers    number of reduce tasks of the job
+   * @param  heavy        see HEAVY_KEY
+   * @return one entry per heavy entity, of the form "imsi|ts|ts..." with
+   *         the slice boundaries in ascending order
+   */
+  static String[] plan(List<ImsiRecordKey> keys, int nreducers, float heavy) {
+    Map<Text, List<Long>> histogram = new HashMap<Text, List<Long>>();
+    for (ImsiRecordKey k : keys) {
+      List<Long> ts = histogram.get(k.getImsi());
+      if (ts == null) {
+        ts = new ArrayList<Long>();
+        histogram.put(k.getImsi(), ts);
+      }
+      ts.add(k.getTs());
+    }
+
+    // Largest number of sampled records a single reducer should take from one entity
+    double share = Math.max(1.0, heavy * keys.size() / nreducers);
+    List<String> entries = new ArrayList<String>();
+    for (Map.Entry<Text, List<Long>> e : histogram.entrySet()) {
+      List<Long> ts = e.getValue();
+      if (ts.size() <= share) continue;
+      int nslices = (int) Math.min(nreducers, Math.ceil(ts.size() / share));
+      Collections.sort(ts);
+
+      StringBuilder sb = new StringBuilder(e.getKey().toString());
+      long last = Long.MIN_VALUE;
+      for (int i = 1; i < nslices; i++) {
+        long bound = ts.get((int) ((long) i * ts.size() / nslices));
+        if (bound == last) continue;
+        sb.append('|').append(bound);
+        last = bound;
+      }
+      if (last != Long.MIN_VALUE) entries.add(sb.toString());
+    }
+    Collections.sort(entries);
+    return entries.toArray(new String[entries.size()]);
+  }
+
+  /**
+   * Reads entries in the form given by plan.
+   */
+  void load(String[] entries) {
+    splits.clear();
+    for (String entry : entries) {
+      String[] vals = entry.split("\\|");
+      long[] bounds = new long[vals.length - 1];
+      for (int i = 1; i < vals.length; i++) bounds[i - 1] = Long.parseLong(vals[i]);
+      splits.put(new Text(vals[0]), bounds);
+    }
+  }
+
+}
@@ -1,7 +1,12 @@
 package com.att.research.locstore.client;
 
 import com.att.research.geoStore.Aggregator;
+import com.att.research.geoStore.CodecBenchmark;
+import com.att.research.geoStore.GeoHashMigrator;
+import com.att.research.geoStore.HBaseLoader;
 import com.att.research.geoStore.HashSerializer;
+import com.att.research.geoStore.McellIndex;
+import com.att.research.geoStore.RawParser;
 
 import java.util.Date;
 import java.util.Calendar;
@@ -9,6 +14,8 @@ import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 /**
@@ -74,6 +81,15 @@ public final class BatchLoad {
         } else if (vname.equals("-bmonth")) {
           callType = "bmonth";
           callVal = vval;
+        } else if (vname.equals("-codecBench")) {
+          callType = "codecBench";
+          callVal = vval;
+        } else if (vname.equals("-mcellIndex")) {
+          callType = "mcellIndex";
+          callVal = vval;
+        } else if (vname.equals("-migrateGeohash")) {
+          callType = "migrateGeohash";
+          callVal = vval;
         } else if (vname.equals("-traj")) {
           callType = "traj";
           callVal = vval;
@@ -82,14 +98,16 @@ public final class BatchLoad {
     }
 
     if (hbaseMakeTables) {
-      HBaseTableCreator htc = new HBaseTableCreator();
+      HBaseTableCreator htc = new HBaseTableCreator(conf);
       htc.delete("locstore.entity");
       htc.delete("locstore.geohash");
+      htc.delete(HBaseLoader.bucketedTable(conf));
       htc.delete("locstore.mcell");
       htc.delete("locstore.triples");
       htc.delete("locstore.venue");
       htc.create("locstore.entity");
       htc.create("locstore.geohash");
+      htc.create(HBaseLoader.bucketedTable(conf));
       htc.create("locstore.mcell");
       htc.create("locstore.triples");
       htc.create("locstore.venue");
@@ -109,14 +127,26 @@ public final class BatchLoad {
         sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
         c.setTime(sdf.parse(callVal));
 
+        // Days are independent, so their jobs are left to overlap
+        PipelineScheduler sched = new PipelineScheduler(conf, new PipelineScheduler.Listener() {
+          public void started(PipelineScheduler.Step step) {
+            System.out.println("Starting " + step.getName());
+          }
+          public void finished(PipelineScheduler.Step step) {
+            System.out.println("Finished " + step.getName());
+          }
+          public void failed(PipelineScheduler.Step step, Throwable cause) {
+            System.err.println("Failed " + step.getName() + ": " + cause);
+          }
+        });
         for (int i = 0; i < ndays; i++) {
           thisDate = sdf.format(c.getTime());
           c.add(Calendar.DATE, 1);
 
           llc = new LoadDay(thisDate, conf);
-          llc.loadAllData();
-          if (hbaseFlag) llc.loadHBase();
+          llc.schedule(sched, hbaseFlag);
         }
+        sched.run();
       }
 
     } else if (callType.equals("bmonth")) {
@@ -130,6 +160,27 @@ public final class BatchLoad {
         cb = new Combiner(inputDir, outputDir, 250, conf);
         cb.run();
       }
+    } else if (callType.equals("codecBench")) {
+      CodecBenchmark cb = new CodecBenchmark(callVal, conf);
+      String codecs = conf.get("locstore.codec.benchmark.codecs");
+      String[] codecNames = (codecs == null) ? CodecBenchmark.DEFAULT_CODECS : codecs.split(",");
+      for (String line : cb.run(codecNames)) {
+        System.out.println(line);
+      }
+    } else if (callType.equals("mcellIndex")) {
+      // callVal is the directory under /projects/locstore/meta/mcell, e.g. yyyy/MM/dd
+      String mcellDir = "/projects/locstore/meta/mcell/" + callVal;
+      int ncells = McellIndex.replace(FileSystem.get(conf), new Path(mcellDir + "/mcell_hashtable"),
+                                      new Path(mcellDir + "/" + RawParser.MCELL_INDEX));
+      System.out.println(mcellDir + "/" + RawParser.MCELL_INDEX + ": " + ncells + " cells");
+    } else if (callType.equals("migrateGeohash")) {
+      // callVal is a day in yyyy/MM/dd format, or "all"
+      HBaseTableCreator htc = new HBaseTableCreator(conf);
+      htc.createBucketed(conf.get(GeoHashMigrator.TARGET_TABLE_KEY, HBaseLoader.bucketedTable(conf)),
+                         conf.getInt(HBaseLoader.SALTS_KEY, 0));
+      GeoHashMigrator gm = new GeoHashMigrator(callVal, conf);
+      gm.run();
+      gm.load();
     } else if (callType.equals("traj")) {
 
     } else {
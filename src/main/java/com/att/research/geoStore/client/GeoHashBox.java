@@ -1,18 +1,21 @@
 package com.att.research.geoStore.client;
 
+import com.att.research.geoStore.GeoHashEncoder;
+import com.att.research.geoStore.GeoHashRowKey;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import ch.hsr.geohash.GeoHash;
-import ch.hsr.geohash.BoundingBox;
-import ch.hsr.geohash.util.GeoHashSizeTable;
-import ch.hsr.geohash.util.TwoGeoHashBoundingBox;
-import ch.hsr.geohash.util.BoundingBoxGeoHashIterator;
-
 /**
  * A static class for calculating the temporal-geohash list needed to cover a given
  * bounding box.
  *
+ * getBox gives one scan per five character geohash cell. planBox instead
+ * gives at most a given number of scans, by letting a scan run across
+ * the keys between two cells of the box; see ScanPlan. planBucketedBox
+ * gives the ranges for a table keyed by GeoHashRowKey.
+ *
  * @author Taylor Arnold
  * @see QueryScanner
  * @since 0.3
@@ -20,6 +23,87 @@ import ch.hsr.geohash.util.BoundingBoxGeoHashIterator;
  */
 public class GeoHashBox {
 
+  // The five character prefix at the front of the geohash row keys
+  private static final int LAT_BITS = 12;
+  private static final int LON_BITS = 13;
+
+  /** length of the data held in the geohash table assumed by planBox, in seconds */
+  public static final int DEFAULT_DATA_SECONDS = 365 * 24 * 3600;
+
+  private static final double KM_PER_DEGREE = 111.32;
+
+  /**
+   * The key ranges chosen by planBox, together with an estimate of how
+   * much they read beyond the box.
+   */
+  public static final class ScanPlan {
+
+    private final String[] startKeys;
+    private final String[] endKeys;
+    private final int boxCells;
+    private final long gapCells;
+    private final double overScanKm2;
+    private final double overScanRatio;
+
+    private ScanPlan(String[] s, String[] e, int box, long gap, double km2, double ratio) {
+      startKeys = s;
+      endKeys = e;
+      boxCells = box;
+      gapCells = gap;
+      overScanKm2 = km2;
+      overScanRatio = ratio;
+    }
+
+    /** @return the start key of each scan */
+    public String[] getStartKeys() {
+      return startKeys;
+    }
+
+    /** @return the end key (exclusive) of each scan */
+    public String[] getEndKeys() {
+      return endKeys;
+    }
+
+    /** @return the number of scans */
+    public int size() {
+      return startKeys.length;
+    }
+
+    /** @return the number of five character cells in the box */
+    public int getBoxCells() {
+      return boxCells;
+    }
+
+    /** @return the number of cells outside the box whose rows are read in full */
+    public long getOverScanCells() {
+      return gapCells;
+    }
+
+    /** @return the estimated area of the cells outside the box which are read, in square km */
+    public double getOverScanKm2() {
+      return overScanKm2;
+    }
+
+    /**
+     * @return the estimated number of rows read outside the box and time
+     *         range, per row wanted, assuming rows are spread evenly over
+     *         the cells and the data held by the table
+     */
+    public double getOverScanRatio() {
+      return overScanRatio;
+    }
+
+    /**
+     * @return the keys in the same two-column format as getBox
+     */
+    public String[] toKeyArray() {
+      String[] out = new String[2 * startKeys.length];
+      System.arraycopy(startKeys, 0, out, 0, startKeys.length);
+      System.arraycopy(endKeys, 0, out, startKeys.length, endKeys.length);
+      return out;
+    }
+  }
+
   /**
    * Returns an array of strings which give the scan ranges needed to search over
    * a particular geospatial-temporal box.
@@ -40,14 +124,14 @@ public class GeoHashBox {
 
     List<String> search_hashes = new ArrayList<String>();
 
-    BoundingBox bb = new BoundingBox(lat0, lat1, lon0, lon1);
-    int numbits = GeoHashSizeTable.numberOfBitsForOverlappingGeoHash(bb);
-    TwoGeoHashBoundingBox tgh = TwoGeoHashBoundingBox.withBitPrecision(bb, 25);
-    BoundingBoxGeoHashIterator iter = new BoundingBoxGeoHashIterator(tgh);
+    long[] cells = boxCells(lat0, lat1, lon0, lon1);
+    int ncells = cells.length;
+    Arrays.sort(cells);
 
-    while (iter.hasNext()) {
-      GeoHash gh = iter.next();
-      search_hashes.add(new StringBuilder(gh.toBase32().substring(0,5)).reverse().toString());
+    char[] buf = new char[5];
+    for (int i = 0; i < ncells; i++) {
+      GeoHashEncoder.toBase32(cells[i], 5, buf);
+      search_hashes.add(new StringBuilder(5).append(buf).reverse().toString());
     }
 
     String day0_string = Integer.toString(ts0);
@@ -63,4 +147,253 @@ public class GeoHashBox {
 
     return search_index;
   }
+
+  /**
+   * Returns at most maxScans key ranges which together cover a
+   * geospatial-temporal box, reading as little else as possible.
+   *
+   * The row keys start with the reversed geohash, so the cells of a box
+   * are scattered through the key space, and the cells of a coarser
+   * geohash are not contiguous in it; the ranges are therefore planned
+   * over the five character keys themselves. The cells of the box are
+   * sorted in key order, and neighbouring keys, and then keys further
+   * apart, are coalesced into one range until only maxScans remain. A
+   * range from key a to key b reads the rows of a after ts1, those of b
+   * before ts0, and every row of the keys between them; since that cost
+   * grows with the number of keys skipped, joining the closest pairs
+   * first gives the least over-scan for the number of scans. When
+   * maxScans is at least the number of cells, the ranges are those of
+   * getBox.
+   *
+   * @param   ts0          starting unix timestamp
+   * @param   ts1          ending unix timestamp
+   * @param   lat0         latitude at one corner of the geospatial box
+   * @param   lat1         latitude at the other corner of the geospatial box
+   * @param   lon0         longitude at one corner of the geospatial box
+   * @param   lon1         longitude at the other corner of the geospatial box
+   * @param   maxScans     the largest number of ranges to return; at least 1
+   * @param   dataSeconds  length of time covered by the table, used only for the
+   *                       estimate of over-scan; see DEFAULT_DATA_SECONDS
+   * @return  the ranges, in key order
+   */
+  public static ScanPlan planBox(int ts0, int ts1, double lat0, double lat1, double lon0, double lon1,
+                                 int maxScans, int dataSeconds) {
+    long[] cells = boxCells(lat0, lat1, lon0, lon1);
+    int n = cells.length;
+
+    // The key of a cell is its geohash with the five characters reversed
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) keys[i] = reverseChars(cells[i], 5);
+    Arrays.sort(keys);
+
+    // A range is cut after key i when gaps[i] is among the largest maxScans - 1
+    long[] gaps = new long[Math.max(0, n - 1)];
+    for (int i = 0; i + 1 < n; i++) gaps[i] = keys[i + 1] - keys[i] - 1;
+    long[] sorted = gaps.clone();
+    Arrays.sort(sorted);
+    int nmerge = Math.max(0, n - Math.max(1, maxScans));
+    long threshold = (nmerge == 0) ? -1 : sorted[nmerge - 1];
+    int atThreshold = 0;
+    for (int i = 0; i < nmerge; i++) {
+      if (sorted[i] == threshold) atThreshold++;
+    }
+
+    List<String> starts = new ArrayList<String>();
+    List<String> ends = new ArrayList<String>();
+    String day0_string = Integer.toString(ts0);
+    String day1_string = Integer.toString(ts1) + "z";
+    long gapCells = 0;
+    int merged = 0;
+    int i = 0;
+    while (i < n) {
+      int j = i;
+      while (j + 1 < n) {
+        boolean join = gaps[j] < threshold || (gaps[j] == threshold && atThreshold > 0);
+        if (!join) break;
+        if (gaps[j] == threshold) atThreshold--;
+        gapCells += gaps[j];
+        merged++;
+        j++;
+      }
+      starts.add(keyString(keys[i]) + day0_string);
+      ends.add(keyString(keys[j]) + day1_string);
+      i = j + 1;
+    }
+
+    // Cells are about the same size near the box, so use the one at its centre
+    double cellLat = 180.0 / (1 << LAT_BITS);
+    double cellLon = 360.0 / (1 << LON_BITS);
+    double midLat = Math.toRadians((lat0 + lat1) / 2);
+    double cellKm2 = (cellLat * KM_PER_DEGREE) * (cellLon * KM_PER_DEGREE * Math.cos(midLat));
+
+    // Rows of each joined pair outside the time range, and every row of the cells skipped
+    double window = Math.max(1, ts1 - ts0);
+    double outside = Math.max(0, dataSeconds - window);
+    double ratio = (merged * outside + gapCells * (double) dataSeconds) / (n * window);
+
+    return new ScanPlan(starts.toArray(new String[starts.size()]), ends.toArray(new String[ends.size()]),
+                        n, gapCells, gapCells * cellKm2, ratio);
+  }
+
+  /**
+   * planBox, assuming the table holds DEFAULT_DATA_SECONDS of data.
+   */
+  public static ScanPlan planBox(int ts0, int ts1, double lat0, double lat1, double lon0, double lon1,
+                                 int maxScans) {
+    return planBox(ts0, ts1, lat0, lat1, lon0, lon1, maxScans, DEFAULT_DATA_SECONDS);
+  }
+
+  /**
+   * Returns the key ranges needed to search over a geospatial-temporal
+   * box in a geohash table keyed by GeoHashRowKey.
+   *
+   * Since the geohash in these keys is not reversed, a cell of any
+   * length is a single range of keys within a bucket and salt. The box
+   * is covered by cells of mixed length: a cell wholly inside the box is
+   * taken as it is, and one on its edge is split further, until its
+   * sides are about a sixteenth of those of the box, or it is a full
+   * eight character cell. Adjacent cells form one range, and the ranges
+   * separated by the fewest keys are then joined until at most maxScans
+   * remain. The same ranges are scanned in every time bucket overlapping
+   * the box and every salt, so the number of scans returned is at most
+   * maxScans times the number of buckets times the number of salts.
+   *
+   * Rows of the first and last bucket outside the time range, and those
+   * of the edge cells outside the box, are still read; restrict the scan
+   * with a GeoBoxFilter to drop them on the region servers.
+   *
+   * @param   layout    the row key layout of the table
+   * @param   ts0       starting unix timestamp
+   * @param   ts1       ending unix timestamp
+   * @param   lat0      latitude at one corner of the geospatial box
+   * @param   lat1      latitude at the other corner of the geospatial box
+   * @param   lon0      longitude at one corner of the geospatial box
+   * @param   lon1      longitude at the other corner of the geospatial box
+   * @param   maxScans  the largest number of ranges for each bucket and salt; at least 1
+   * @return  an array of keys, to be interpreted as a two-column matrix in
+   *          column major format as for getBox, in key order
+   */
+  public static byte[][] planBucketedBox(GeoHashRowKey layout, int ts0, int ts1, double lat0, double lat1,
+                                         double lon0, double lon1, int maxScans) {
+    double[] box = new double[] {Math.min(lat0, lat1), Math.max(lat0, lat1),
+                                 Math.min(lon0, lon1), Math.max(lon0, lon1)};
+
+    // Edge cells are split until both sides are small, or one side is very small
+    double latSpan = box[1] - box[0];
+    double lonSpan = box[3] - box[2];
+    double[] limits = new double[] {Math.max(latSpan / 16, lonSpan / 256),
+                                    Math.max(lonSpan / 16, latSpan / 256)};
+
+    List<long[]> ranges = new ArrayList<long[]>();
+    cover(0, 0, -90.0, 90.0, -180.0, 180.0, box, limits, ranges);
+    int n = ranges.size();
+
+    // A range is joined to the next when its gap is among the n - maxScans smallest
+    long[] gaps = new long[Math.max(0, n - 1)];
+    for (int i = 0; i + 1 < n; i++) gaps[i] = ranges.get(i + 1)[0] - ranges.get(i)[1];
+    long[] sorted = gaps.clone();
+    Arrays.sort(sorted);
+    int nmerge = Math.max(0, n - Math.max(1, maxScans));
+    long threshold = (nmerge == 0) ? -1 : sorted[nmerge - 1];
+    int atThreshold = 0;
+    for (int i = 0; i < nmerge; i++) {
+      if (sorted[i] == threshold) atThreshold++;
+    }
+
+    List<long[]> joined = new ArrayList<long[]>();
+    int i = 0;
+    while (i < n) {
+      int j = i;
+      while (j + 1 < n) {
+        boolean join = gaps[j] < threshold || (gaps[j] == threshold && atThreshold > 0);
+        if (!join) break;
+        if (gaps[j] == threshold) atThreshold--;
+        j++;
+      }
+      joined.add(new long[] {ranges.get(i)[0], ranges.get(j)[1]});
+      i = j + 1;
+    }
+
+    int bucket0 = layout.bucket(Math.min(ts0, ts1));
+    int bucket1 = layout.bucket(Math.max(ts0, ts1));
+    int nsalts = Math.max(1, layout.getSalts());
+    int nscans = nsalts * (bucket1 - bucket0 + 1) * joined.size();
+    byte[][] out = new byte[2 * nscans][];
+    int k = 0;
+    for (int salt = 0; salt < nsalts; salt++) {
+      for (int b = bucket0; b <= bucket1; b++) {
+        for (long[] r : joined) {
+          out[k] = layout.rangeKey(salt, b, r[0]);
+          out[k + nscans] = layout.rangeKey(salt, b, r[1]);
+          k++;
+        }
+      }
+    }
+    return out;
+  }
+
+  // Adds the ranges, in GeoHashRowKey.GEOHASH_BITS bit units, of the cells
+  // under a geohash prefix which meet the box, in key order; bits are
+  // taken alternately from longitude and latitude, longitude first
+  private static void cover(long prefix, int depth, double latLo, double latHi, double lonLo, double lonHi,
+                            double[] box, double[] limits, List<long[]> ranges) {
+    if (latLo > box[1] || latHi < box[0] || lonLo > box[3] || lonHi < box[2]) return;
+
+    boolean inside = latLo >= box[0] && latHi <= box[1] && lonLo >= box[2] && lonHi <= box[3];
+    boolean small = latHi - latLo <= limits[0] && lonHi - lonLo <= limits[1];
+    if (inside || small || depth == GeoHashRowKey.GEOHASH_BITS) {
+      int shift = GeoHashRowKey.GEOHASH_BITS - depth;
+      long start = prefix << shift;
+      long end = (prefix + 1) << shift;
+      long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+      if (last != null && last[1] == start) last[1] = end;
+      else ranges.add(new long[] {start, end});
+      return;
+    }
+
+    if (depth % 2 == 0) {
+      double mid = (lonLo + lonHi) / 2;
+      cover(prefix << 1, depth + 1, latLo, latHi, lonLo, mid, box, limits, ranges);
+      cover((prefix << 1) | 1, depth + 1, latLo, latHi, mid, lonHi, box, limits, ranges);
+    } else {
+      double mid = (latLo + latHi) / 2;
+      cover(prefix << 1, depth + 1, latLo, mid, lonLo, lonHi, box, limits, ranges);
+      cover((prefix << 1) | 1, depth + 1, mid, latHi, lonLo, lonHi, box, limits, ranges);
+    }
+  }
+
+  // Every 25 bit cell between the cells of the two corners; the cells
+  // given by the ch.hsr.geohash BoundingBoxGeoHashIterator, without
+  // creating a GeoHash for each
+  private static long[] boxCells(double lat0, double lat1, double lon0, double lon1) {
+    long latMin = GeoHashEncoder.latBits(Math.min(lat0, lat1), LAT_BITS);
+    long latMax = GeoHashEncoder.latBits(Math.max(lat0, lat1), LAT_BITS);
+    long lonMin = GeoHashEncoder.lonBits(Math.min(lon0, lon1), LON_BITS);
+    long lonMax = GeoHashEncoder.lonBits(Math.max(lon0, lon1), LON_BITS);
+
+    long[] cells = new long[(int) ((latMax - latMin + 1) * (lonMax - lonMin + 1))];
+    int ncells = 0;
+    for (long la = latMin; la <= latMax; la++) {
+      for (long lo = lonMin; lo <= lonMax; lo++) {
+        cells[ncells++] = GeoHashEncoder.interleave(lo, la, LAT_BITS + LON_BITS);
+      }
+    }
+    return cells;
+  }
+
+  // Reverses the order of the five bit characters of a geohash
+  private static long reverseChars(long bits, int nchars) {
+    long out = 0;
+    for (int i = 0; i < nchars; i++) {
+      out = (out << 5) | (bits & 31);
+      bits >>>= 5;
+    }
+    return out;
+  }
+
+  private static String keyString(long key) {
+    char[] buf = new char[5];
+    GeoHashEncoder.toBase32(key, 5, buf);
+    return new String(buf);
+  }
 }
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.Callable;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -29,6 +30,9 @@ import org.apache.hadoop.fs.Path;
  * rational behind this is that the latter can only be called if the previous
  * two days have been loaded. See Saver for more details.
  *
+ * The same steps may instead be added to a PipelineScheduler with the
+ * schedule method, so that the jobs of several days run concurrently.
+ *
  * @author Taylor Arnold
  * @since 0.2
  */
@@ -87,13 +91,56 @@ public class LoadDay {
   public void loadHBase() throws Exception {
     String mcellPath = getMcellPath();
 
-    HBaseLoader hbl_geohash = new HBaseLoader(dt_string, "locstore.geohash", conf);
-    hbl_geohash.run();
-    hbl_geohash.load();
+    // One pass over the raw records writes the HFiles of both tables
+    HBaseLoader hbl = new HBaseLoader(dt_string, HBaseLoader.recordTables(conf), conf);
+    hbl.run();
+    hbl.load();
+  }
+
+  /**
+   * Adds the steps of loadAllData, and optionally of loadHBase, to a
+   * scheduler: Reporter followed by Reporter.save, and HBaseLoader followed
+   * by HBaseLoader.load. These are the steps the two methods currently run;
+   * RawParser, Triples and Saver are left out of both, so the raw records of
+   * the day must already be in place. The steps of a day only depend on one
+   * another, so the scheduler is free to overlap them with each other and
+   * with the steps of other days. Every job is given its own copy of the
+   * configuration.
+   *
+   * @param sched      the scheduler to add the steps to
+   * @param hbaseFlag  whether to also add the steps of loadHBase
+   */
+  public void schedule(PipelineScheduler sched, boolean hbaseFlag) {
+    final Reporter[] rep = new Reporter[1];
+    PipelineScheduler.Step repJob = sched.addJob("Reporter " + dt_string,
+        new PipelineScheduler.JobFactory() {
+          public Reporter create() throws Exception {
+            rep[0] = new Reporter(dt_string, new Configuration(conf));
+            return rep[0];
+          }
+        });
+    sched.addAction("Reporter.save " + dt_string, new Callable<Void>() {
+          public Void call() throws Exception {
+            rep[0].save();
+            return null;
+          }
+        }, repJob);
 
-    HBaseLoader hbl_entity = new HBaseLoader(dt_string, "locstore.entity", conf);
-    hbl_entity.run();
-    hbl_entity.load();
+    if (!hbaseFlag) return;
+    final HBaseLoader[] hbl = new HBaseLoader[1];
+    PipelineScheduler.Step hbJob = sched.addJob("HBaseLoader " + dt_string,
+        new PipelineScheduler.JobFactory() {
+          public HBaseLoader create() throws Exception {
+            hbl[0] = new HBaseLoader(dt_string, HBaseLoader.recordTables(conf), new Configuration(conf));
+            return hbl[0];
+          }
+        });
+    sched.addAction("HBaseLoader.load " + dt_string, new Callable<Void>() {
+          public Void call() throws Exception {
+            hbl[0].load();
+            return null;
+          }
+        }, hbJob);
   }
 
 }
@@ -0,0 +1,109 @@
+package com.att.research.geoStore.client;
+
+import com.att.research.geoStore.CellValueCodec;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * A batch of results from QueryScanner.fetchColumns, held as one
+ * primitive array per field rather than a pipe-delimited string per
+ * result. The fields are read directly from the value bytes of each
+ * cell, in either form written by HBaseLoader (see CellValueCodec), and
+ * the time from the cell timestamp, so nothing is copied or allocated
+ * per result for binary values. The row and location of a result are
+ * only turned into strings when asked for.
+ *
+ * Missing integer fields are CellValueCodec.MISSING, and missing
+ * positions NaN.
+ *
+ * @author Taylor Arnold
+ * @see QueryScanner
+ * @since 0.9
+ */
+public final class LocateColumns {
+
+  private final Cell[] cells;
+  private final int[] ts;
+  private final int[] type;
+  private final int[] dur;
+  private final int[] subtype;
+  private final double[] lat;
+  private final double[] lon;
+
+  LocateColumns(Result[] r) {
+    int n = 0;
+    for (int j = 0; j < r.length; j++) n += r[j].size();
+    cells = new Cell[n];
+    ts = new int[n];
+    type = new int[n];
+    dur = new int[n];
+    subtype = new int[n];
+    lat = new double[n];
+    lon = new double[n];
+
+    int k = 0;
+    for (int j = 0; j < r.length; j++) {
+      for (Cell c : r[j].rawCells()) {
+        byte[] b = c.getValueArray();
+        int off = c.getValueOffset();
+        int len = c.getValueLength();
+        cells[k] = c;
+        ts[k] = (int) (c.getTimestamp() / 1000);
+        type[k] = CellValueCodec.getType(b, off, len);
+        dur[k] = CellValueCodec.getDur(b, off, len);
+        subtype[k] = CellValueCodec.getSubtype(b, off, len);
+        lat[k] = CellValueCodec.getLat(b, off, len);
+        lon[k] = CellValueCodec.getLon(b, off, len);
+        k++;
+      }
+    }
+  }
+
+  /** @return the number of results */
+  public int size() {
+    return cells.length;
+  }
+
+  /** @return the unix timestamp of each locate */
+  public int[] getTs() {
+    return ts;
+  }
+
+  /** @return the ordinal of the location type of each locate */
+  public int[] getType() {
+    return type;
+  }
+
+  /** @return the duration of each locate */
+  public int[] getDur() {
+    return dur;
+  }
+
+  /** @return the location subtype of each locate */
+  public int[] getSubtype() {
+    return subtype;
+  }
+
+  /** @return the latitude of each locate */
+  public double[] getLat() {
+    return lat;
+  }
+
+  /** @return the longitude of each locate */
+  public double[] getLon() {
+    return lon;
+  }
+
+  /** @return the HBase cell of a result, giving access to its row key */
+  public Cell getCell(int i) {
+    return cells[i];
+  }
+
+  /** @return the location string (LACCID, venue ID or geohash) of a result */
+  public String getLocation(int i) {
+    Cell c = cells[i];
+    return new String(c.getQualifierArray(), c.getQualifierOffset(), c.getQualifierLength());
+  }
+
+}
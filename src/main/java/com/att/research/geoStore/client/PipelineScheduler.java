@@ -0,0 +1,269 @@
+package com.att.research.geoStore.client;
+
+import com.att.research.geoStore.MapRedJob;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Runs a graph of map reduce jobs and client side steps (such as
+ * Reporter.save or HBaseLoader.load), starting each step as soon as the
+ * steps it depends on have succeeded. Jobs are submitted with
+ * MapRedJob.submit and polled, rather than run one after another with
+ * waitForCompletion, so that independent jobs (the Reporter of one day
+ * and the HBase loads of the next, say) share the cluster. At most
+ * CONCURRENCY_KEY steps run at a time; steps that are ready to start are
+ * taken in the order they were added.
+ *
+ * A job is only constructed when it is about to start, since most job
+ * constructors look at the output of earlier jobs. Steps depending on a
+ * failed step are skipped, and run throws once nothing more can start.
+ * Progress and failures are reported to the caller through a Listener;
+ * the scheduler itself writes nothing.
+ *
+ * @author  Taylor Arnold
+ * @see     LoadDay
+ * @see     BatchLoad
+ * @since   0.9
+ */
+public class PipelineScheduler {
+
+  /** configuration key for the number of steps which may run at once */
+  public static final String CONCURRENCY_KEY = "locstore.batch.concurrency";
+
+  /** configuration key for the number of milliseconds between polls of running jobs */
+  public static final String POLL_KEY = "locstore.batch.poll.ms";
+
+  /**
+   * Creates the job of a step once its dependencies have succeeded.
+   */
+  public interface JobFactory {
+    MapRedJob create() throws Exception;
+  }
+
+  /**
+   * Told of the progress of the steps. All calls are made from the thread
+   * running run.
+   */
+  public interface Listener {
+
+    /** A step has been started. */
+    void started(Step step);
+
+    /** A step has succeeded. */
+    void finished(Step step);
+
+    /**
+     * A step has failed; the steps depending on it will be skipped.
+     *
+     * @param step   the failed step
+     * @param cause  what failed, also kept by the step
+     */
+    void failed(Step step, Throwable cause);
+  }
+
+  /**
+   * A node of the graph, as returned by addJob and addAction.
+   */
+  public static final class Step {
+
+    private final String name;
+    private final Step[] deps;
+    private final JobFactory factory;
+    private final Callable<Void> action;
+
+    private MapRedJob mrJob = null;
+    private Future<Void> future = null;
+    private boolean started = false;
+    private boolean done = false;
+    private boolean failed = false;
+    private Throwable failure = null;
+
+    private Step(String name_in, JobFactory factory_in, Callable<Void> action_in, Step[] deps_in) {
+      name = name_in;
+      factory = factory_in;
+      action = action_in;
+      deps = deps_in;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return whether the step has run and succeeded
+     */
+    public boolean succeeded() {
+      return done && !failed;
+    }
+
+    /**
+     * @return why the step failed, or null if it has not failed
+     */
+    public Throwable getFailure() {
+      return failure;
+    }
+  }
+
+  private final List<Step> steps = new ArrayList<Step>();
+  private final int concurrency;
+  private final long pollMillis;
+  private final Listener listener;
+
+  /**
+   * Creates a scheduler which reports nothing but the exception of run.
+   *
+   * @param conf  configuration holding CONCURRENCY_KEY and POLL_KEY
+   */
+  public PipelineScheduler(Configuration conf) {
+    this(conf, null);
+  }
+
+  /**
+   * @param conf      configuration holding CONCURRENCY_KEY and POLL_KEY
+   * @param listener  told of the progress of the steps; may be null
+   */
+  public PipelineScheduler(Configuration conf, Listener listener) {
+    concurrency = Math.max(1, conf.getInt(CONCURRENCY_KEY, 4));
+    pollMillis = conf.getLong(POLL_KEY, 5000);
+    this.listener = listener;
+  }
+
+  /**
+   * Adds a map reduce job to the graph.
+   *
+   * @param  name     name used when reporting progress and failures
+   * @param  factory  constructs the job once the dependencies have succeeded
+   * @param  deps     steps which must succeed first
+   * @return the new step
+   */
+  public Step addJob(String name, JobFactory factory, Step... deps) {
+    Step s = new Step(name, factory, null, deps);
+    steps.add(s);
+    return s;
+  }
+
+  /**
+   * Adds a step run on the client, in a thread of its own.
+   *
+   * @param  name    name used when reporting progress and failures
+   * @param  action  the work of the step
+   * @param  deps    steps which must succeed first
+   * @return the new step
+   */
+  public Step addAction(String name, Callable<Void> action, Step... deps) {
+    Step s = new Step(name, null, action, deps);
+    steps.add(s);
+    return s;
+  }
+
+  /**
+   * Runs every step of the graph, returning once all have finished.
+   *
+   * @throws IOException if any step failed, naming the failed and skipped
+   *         steps, with the failure of the first failed step as its cause
+   * @throws InterruptedException
+   */
+  public void run() throws IOException, InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    try {
+      int running = 0;
+      while (true) {
+        for (Step s : steps) {
+          if (s.started && !s.done && poll(s)) running--;
+        }
+        for (Step s : steps) {
+          if (running >= concurrency) break;
+          if (s.started || !ready(s)) continue;
+          start(s, pool);
+          if (s.done) continue;
+          running++;
+        }
+        if (running == 0) break;
+        Thread.sleep(pollMillis);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    StringBuilder failures = new StringBuilder();
+    Throwable cause = null;
+    for (Step s : steps) {
+      if (s.failed) {
+        failures.append(" ").append(s.name).append(" (failed)");
+        if (cause == null) cause = s.failure;
+      } else if (!s.done) {
+        failures.append(" ").append(s.name).append(" (skipped)");
+      }
+    }
+    if (failures.length() > 0) throw new IOException("Pipeline did not complete:" + failures, cause);
+  }
+
+  // A step can start once its dependencies have all succeeded
+  private boolean ready(Step s) {
+    for (Step d : s.deps) {
+      if (!d.done || d.failed) return false;
+    }
+    return true;
+  }
+
+  private void start(Step s, ExecutorService pool) {
+    s.started = true;
+    if (listener != null) listener.started(s);
+    if (s.action != null) {
+      s.future = pool.submit(s.action);
+      return;
+    }
+    try {
+      s.mrJob = s.factory.create();
+      if (!s.mrJob.submit()) complete(s, null);
+    } catch (Exception e) {
+      complete(s, e);
+    }
+  }
+
+  // Returns whether the step has just finished
+  private boolean poll(Step s) {
+    if (s.future != null) {
+      if (!s.future.isDone()) return false;
+      try {
+        s.future.get();
+        complete(s, null);
+      } catch (ExecutionException e) {
+        complete(s, e.getCause());
+      } catch (InterruptedException e) {
+        complete(s, e);
+      }
+      return true;
+    }
+
+    try {
+      if (!s.mrJob.getJob().isComplete()) return false;
+      boolean success = s.mrJob.getJob().isSuccessful();
+      s.mrJob.finish(success);
+      complete(s, success ? null : new IOException(s.name + " did not succeed"));
+    } catch (Exception e) {
+      complete(s, e);
+    }
+    return true;
+  }
+
+  // A null failure means the step succeeded
+  private void complete(Step s, Throwable failure) {
+    s.done = true;
+    s.failed = (failure != null);
+    s.failure = failure;
+    if (listener == null) return;
+    if (s.failed) listener.failed(s, failure);
+    else listener.finished(s);
+  }
+
+}
@@ -1,10 +1,20 @@
 package com.att.research.geoStore.client;
 
+import com.att.research.geoStore.CellValueCodec;
+import com.att.research.geoStore.GeoBoxFilter;
+import com.att.research.geoStore.GeoHashRowKey;
+
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
@@ -16,6 +26,22 @@ import org.apache.hadoop.hbase.Cell;
  * Query client for pulling data from either the entity or geohash
  * HBase tables.
  *
+ * By default the scans are run one after another. After setParallel, up
+ * to a given number of scans are run at once, each in a thread of its
+ * own, and their results are merged into the same fetch and fetchToDisk
+ * calls; either in the order of the scans, or in whatever order they
+ * arrive.
+ *
+ * Rows of a geohash table keyed by GeoHashRowKey are read by giving the
+ * byte keys of GeoHashBox.planBucketedBox to initGeoScanner, and the
+ * layout of the table to setBucketedKeys; the results have the same
+ * fields as for the text keys.
+ *
+ * Values are accepted in either the text or the binary form (see
+ * CellValueCodec). fetchColumns returns the fields of each result as
+ * primitive arrays, read straight from the cells, rather than building a
+ * string for each one.
+ *
  * @author Taylor Arnold
  * @see QueryScanner
  * @since 0.3
@@ -26,8 +52,8 @@ public class QueryScanner {
   private HTable t;
   private boolean entityFlag;
 
-  private String[] start_key;
-  private String[] end_key;
+  private byte[][] start_key;
+  private byte[][] end_key;
   private int n_keys;
   private List<byte[]> familyColumn;
   private List<byte[]> column;
@@ -36,6 +62,13 @@ public class QueryScanner {
 
   private int scanIndex = 0; // the scanner are we are currently working on
 
+  private GeoBoxFilter boxFilter = null;
+  private GeoHashRowKey bucketed = null;
+
+  private int nthreads = 1;
+  private boolean ordered = true;
+  private ParallelScans parallel = null;
+
   /**
    * Returns an array of strings which give the scan ranges needed to search over
    * a particular geospatial-temporal box.
@@ -46,6 +79,23 @@ public class QueryScanner {
    * @param   entity_flag  flag for whether this is linking to an entity table or the geohash table
    */
   public void initGeoScanner(HTable table, String[] skeys, String[] ekeys, boolean entity_flag) {
+    byte[][] b0 = new byte[skeys.length][];
+    byte[][] b1 = new byte[ekeys.length][];
+    for (int i = 0; i < skeys.length; i++) b0[i] = skeys[i].getBytes();
+    for (int i = 0; i < ekeys.length; i++) b1[i] = ekeys[i].getBytes();
+    initGeoScanner(table, b0, b1, entity_flag);
+  }
+
+  /**
+   * As initGeoScanner above, for keys given as bytes, such as those of
+   * GeoHashBox.planBucketedBox.
+   *
+   * @param   table        an HTable object; generally should be locstore.entity or locstore.geohash
+   * @param   skeys        an array of the starting keys for the scan
+   * @param   ekeys        an array of the ending keys for the scan
+   * @param   entity_flag  flag for whether this is linking to an entity table or the geohash table
+   */
+  public void initGeoScanner(HTable table, byte[][] skeys, byte[][] ekeys, boolean entity_flag) {
     entityFlag = entity_flag;
     start_key = skeys;
     end_key = ekeys;
@@ -68,6 +118,33 @@ public class QueryScanner {
     column.add(column_in);
   }
 
+  /**
+   * Run this prior to initScans to have the region servers drop every
+   * locate outside of a geospatial box and time range (see GeoBoxFilter),
+   * rather than returning the whole of each geohash cell scanned.
+   *
+   * @param   lat0  latitude at one corner of the geospatial box
+   * @param   lat1  latitude at the other corner of the geospatial box
+   * @param   lon0  longitude at one corner of the geospatial box
+   * @param   lon1  longitude at the other corner of the geospatial box
+   * @param   ts0   starting unix timestamp
+   * @param   ts1   ending unix timestamp
+   */
+  public void restrictBox(double lat0, double lat1, double lon0, double lon1, long ts0, long ts1) {
+    boxFilter = new GeoBoxFilter(lat0, lat1, lon0, lon1, ts0, ts1);
+  }
+
+  /**
+   * Sets the row key layout of a geohash table keyed by GeoHashRowKey,
+   * so that the timestamp, imsi and sequence number of each result are
+   * decoded from it.
+   *
+   * @param   layout  the layout of the table, as used by HBaseLoader
+   */
+  public void setBucketedKeys(GeoHashRowKey layout) {
+    bucketed = layout;
+  }
+
   /**
    * After all calls to restrict have been placed, run this to construct the
    * HBase Scan objects.
@@ -75,18 +152,39 @@ public class QueryScanner {
    */
   public void initScans() {
     for (int i = 0; i < n_keys; i++) {
-      byte[] b0 = start_key[i].getBytes();
-      byte[] b1 = end_key[i].getBytes();
-      Scan s = new Scan(b0, b1);
+      Scan s = new Scan(start_key[i], end_key[i]);
       s.setCaching(10000);
       if (familyColumn.size() > 0) {
         for (int j = 0; j < familyColumn.size(); j++)
           s.addColumn(familyColumn.get(j), column.get(j));
       }
+      if (boxFilter != null) s.setFilter(boxFilter);
       scanners.add(s);
     }
   }
 
+  /**
+   * Run the scans concurrently rather than one after another. Must be
+   * called before the first fetch.
+   *
+   * @param   nthreads_in  maximum number of scans open at once; 1 to run them in turn
+   * @param   ordered_in   if true, results are returned in the same order as for
+   *                       sequential scans; otherwise, each batch is returned as soon
+   *                       as it arrives from any of the scans
+   */
+  public void setParallel(int nthreads_in, boolean ordered_in) {
+    nthreads = nthreads_in;
+    ordered = ordered_in;
+  }
+
+  /**
+   * Stops any scans still running in parallel mode. Only needed when
+   * not all of the results have been fetched.
+   */
+  public void close() {
+    if (parallel != null) parallel.close();
+  }
+
   /**
    * Fetchs the next maxElements objects from the set of scanners, and
    * returns results as as string array. One result is giving in each
@@ -104,6 +202,20 @@ public class QueryScanner {
     return parseResults(res);
   }
 
+  /**
+   * Fetchs the next maxElements objects from the set of scanners, as
+   * columns of primitive values; see LocateColumns. Unlike fetch, no
+   * strings are built for the results.
+   *
+   * @param   maxElements maximum number of HBase rows to return
+   * @return  the results, or null once every scan is exhausted
+   */
+  public LocateColumns fetchColumns(int maxElements) throws java.io.IOException {
+    Result[] res = nextResults(maxElements);
+    if (res == null) return null;
+    return new LocateColumns(res);
+  }
+
   /**
    * Fetchs the objects from the set of scanners, and writes them to disk. Results
    * are pulled in batches, before writing to disk. This allows for pulling more
@@ -138,6 +250,10 @@ public class QueryScanner {
   }
 
   private Result[] nextResults(int maxElements) throws java.io.IOException{
+    if (nthreads > 1) {
+      if (parallel == null) parallel = new ParallelScans(t, scanners, nthreads, ordered);
+      return parallel.next(maxElements);
+    }
     if (scanIndex >= n_keys) return null;
 
     List<Result> res = new ArrayList<Result>();
@@ -190,12 +306,14 @@ public class QueryScanner {
         String row = new String(c.getRowArray(), c.getRowOffset(), c.getRowLength());
         String col = new String(c.getQualifierArray(), c.getQualifierOffset(),
                                 c.getQualifierLength());
-        String rval = new String(c.getValueArray(), c.getValueOffset(), c.getValueLength());
+        String rval = CellValueCodec.toText(c.getValueArray(), c.getValueOffset(), c.getValueLength());
         try{
 
           if (entityFlag) {
             val[iter] = (new StringBuilder(row.substring(0,9)).reverse().toString()) + "|" +
                         row.substring(9,19) + "|" + col + "|" + rval;
+          } else if (bucketed != null) {
+            val[iter] = bucketedTail(c) + "|" + bucketedTs(c) + "|" + col + "|" + rval;
           } else {
             val[iter] = row.substring(15) + "|" + row.substring(5,15) + "|" + col + "|" + rval;
           }
@@ -227,8 +345,8 @@ public class QueryScanner {
         String col = new String(c.getQualifierArray(), c.getQualifierOffset(),
                                 c.getQualifierLength());
         try{
-          String[] rval = (new String(c.getValueArray(), c.getValueOffset(),
-                                      c.getValueLength())).split("\\|");
+          String[] rval = CellValueCodec.toText(c.getValueArray(), c.getValueOffset(),
+                                                c.getValueLength()).split("\\|");
           String type = "UNKNOWN";
 
           if (rval[0].equals("1")) type = "SMSD";
@@ -243,6 +361,9 @@ public class QueryScanner {
             val[iter] = row.substring(9,19) + "," + rval[4] + "," + rval[5] + "," +
                         (new StringBuilder(row.substring(0,9)).reverse().toString()) + "," +
                         type;
+          } else if (bucketed != null) {
+            val[iter] = bucketedTs(c) + "," + rval[4] + "," + rval[5] + "," +
+                        bucketedTail(c) + "," + type;
           } else {
             val[iter] = row.substring(5,15) + "," + rval[4] + "," + rval[5] + "," +
                         row.substring(15) + "," + type;
@@ -259,4 +380,193 @@ public class QueryScanner {
     return val;
   }
 
+  private String bucketedTail(Cell c) {
+    if (c.getRowLength() < bucketed.prefixLength()) throw new StringIndexOutOfBoundsException();
+    return bucketed.getTail(c.getRowArray(), c.getRowOffset(), c.getRowLength());
+  }
+
+  private int bucketedTs(Cell c) {
+    return bucketed.getTs(c.getRowArray(), c.getRowOffset());
+  }
+
+}
+
+/**
+ * Runs a list of scans with a bounded pool of threads. Each scan is read
+ * in batches by its own HTable (HTable is not thread safe), and batches
+ * are handed to the caller through bounded queues, so a scan which gets
+ * ahead of the caller waits rather than filling memory: in ordered mode
+ * each scan has a queue of its own, which is drained in turn, and in
+ * unordered mode all scans share a single queue.
+ *
+ * The first failure of a scan is thrown by next, after any rows already
+ * taken from the queues, and again by every later call; once closed, next
+ * throws rather than waiting for results which will never come.
+ */
+class ParallelScans {
+
+  // Rows requested from a scanner at a time, and batches queued per scan
+  private static final int BATCH = 1000;
+  private static final int QUEUE_BATCHES = 4;
+
+  // Marks the end of a scan in a queue
+  private static final Result[] END = new Result[0];
+
+  /**
+   * One of the scans; opened, read and closed by the thread running it.
+   */
+  abstract static class Source {
+
+    abstract void open() throws IOException;
+
+    /**
+     * @return up to n rows, or none once the scan is exhausted
+     */
+    abstract Result[] next(int n) throws IOException;
+
+    /** Called whether or not open succeeded. */
+    abstract void close() throws IOException;
+  }
+
+  private final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+  private final ExecutorService pool;
+  private final boolean ordered;
+  private final int nscans;
+
+  private int finished = 0;     // scans whose END has been taken
+  private Result[] pending = null;
+  private int pendingPos = 0;
+  private IOException failure = null;
+  private boolean closed = false;
+
+  ParallelScans(HTable table, List<Scan> scans, int nthreads, boolean ordered_in) {
+    this(tableSources(table, scans), nthreads, ordered_in);
+  }
+
+  ParallelScans(List<? extends Source> sources, int nthreads, boolean ordered_in) {
+    ordered = ordered_in;
+    nscans = sources.size();
+    pool = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread th = new Thread(r, "QueryScanner");
+        th.setDaemon(true);
+        return th;
+      }
+    });
+
+    if (!ordered) queues.add(new ArrayBlockingQueue<Object>(QUEUE_BATCHES * nthreads));
+    for (int i = 0; i < nscans; i++) {
+      if (ordered) queues.add(new ArrayBlockingQueue<Object>(QUEUE_BATCHES));
+      pool.execute(scanTask(sources.get(i), queues.get(ordered ? i : 0)));
+    }
+    pool.shutdown();
+  }
+
+  /**
+   * @return up to maxElements results, or null once every scan is exhausted
+   * @throws IOException if a scan has failed, or the scans have been closed
+   */
+  Result[] next(int maxElements) throws IOException {
+    if (failure != null) throw failure;
+    if (closed) throw new IOException("The scans have been closed.");
+    if (finished >= nscans && pending == null) return null;
+
+    List<Result> res = new ArrayList<Result>();
+    while (res.size() < maxElements) {
+      if (pending == null) {
+        if (finished >= nscans) break;
+        Object item;
+        try {
+          item = queues.get(ordered ? finished : 0).take();
+        } catch (InterruptedException e) {
+          failure = new IOException("Interrupted while waiting for scan results.");
+          close();
+          throw failure;
+        }
+        if (item instanceof IOException) {
+          // The rows already taken are returned first
+          failure = (IOException) item;
+          close();
+          if (res.isEmpty()) throw failure;
+          break;
+        }
+        if (item == END) {
+          finished++;
+          continue;
+        }
+        pending = (Result[]) item;
+        pendingPos = 0;
+      }
+
+      // Batches may be larger than what is left to return
+      int n = Math.min(pending.length - pendingPos, maxElements - res.size());
+      for (int j = 0; j < n; j++) res.add(pending[pendingPos + j]);
+      pendingPos += n;
+      if (pendingPos >= pending.length) pending = null;
+    }
+    return res.toArray(new Result[res.size()]);
+  }
+
+  void close() {
+    closed = true;
+    pool.shutdownNow();
+  }
+
+  private static List<Source> tableSources(final HTable table, List<Scan> scans) {
+    List<Source> sources = new ArrayList<Source>();
+    for (final Scan scan : scans) {
+      sources.add(new Source() {
+        private HTable own = null;
+        private ResultScanner rs = null;
+
+        void open() throws IOException {
+          own = new HTable(table.getConfiguration(), table.getTableName());
+          rs = own.getScanner(scan);
+        }
+
+        Result[] next(int n) throws IOException {
+          return rs.next(n);
+        }
+
+        void close() throws IOException {
+          try {
+            if (rs != null) rs.close();
+          } finally {
+            if (own != null) own.close();
+          }
+        }
+      });
+    }
+    return sources;
+  }
+
+  private static Runnable scanTask(final Source source, final BlockingQueue<Object> queue) {
+    return new Runnable() {
+      public void run() {
+        try {
+          try {
+            source.open();
+            Result[] batch;
+            while ((batch = source.next(BATCH)).length > 0) queue.put(batch);
+          } finally {
+            source.close();
+          }
+          queue.put(END);
+        } catch (InterruptedException e) {
+          // Only interrupted by close, once nothing is waiting on the queue
+          return;
+        } catch (Throwable t) {
+          // Any failure must reach the reader, or next would wait forever
+          IOException e = (t instanceof IOException) ? (IOException) t :
+                          new IOException("Scan failed: " + t, t);
+          try {
+            queue.put(e);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
+      }
+    };
+  }
+
 }
@@ -0,0 +1,48 @@
+package com.att.research.geoStore;
+
+import junit.framework.TestCase;
+
+public class CellValueCodecTest extends TestCase {
+
+  public CellValueCodecTest(String name) {
+    super(name);
+  }
+
+  public void testRoundTrip() {
+    byte[] v = CellValueCodec.encode(3, 30, -2, 42.042345, -87.425352);
+    assertEquals(2 + 1 + 1 + 4 + 4, v.length);
+    byte[] b = new byte[v.length + 4];
+    System.arraycopy(v, 0, b, 2, v.length);
+
+    assertTrue(CellValueCodec.isBinary(b, 2, v.length));
+    assertEquals(3, CellValueCodec.getType(b, 2, v.length));
+    assertEquals(30, CellValueCodec.getDur(b, 2, v.length));
+    assertEquals(-2, CellValueCodec.getSubtype(b, 2, v.length));
+    assertEquals(42.042345, CellValueCodec.getLat(b, 2, v.length), 1e-7);
+    assertEquals(-87.425352, CellValueCodec.getLon(b, 2, v.length), 1e-7);
+    assertEquals("3|30|-2|42.042345|-87.425352", CellValueCodec.toText(b, 2, v.length));
+
+    v = CellValueCodec.encode(1, CellValueCodec.MISSING, 100000, Double.NaN, 179.9999999);
+    assertEquals(CellValueCodec.MISSING, CellValueCodec.getDur(v, 0, v.length));
+    assertEquals(100000, CellValueCodec.getSubtype(v, 0, v.length));
+    assertTrue(Double.isNaN(CellValueCodec.getLat(v, 0, v.length)));
+    assertEquals(179.9999999, CellValueCodec.getLon(v, 0, v.length), 1e-7);
+    assertEquals("1||100000||179.9999999", CellValueCodec.toText(v, 0, v.length));
+  }
+
+  public void testText() {
+    byte[] b = "1|30|2|42.042345|-87.425352".getBytes();
+    assertFalse(CellValueCodec.isBinary(b, 0, b.length));
+    assertEquals(1, CellValueCodec.getType(b, 0, b.length));
+    assertEquals(30, CellValueCodec.getDur(b, 0, b.length));
+    assertEquals(2, CellValueCodec.getSubtype(b, 0, b.length));
+    assertEquals(42.042345, CellValueCodec.getLat(b, 0, b.length));
+    assertEquals(-87.425352, CellValueCodec.getLon(b, 0, b.length));
+    assertEquals("1|30|2|42.042345|-87.425352", CellValueCodec.toText(b, 0, b.length));
+
+    b = "1||||".getBytes();
+    assertEquals(CellValueCodec.MISSING, CellValueCodec.getDur(b, 0, b.length));
+    assertTrue(Double.isNaN(CellValueCodec.getLon(b, 0, b.length)));
+  }
+
+}
@@ -0,0 +1,49 @@
+package com.att.research.geoStore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+
+import junit.framework.TestCase;
+
+public class DualHFileOutputFormatTest extends TestCase {
+
+  public DualHFileOutputFormatTest(String name) {
+    super(name);
+  }
+
+  private static ImmutableBytesWritable key(int table, String row) {
+    byte[] r = row.getBytes();
+    byte[] b = new byte[r.length + 1];
+    b[0] = (byte) table;
+    System.arraycopy(r, 0, b, 1, r.length);
+    return new ImmutableBytesWritable(b);
+  }
+
+  public void testSplits() throws Exception {
+    Configuration c = new Configuration(false);
+    DualHFileOutputFormat.setSplits(c, 0, new byte[][] {new byte[0]});
+    DualHFileOutputFormat.setSplits(c, 1, new byte[][] {new byte[0], "g".getBytes(), "p".getBytes()});
+    assertEquals(0, DualHFileOutputFormat.getSplits(c, 0).length);
+    byte[][] splits = DualHFileOutputFormat.getSplits(c, 1);
+    assertEquals(2, splits.length);
+    assertEquals("g", new String(splits[0]));
+    assertEquals("p", new String(splits[1]));
+  }
+
+  // A table of a single region, such as a new bucketed table without salts, has no split points
+  public void testSingleRegionPartition() throws Exception {
+    Configuration c = new Configuration(false);
+    c.setStrings(DualHFileOutputFormat.TABLES_KEY, "locstore.geohash.bucketed", "locstore.entity");
+    DualHFileOutputFormat.setSplits(c, 0, new byte[][] {new byte[0]});
+    DualHFileOutputFormat.setSplits(c, 1, new byte[][] {new byte[0], "5".getBytes()});
+
+    DualTablePartitioner p = new DualTablePartitioner();
+    p.setConf(c);
+    assertEquals(0, p.getPartition(key(0, "anything"), null, 3));
+    assertEquals(0, p.getPartition(key(0, ""), null, 3));
+    assertEquals(1, p.getPartition(key(1, "1234"), null, 3));
+    assertEquals(2, p.getPartition(key(1, "5"), null, 3));
+    assertEquals(2, p.getPartition(key(1, "9876"), null, 3));
+  }
+
+}
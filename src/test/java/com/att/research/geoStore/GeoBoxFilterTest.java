@@ -0,0 +1,45 @@
+package com.att.research.geoStore;
+
+import junit.framework.TestCase;
+
+public class GeoBoxFilterTest extends TestCase {
+
+  public GeoBoxFilterTest(String name) {
+    super(name);
+  }
+
+  private static boolean accepts(GeoBoxFilter f, String value) {
+    byte[] b = ("xx" + value + "yy").getBytes();
+    return f.accepts(b, 2, b.length - 4);
+  }
+
+  public void testField() {
+    byte[] b = "1|30|2|42.042345|-87.425352".getBytes();
+    assertEquals(1.0, CellValueCodec.textField(b, 0, b.length, 0));
+    assertEquals(42.042345, CellValueCodec.textField(b, 0, b.length, 3));
+    assertEquals(-87.425352, CellValueCodec.textField(b, 0, b.length, 4));
+    assertTrue(Double.isNaN(CellValueCodec.textField(b, 0, b.length, 5)));
+    b = "1||||".getBytes();
+    assertTrue(Double.isNaN(CellValueCodec.textField(b, 0, b.length, 3)));
+    b = "1|||1.0E-4|x".getBytes();
+    assertEquals(1.0E-4, CellValueCodec.textField(b, 0, b.length, 3));
+    assertTrue(Double.isNaN(CellValueCodec.textField(b, 0, b.length, 4)));
+  }
+
+  public void testAccepts() throws Exception {
+    GeoBoxFilter f = new GeoBoxFilter(42.1, 42.0, -87.5, -87.4, 0, 2000000000);
+    assertTrue(accepts(f, "1|30|2|42.042345|-87.425352"));
+    assertFalse(accepts(f, "1|30|2|42.142345|-87.425352"));
+    assertFalse(accepts(f, "1|30|2|42.042345|-87.325352"));
+    assertFalse(accepts(f, "1|30|2||"));
+
+    byte[] v = CellValueCodec.encode(1, 30, 2, 42.042345, -87.425352);
+    assertTrue(f.accepts(v, 0, v.length));
+    v = CellValueCodec.encode(1, 30, 2, 42.042345, Double.NaN);
+    assertFalse(f.accepts(v, 0, v.length));
+
+    GeoBoxFilter g = GeoBoxFilter.parseFrom(f.toByteArray());
+    assertEquals(f.toString(), g.toString());
+  }
+
+}
@@ -0,0 +1,36 @@
+package com.att.research.geoStore;
+
+import junit.framework.TestCase;
+
+public class GeoHashEncoderTest extends TestCase {
+
+  public GeoHashEncoderTest(String name) {
+    super(name);
+  }
+
+  // Geohashes of the NELOS, mcell, and wifi test records
+  public void testKnownPoints() {
+    assertEquals("9mudq7752e", GeoHashEncoder.encode(32.757687, -117.143073));
+    assertEquals("dp3z4tdf3t", GeoHashEncoder.encode(42.042345, -87.425352));
+    assertEquals("djfq2333xk", GeoHashEncoder.encode(33.449532, -86.822922));
+    assertEquals("dp0581b0bh", GeoHashEncoder.encode(40.0, -90.0));
+  }
+
+  public void testCorners() {
+    assertEquals("0000000000", GeoHashEncoder.encode(-90.0, -180.0));
+    assertEquals("zzzzzzzzzz", GeoHashEncoder.encode(90.0, 180.0));
+    assertEquals("s000000000", GeoHashEncoder.encode(0.0, 0.0));
+  }
+
+  public void testPrefixAndAxes() {
+    char[] buf = new char[5];
+    GeoHashEncoder.encode(32.757687, -117.143073, buf, 5);
+    assertEquals("9mudq", new String(buf));
+
+    long lat = GeoHashEncoder.latBits(32.757687, 12);
+    long lon = GeoHashEncoder.lonBits(-117.143073, 13);
+    assertEquals(GeoHashEncoder.bits(32.757687, -117.143073, 25),
+                 GeoHashEncoder.interleave(lon, lat, 25));
+  }
+
+}
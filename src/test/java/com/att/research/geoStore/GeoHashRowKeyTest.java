@@ -0,0 +1,73 @@
+package com.att.research.geoStore;
+
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import junit.framework.TestCase;
+
+public class GeoHashRowKeyTest extends TestCase {
+
+  public GeoHashRowKeyTest(String name) {
+    super(name);
+  }
+
+  public void testRoundTrip() {
+    GeoHashRowKey layout = new GeoHashRowKey(86400, 16);
+    long hash = GeoHashEncoder.fromBase32("9q5csxyz", 8);
+    byte[] tail = "31015000000000012".getBytes();
+    byte[] key = layout.encode(hash, 1410978000, tail, 0, tail.length);
+
+    assertEquals(layout.prefixLength() + tail.length, key.length);
+    assertEquals(hash, layout.getGeohash(key, 0));
+    assertEquals(1410978000, layout.getTs(key, 0));
+    assertEquals("31015000000000012", layout.getTail(key, 0, key.length));
+    assertEquals(layout.salt(tail, 0, tail.length), key[0]);
+
+    char[] buf = new char[8];
+    GeoHashEncoder.toBase32(layout.getGeohash(key, 0), 8, buf);
+    assertEquals("9q5csxyz", new String(buf));
+    assertEquals(-1, GeoHashEncoder.fromBase32("9q5a", 4));
+  }
+
+  public void testRangeKeys() {
+    GeoHashRowKey layout = new GeoHashRowKey(86400, 0);
+    byte[] tail = "31015000000000012".getBytes();
+    long hash = GeoHashEncoder.bits(34.0, -118.3, GeoHashRowKey.GEOHASH_BITS);
+    int ts = 1410978000;
+    byte[] key = layout.encode(hash, ts, tail, 0, tail.length);
+    int bucket = layout.bucket(ts);
+
+    assertTrue(Bytes.compareTo(layout.rangeKey(0, bucket, hash), key) <= 0);
+    assertTrue(Bytes.compareTo(layout.rangeKey(0, bucket, hash + 1), key) > 0);
+    assertTrue(Bytes.compareTo(layout.rangeKey(0, bucket, 1L << GeoHashRowKey.GEOHASH_BITS), key) > 0);
+    assertTrue(Bytes.compareTo(layout.rangeKey(0, bucket + 1, 0), key) > 0);
+    assertTrue(Bytes.compareTo(layout.rangeKey(0, bucket, 1L << GeoHashRowKey.GEOHASH_BITS),
+                               layout.rangeKey(0, bucket + 1, 0)) <= 0);
+  }
+
+  // Text and binary values of a locate give the same geohash, even next to a cell boundary
+  public void testGeohashOf() {
+    Random rand = new Random(42);
+    double cell = 180.0 / (1 << (GeoHashRowKey.GEOHASH_BITS / 2));
+    for (int i = 0; i < 200; i++) {
+      double lat = -90 + (rand.nextInt(1 << 19) + (1 << 18)) * cell + (rand.nextDouble() - 0.5) * 1e-7;
+      double lon = -180 + rand.nextDouble() * 360;
+      byte[] text = ("0|10|2|" + Double.toString(lat) + "|" + Double.toString(lon)).getBytes();
+      byte[] binary = CellValueCodec.encode(0, 10, 2, lat, lon);
+      long hash = GeoHashRowKey.geohashOf(text, 0, text.length, null);
+      assertTrue(hash >= 0);
+      assertEquals(hash, GeoHashRowKey.geohashOf(binary, 0, binary.length, null));
+    }
+
+    // Without a position, only the five characters the old key holds are used
+    byte[] none = "0|10|2||".getBytes();
+    long prefix = GeoHashEncoder.fromBase32("9q5cs", GeoHashRowKey.GEOHASH_BITS / 5);
+    assertEquals(prefix, GeoHashRowKey.geohashOf(none, 0, none.length, "9q5csxyz12"));
+    assertEquals(prefix, GeoHashRowKey.geohashOf(none, 0, none.length, "9q5cs"));
+    assertTrue(GeoHashRowKey.geohashOf(none, 0, none.length, null) < 0);
+    byte[] binary = CellValueCodec.encode(0, 10, 2, Double.NaN, Double.NaN);
+    assertEquals(prefix, GeoHashRowKey.geohashOf(binary, 0, binary.length, "9q5csxyz12"));
+  }
+
+}
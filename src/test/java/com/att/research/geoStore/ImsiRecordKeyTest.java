@@ -0,0 +1,66 @@
+package com.att.research.geoStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.WritableComparator;
+
+public class ImsiRecordKeyTest extends TestCase {
+
+  public ImsiRecordKeyTest(String name) {
+    super(name);
+  }
+
+  private byte[] serialize(ImsiRecordKey key) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    key.write(new DataOutputStream(bos));
+    return bos.toByteArray();
+  }
+
+  // Checks the sign of the object and raw comparisons agree
+  private int compareBoth(ImsiRecordKey a, ImsiRecordKey b) throws IOException {
+    byte[] ba = serialize(a);
+    byte[] bb = serialize(b);
+    int raw = WritableComparator.get(ImsiRecordKey.class).compare(ba, 0, ba.length, bb, 0, bb.length);
+    int obj = a.compareTo(b);
+    assertEquals(Integer.signum(obj), Integer.signum(raw));
+    return obj;
+  }
+
+  public void testParseTs() throws Exception {
+    byte[] b = "1410978802|0|106".getBytes();
+    assertEquals(1410978802L, ImsiRecordKey.parseTs(b, 0, b.length));
+    b = "|0|106".getBytes();
+    assertEquals(ImsiRecordKey.MISSING_TS, ImsiRecordKey.parseTs(b, 0, b.length));
+    b = "14x|0".getBytes();
+    assertEquals(ImsiRecordKey.MISSING_TS, ImsiRecordKey.parseTs(b, 0, b.length));
+  }
+
+  public void testOrdering() throws Exception {
+    ImsiRecordKey a = new ImsiRecordKey("310410707694319", "999999999|0|106");
+    ImsiRecordKey b = new ImsiRecordKey("310410707694319", "1410978802|0|106");
+    ImsiRecordKey c = new ImsiRecordKey("310410707694319", "1410978802|1|106");
+    ImsiRecordKey d = new ImsiRecordKey("310410707694318", "1410978802|1|106");
+    ImsiRecordKey e = new ImsiRecordKey("310410707694319", "|1|106");
+
+    // Numeric, rather than lexicographic, timestamp order
+    assertTrue(compareBoth(a, b) < 0);
+    assertTrue(compareBoth(b, c) < 0);
+    assertTrue(compareBoth(d, a) < 0);
+    assertTrue(compareBoth(e, a) < 0);
+    assertEquals(0, compareBoth(c, new ImsiRecordKey("310410707694319", "1410978802|1|106")));
+  }
+
+  public void testGrouping() throws Exception {
+    byte[] a = serialize(new ImsiRecordKey("310410707694319", "999999999|0|106"));
+    byte[] b = serialize(new ImsiRecordKey("310410707694319", "1410978802|0|106"));
+    byte[] c = serialize(new ImsiRecordKey("310410707694318", "1410978802|0|106"));
+    ImsiGroupingComparator g = new ImsiGroupingComparator();
+    assertEquals(0, g.compare(a, 0, a.length, b, 0, b.length));
+    assertTrue(g.compare(c, 0, c.length, b, 0, b.length) < 0);
+  }
+
+}
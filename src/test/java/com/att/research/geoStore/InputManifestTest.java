@@ -0,0 +1,42 @@
+package com.att.research.geoStore;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+import junit.framework.TestCase;
+
+public class InputManifestTest extends TestCase {
+
+  public InputManifestTest(String name) {
+    super(name);
+  }
+
+  private static FileStatus file(String path, long mtime, long len) {
+    return new FileStatus(len, false, 3, 128L << 20, mtime, new Path(path));
+  }
+
+  public void testHidden() {
+    assertTrue(InputManifest.hidden("_SUCCESS"));
+    assertTrue(InputManifest.hidden("_logs"));
+    assertTrue(InputManifest.hidden(".part-m-00000.crc"));
+    assertFalse(InputManifest.hidden("part-m-00000"));
+  }
+
+  public void testStamp() {
+    FileStatus[] before = new FileStatus[] {file("/raw/2014/09/17/00", 1000, 0),
+                                            file("/raw/2014/09/17/part-m-00000", 1000, 10)};
+    String stamp = InputManifest.stamp(before);
+    assertEquals(stamp, InputManifest.stamp(before.clone()));
+
+    // A subdirectory with a new file has a new modification time
+    assertFalse(stamp.equals(InputManifest.stamp(new FileStatus[] {
+        file("/raw/2014/09/17/00", 2000, 0), before[1]})));
+    // A rewritten file
+    assertFalse(stamp.equals(InputManifest.stamp(new FileStatus[] {
+        before[0], file("/raw/2014/09/17/part-m-00000", 1000, 11)})));
+    // A new file
+    assertFalse(stamp.equals(InputManifest.stamp(new FileStatus[] {
+        before[0], before[1], file("/raw/2014/09/17/part-m-00001", 1000, 10)})));
+  }
+
+}
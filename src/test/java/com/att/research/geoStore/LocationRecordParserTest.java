@@ -0,0 +1,111 @@
+package com.att.research.geoStore;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.Text;
+
+public class LocationRecordParserTest extends TestCase {
+
+  LocationRecordParser parser = null;
+
+  public LocationRecordParserTest(String name) {
+    super(name);
+  }
+
+  @Override
+  protected void setUp() {
+    parser = new LocationRecordParser();
+  }
+
+  // Parse with both constructors and check every field agrees
+  private void assertSameRecord(String line) {
+    LocationRecord expected = new LocationRecord(line);
+    LocationRecord actual = parser.parse(new Text(line), new LocationRecord());
+
+    assertEquals(expected.imsi, actual.imsi);
+    assertEquals(expected.imei, actual.imei);
+    assertEquals(expected.tnOrig, actual.tnOrig);
+    assertEquals(expected.tnTerm, actual.tnTerm);
+    assertEquals(expected.location, actual.location);
+    assertEquals(expected.geohash, actual.geohash);
+    assertEquals(expected.type, actual.type);
+    assertEquals(expected.seq, actual.seq);
+    assertEquals(expected.ts, actual.ts);
+    assertEquals(expected.dur, actual.dur);
+    assertEquals(expected.subtype, actual.subtype);
+    assertEquals(expected.cft, actual.cft);
+    assertEquals(expected.ct, actual.ct);
+    assertEquals(expected.acc, actual.acc);
+    assertEquals(expected.use, actual.use);
+    assertEquals(expected.vup, actual.vup);
+    assertEquals(expected.vdn, actual.vdn);
+    assertEquals(expected.lat, actual.lat);
+    assertEquals(expected.lon, actual.lon);
+    assertEquals(expected.parseCode, actual.parseCode);
+    assertEquals(expected.createRawRecord(), actual.createRawRecord());
+
+    CompactLocationRecord compact = parser.parse(new Text(line), new CompactLocationRecord());
+    assertEquals(expected.createImsiKey(), compact.createImsiKey());
+    assertEquals(expected.createRawRecord(), compact.createRawRecord());
+    assertEquals(expected.createFlatRecord(), compact.createFlatRecord());
+    assertEquals(expected.parseErrorOkay(), compact.parseErrorOkay());
+    assertEquals(expected.createRawRecord(),
+                 new CompactLocationRecord().set(expected).toLocationRecord().createRawRecord());
+  }
+
+  public void testGoodNelos() throws Exception {
+    assertSameRecord("310170681982862||||9mudq7752e|9mudq7752e|NELOS||1410929956||8|||200|0|||32.757687|-117.143073|FINISH_OKAY");
+  }
+
+  public void testGoodAWSV() throws Exception {
+    assertSameRecord("310410707694319|0138090014045303|12516892652|18889122731|0003G_TEST|dp3z4tdf3t|AWSV|0|1410978802|106|0|6|0|1000|0|||42.042345|-87.425352|FINISH_OKAY");
+  }
+
+  public void testNumericEdgeCases() throws Exception {
+    assertSameRecord("1|||||||-0|+12|2147483647|-2147483648|2147483648|00012|x|-|+|1e3|-0.0|1.0E-5|FINISH_OKAY");
+    assertSameRecord("1|||||||||||||||| 1|.5|5.|BAD_CODE");
+    assertSameRecord("1|||||||||||||||||NaN|-Infinity|");
+    assertSameRecord("1|||||||||||||||||0.1234567890123456789|123456789012345678901234|");
+  }
+
+  public void testNonAscii() throws Exception {
+    assertSameRecord("3104é|||||ü|AWSV|١٢||||||||||42.0|-87.0|FINISH_OKAY");
+  }
+
+  public void testBadLine() throws Exception {
+    assertSameRecord("");
+    assertSameRecord("a|b|c");
+    assertSameRecord("|||||||||||||||||||||");
+  }
+
+  public void testCompactNulls() throws Exception {
+    CompactLocationRecord lr = new CompactLocationRecord();
+    assertTrue(lr.isNull(CompactLocationRecord.TS));
+    assertTrue(lr.isNull(CompactLocationRecord.LAT));
+    assertEquals(LocationType.UNKNOWN, lr.getType());
+    assertEquals(ParseErrors.UNKNOWN_ERROR, lr.getParseCode());
+
+    lr.setInt(CompactLocationRecord.TS, 0);
+    lr.setLat(-0.0);
+    lr.setType(null);
+    assertFalse(lr.isNull(CompactLocationRecord.TS));
+    assertFalse(lr.isNull(CompactLocationRecord.LAT));
+    assertTrue(lr.isNull(CompactLocationRecord.LON));
+    assertEquals(null, lr.getType());
+
+    lr.reset();
+    assertTrue(lr.isNull(CompactLocationRecord.TS));
+    assertEquals(LocationType.UNKNOWN, lr.getType());
+  }
+
+  public void testReuse() throws Exception {
+    LocationRecord lr = new LocationRecord();
+    parser.parse(new Text("310410707694319||||0003G_TEST|dp3z4tdf3t|AWSV|0|1410978802|||||||||42.042345|-87.425352|FINISH_OKAY"), lr);
+    parser.parse(new Text("a|b|c"), lr);
+    assertEquals(null, lr.imsi);
+    assertEquals(null, lr.ts);
+    assertEquals(LocationType.UNKNOWN, lr.type);
+    assertEquals(ParseErrors.BAD_INPUT_LINE, lr.parseCode);
+  }
+
+}
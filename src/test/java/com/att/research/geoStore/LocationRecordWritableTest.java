@@ -0,0 +1,68 @@
+package com.att.research.geoStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.Text;
+
+public class LocationRecordWritableTest extends TestCase {
+
+  public LocationRecordWritableTest(String name) {
+    super(name);
+  }
+
+  private LocationRecordWritable roundTrip(LocationRecordWritable w) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    w.write(new DataOutputStream(bos));
+    LocationRecordWritable out = new LocationRecordWritable();
+    out.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    return out;
+  }
+
+  private void assertRoundTrip(String line) throws IOException {
+    CompactLocationRecord lr = new LocationRecordParser().parse(new Text(line),
+                                                                new CompactLocationRecord());
+    LocationRecordWritable w = roundTrip(new LocationRecordWritable(lr));
+    assertEquals(lr.createImsiKey(), w.get().createImsiKey());
+    assertEquals(lr.createRawRecord(), w.get().createRawRecord());
+    assertEquals(line, w.toString());
+  }
+
+  public void testRoundTrip() throws Exception {
+    assertRoundTrip("310410707694319|0138090014045303|12516892652|18889122731|0003G_TEST|dp3z4tdf3t|AWSV|0|1410978802|106|0|6|0|1000|0|||42.042345|-87.425352|FINISH_OKAY");
+    assertRoundTrip("310170681982862||||9mudq7752e|9mudq7752e|NELOS||1410929956||8|||200|-1|||-0.0|-117.143073|FINISH_OKAY");
+  }
+
+  public void testRoundTripNulls() throws Exception {
+    LocationRecordWritable w = roundTrip(new LocationRecordWritable());
+    assertEquals(null, w.get().imsi);
+    assertTrue(w.get().isNull(CompactLocationRecord.TS));
+    assertEquals(LocationType.UNKNOWN, w.get().getType());
+    assertEquals(ParseErrors.UNKNOWN_ERROR, w.get().getParseCode());
+
+    CompactLocationRecord lr = new CompactLocationRecord();
+    lr.setType(null);
+    lr.setParseCode(null);
+    w = roundTrip(new LocationRecordWritable(lr));
+    assertEquals(null, w.get().getType());
+    assertEquals(null, w.get().getParseCode());
+  }
+
+  public void testOrdering() throws Exception {
+    CompactLocationRecord a = new CompactLocationRecord();
+    CompactLocationRecord b = new CompactLocationRecord();
+    a.imsi = "310410707694319";
+    b.imsi = "310410707694319";
+    a.setInt(CompactLocationRecord.TS, 99);
+    b.setInt(CompactLocationRecord.TS, 100);
+    assertTrue(new LocationRecordWritable(a).compareTo(new LocationRecordWritable(b)) < 0);
+    b.imsi = "310410707694318";
+    assertTrue(new LocationRecordWritable(a).compareTo(new LocationRecordWritable(b)) > 0);
+  }
+
+}
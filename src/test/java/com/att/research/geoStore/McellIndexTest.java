@@ -0,0 +1,116 @@
+package com.att.research.geoStore;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+public class McellIndexTest extends TestCase {
+
+  Hashtable<String, String[]> laccid_meta = null;
+
+  public McellIndexTest(String name) {
+    super(name);
+  }
+
+  // Same cells as the LocationMultiRecord tests, plus some awkward rows
+  @Override
+  protected void setUp() {
+    laccid_meta = new Hashtable<String, String[]>();
+    laccid_meta.put("0003G_TEST", new String[] {"42.042345", "-87.425352", "dp3z4tdf3t"});
+    laccid_meta.put("004G_TEST", new String[] {"42.042345", "-87.425352", "dp3z4tdf3t"});
+    laccid_meta.put("005G_TEST", new String[] {"40.00000", "-90.0000000", "dppppppppp"});
+    laccid_meta.put("BAD_ROW", new String[] {"", "x", null});
+    laccid_meta.put("café", new String[] {"1.5", "2.5", "s00000000"});
+    laccid_meta.put("NO_GEOHASH", new String[] {"32.757687", "-117.143073", null});
+  }
+
+  private McellIndex build() throws Exception {
+    return build(0);
+  }
+
+  private McellIndex build(int cacheSize) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    McellIndex.write(laccid_meta, out);
+    return new McellIndex(ByteBuffer.wrap(out.toByteArray()), cacheSize);
+  }
+
+  public void testLookup() throws Exception {
+    McellIndex index = build();
+    assertEquals(6, index.size());
+    for (String key : laccid_meta.keySet()) {
+      int i = index.find(key);
+      assertTrue(key, i >= 0);
+      assertEquals(key, index.getKey(i));
+    }
+    assertEquals(-1, index.find("003G_TEST"));
+    assertEquals(-1, index.find(""));
+    assertEquals(-1, index.find("caf"));
+
+    int i = index.find("005G_TEST");
+    assertEquals(40.0, index.getLat(i));
+    assertEquals(-90.0, index.getLon(i));
+    assertEquals("dppppppppp", index.getGeohash(i));
+    assertEquals("9mudq7752e", index.getGeohash(index.find("NO_GEOHASH")));
+  }
+
+  public void testLookupByKey() throws Exception {
+    McellLookup[] lookups = {build(), build(2), new HashtableMcellLookup(laccid_meta)};
+    for (McellLookup lookup : lookups) {
+      for (String key : laccid_meta.keySet()) {
+        assertTrue(key, lookup.contains(key));
+        String[] expected = laccid_meta.get(key);
+        if (key.equals("BAD_ROW")) {
+          assertTrue(Double.isNaN(lookup.getLat(key)));
+          assertTrue(Double.isNaN(lookup.getLon(key)));
+          assertNull(lookup.getGeohash(key));
+          continue;
+        }
+        assertEquals(Double.parseDouble(expected[0]), lookup.getLat(key));
+        assertEquals(Double.parseDouble(expected[1]), lookup.getLon(key));
+        if (expected[2] != null) assertEquals(expected[2], lookup.getGeohash(key));
+      }
+      assertFalse(lookup.contains("MISSING"));
+      assertFalse(lookup.contains("MISSING"));
+      assertFalse(lookup.contains(null));
+      assertTrue(Double.isNaN(lookup.getLat("MISSING")));
+      assertNull(lookup.getGeohash("MISSING"));
+    }
+  }
+
+  public void testTableView() throws Exception {
+    McellLookupTable table = new McellLookupTable(build(), 2);
+    assertEquals(laccid_meta.size(), table.size());
+    for (String key : laccid_meta.keySet()) {
+      String[] expected = laccid_meta.get(key);
+      String[] row = table.get(key);
+      assertTrue(table.containsKey(key));
+      if (key.equals("BAD_ROW")) {
+        assertNull(row[0]);
+        assertNull(row[1]);
+        assertNull(row[2]);
+        continue;
+      }
+      assertEquals(Double.parseDouble(expected[0]), Double.parseDouble(row[0]));
+      assertEquals(Double.parseDouble(expected[1]), Double.parseDouble(row[1]));
+      if (expected[2] != null) assertEquals(expected[2], row[2]);
+    }
+    assertSame(table.get("005G_TEST"), table.get("005G_TEST"));
+    assertNull(table.get("MISSING"));
+    assertFalse(table.containsKey("MISSING"));
+
+    // Listing or changing the table fails rather than seeing it empty
+    try {
+      table.entrySet();
+      fail();
+    } catch (UnsupportedOperationException e) {
+    }
+    try {
+      table.put("NEW", new String[3]);
+      fail();
+    } catch (UnsupportedOperationException e) {
+    }
+  }
+
+}
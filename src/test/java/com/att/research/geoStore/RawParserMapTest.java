@@ -0,0 +1,66 @@
+package com.att.research.geoStore;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import junit.framework.TestCase;
+
+public class RawParserMapTest extends TestCase {
+
+  static final String NELOS = "2014-09-17@04:59:16.610|1|310170681982862|-117.143073|32.757687|0|8|4";
+  static final String AWSV = "2014-09-17@18:33:24|12516892652||18889122731||104s|14047259676||6|50331648|2101266|18038595||||[]|[]|0138090014045303|[0003G_TEST]|707694319|2|17||[251281]|[3]|[]|[306]|[12]||62|[]|[1633]|17805|2769|2679|22||||[106]|";
+  static final String CLOSENUPH = "90118545639148,4G_TEST,38.975723,-76.485779,mnd,alu,9,1410832836,20140916-020036,12162625084,01343000:488375:12162625084,dcac96c2";
+  static final String WIFI = "310410662778249|0133330027401707|fxo1540.atl|1411141821|1933|33.449532|-86.822922|djfq2333xk|1455|1300|5083431234";
+
+  static final String FEEDS = "AWSV=/projects/datalake/scamp3/wireless/AWSV/2014/09/17," +
+                              "AWSD=/projects/datalake/scamp3/wireless/AWSD/2014/09/17," +
+                              "CLOSENUPH=/projects/datalake/closenuph/2014/09/17";
+
+  public RawParserMapTest(String name) {
+    super(name);
+  }
+
+  private static InputSplit split(String path) {
+    return new FileSplit(new Path(path), 0, 1024, new String[0]);
+  }
+
+  public void testFindFeed() {
+    assertEquals(LocationType.AWSV,
+                 RawParserMap.findFeed(FEEDS, split("/projects/datalake/scamp3/wireless/AWSV/2014/09/17/part-00000")));
+    assertEquals(LocationType.CLOSENUPH,
+                 RawParserMap.findFeed(FEEDS, split("hdfs://namenode:8020/projects/datalake/closenuph/2014/09/17/x/y.gz")));
+
+    // A root only matches whole path components
+    assertNull(RawParserMap.findFeed(FEEDS, split("/projects/datalake/scamp3/wireless/AWSV/2014/09/170/part-00000")));
+    assertNull(RawParserMap.findFeed(FEEDS, split("/projects/datalake/nelos2/locations/2014/09/17/part-00000")));
+    assertNull(RawParserMap.findFeed("", split("/projects/datalake/closenuph/2014/09/17/part-00000")));
+  }
+
+  public void testFeedShape() {
+    assertTrue(RawParserMap.hasFeedShape(LocationType.NELOS, new Text(NELOS)));
+    assertTrue(RawParserMap.hasFeedShape(LocationType.AWSV, new Text(AWSV)));
+    assertTrue(RawParserMap.hasFeedShape(LocationType.CLOSENUPH, new Text(CLOSENUPH)));
+    assertTrue(RawParserMap.hasFeedShape(LocationType.WIFI, new Text(WIFI)));
+
+    // Wrong delimiter, or no leading timestamp where one is expected
+    assertFalse(RawParserMap.hasFeedShape(LocationType.CLOSENUPH, new Text(NELOS)));
+    assertFalse(RawParserMap.hasFeedShape(LocationType.WIFI, new Text(CLOSENUPH)));
+    assertFalse(RawParserMap.hasFeedShape(LocationType.AWSV, new Text(WIFI)));
+    assertFalse(RawParserMap.hasFeedShape(LocationType.NELOS, new Text("2014-09-17 04:59:16|1|310170681982862")));
+    assertFalse(RawParserMap.hasFeedShape(LocationType.AWSD, new Text("[0003G_TEST]")));
+    assertFalse(RawParserMap.hasFeedShape(LocationType.SMSD, new Text("")));
+
+    // Lines of an untagged split are left to LocationMultiRecord
+    assertTrue(RawParserMap.hasFeedShape(null, new Text("garbage")));
+  }
+
+  public void testReusedText() {
+    // Only the current contents of a reused Text count, not the rest of its buffer
+    Text value = new Text(AWSV);
+    value.set("2014-09-17@18:33:24");
+    assertFalse(RawParserMap.hasFeedShape(LocationType.AWSV, value));
+  }
+
+}
@@ -0,0 +1,71 @@
+package com.att.research.geoStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SkewPartitionerTest extends TestCase {
+
+  List<ImsiRecordKey> keys = null;
+
+  public SkewPartitionerTest(String name) {
+    super(name);
+  }
+
+  // One entity with half of the records, spread over an hour, and many light ones;
+  // the digits of the light ones vary at the front, so that their hashes are far apart
+  @Override
+  protected void setUp() {
+    keys = new ArrayList<ImsiRecordKey>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add(new ImsiRecordKey("310150000000000", Integer.toString(1410978000 + 3 * i) + "|0|106"));
+      String imsi = new StringBuilder(Integer.toString(310150000 + i)).reverse().toString();
+      keys.add(new ImsiRecordKey(imsi, "1410978000|0|106"));
+    }
+  }
+
+  public void testPlan() {
+    String[] entries = SkewPartitioner.plan(keys, 10, 0.5f);
+    assertEquals(1, entries.length);
+    String[] vals = entries[0].split("\\|");
+    assertEquals("310150000000000", vals[0]);
+    assertEquals(10, vals.length);
+    for (int i = 2; i < vals.length; i++) {
+      assertTrue(Long.parseLong(vals[i]) > Long.parseLong(vals[i - 1]));
+    }
+
+    assertEquals(0, SkewPartitioner.plan(keys, 1, 0.5f).length);
+    assertEquals(0, SkewPartitioner.plan(new ArrayList<ImsiRecordKey>(), 10, 0.5f).length);
+  }
+
+  public void testPartition() {
+    SkewPartitioner p = new SkewPartitioner();
+    p.load(SkewPartitioner.plan(keys, 10, 0.5f));
+
+    int[] counts = new int[10];
+    for (ImsiRecordKey k : keys) {
+      int part = p.getPartition(k, null, 10);
+      if (!k.getImsi().toString().equals("310150000000000")) {
+        assertEquals(((k.getImsi().hashCode() & Integer.MAX_VALUE) / 5843) % 10, part);
+      }
+      assertEquals(part, p.getPartition(new ImsiRecordKey(k.getImsi().toString(),
+                                                          k.getRecord().toString()), null, 10));
+      counts[part]++;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      assertTrue(Integer.toString(counts[i]), counts[i] < 400);
+    }
+
+    // Partitions follow the time order of the heavy entity's records
+    int prev = p.getPartition(new ImsiRecordKey("310150000000000", "0|0|106"), null, 10);
+    int changes = 0;
+    for (int i = 0; i < 1000; i++) {
+      int part = p.getPartition(keys.get(2 * i), null, 10);
+      if (part != prev) changes++;
+      prev = part;
+    }
+    assertEquals(9, changes);
+  }
+
+}
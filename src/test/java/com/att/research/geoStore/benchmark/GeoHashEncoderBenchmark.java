@@ -0,0 +1,69 @@
+package com.att.research.geoStore.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import com.att.research.geoStore.GeoHashEncoder;
+
+import ch.hsr.geohash.GeoHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH comparison of ten character geohash encoding with the
+ * ch.hsr.geohash library against GeoHashEncoder, both into a new String
+ * and into a reused buffer.
+ *
+ * @author Taylor Arnold
+ * @see GeoHashEncoder
+ * @since 0.9
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GeoHashEncoderBenchmark {
+
+  private static final double[][] POINTS = new double[][] {
+    {32.757687, -117.143073},
+    {42.042345, -87.425352},
+    {33.449532, -86.822922},
+    {40.712776, -74.005974}
+  };
+
+  private char[] buf;
+  private int i;
+
+  @Setup
+  public void setup() {
+    buf = new char[GeoHashEncoder.LENGTH];
+  }
+
+  private double[] next() {
+    i = (i + 1) % POINTS.length;
+    return POINTS[i];
+  }
+
+  @Benchmark
+  public String library() {
+    double[] p = next();
+    return GeoHash.withCharacterPrecision(p[0], p[1], GeoHashEncoder.LENGTH).toBase32();
+  }
+
+  @Benchmark
+  public String encoder() {
+    double[] p = next();
+    return GeoHashEncoder.encode(p[0], p[1]);
+  }
+
+  @Benchmark
+  public char[] encoderBuffer() {
+    double[] p = next();
+    GeoHashEncoder.encode(p[0], p[1], buf, GeoHashEncoder.LENGTH);
+    return buf;
+  }
+
+}
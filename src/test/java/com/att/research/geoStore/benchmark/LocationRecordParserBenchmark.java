@@ -0,0 +1,82 @@
+package com.att.research.geoStore.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import com.att.research.geoStore.CompactLocationRecord;
+import com.att.research.geoStore.LocationRecord;
+import com.att.research.geoStore.LocationRecordParser;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH comparison of the String constructor of LocationRecord, as
+ * previously called once per line by the mappers, against the byte
+ * slice parser in LocationRecordParser.
+ *
+ * @author Taylor Arnold
+ * @see LocationRecordParser
+ * @since 0.9
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LocationRecordParserBenchmark {
+
+  private static final String[] LINES = new String[] {
+    "310410707694319|0138090014045303|12516892652|18889122731|0003G_TEST|dp3z4tdf3t|AWSV|0|1410978802|106|0|6|0|1000|0|||42.042345|-87.425352|FINISH_OKAY",
+    "310170681982862||||9mudq7752e|9mudq7752e|NELOS||1410929956||8|||200|0|||32.757687|-117.143073|FINISH_OKAY",
+    "310410577326172|0133320045322207|13134607191|14043142975|0003G_TEST|dp3z4tdf3t|SMSD||1410946926||1|0|4|1000|0|||42.042345|-87.425352|FINISH_OKAY",
+    "310410662778249|0133330027401707|5083431234||fxo1540.atl|djfq2333xk|WIFI||1411141821|1933||||||1455|1300|33.449532|-86.822922|FINISH_OKAY"
+  };
+
+  private Text[] text;
+  private String[] strings;
+  private LocationRecordParser parser;
+  private LocationRecord lr;
+  private CompactLocationRecord clr;
+  private int i;
+
+  @Setup
+  public void setup() {
+    text = new Text[LINES.length];
+    strings = new String[LINES.length];
+    for (int j = 0; j < LINES.length; j++) {
+      text[j] = new Text(LINES[j]);
+      strings[j] = LINES[j];
+    }
+    parser = new LocationRecordParser();
+    lr = new LocationRecord();
+    clr = new CompactLocationRecord();
+  }
+
+  private int next() {
+    i = (i + 1) % LINES.length;
+    return i;
+  }
+
+  /** the previous code path: Text to String, then a regex split */
+  @Benchmark
+  public LocationRecord stringConstructor() {
+    return new LocationRecord(text[next()].toString());
+  }
+
+  /** single pass over the Text backing array into a reused record */
+  @Benchmark
+  public LocationRecord byteSliceParser() {
+    return parser.parse(text[next()], lr);
+  }
+
+  /** single pass into a reused primitive record; no boxing */
+  @Benchmark
+  public CompactLocationRecord byteSliceParserCompact() {
+    return parser.parse(text[next()], clr);
+  }
+
+}
@@ -0,0 +1,96 @@
+package com.att.research.geoStore.client;
+
+import com.att.research.geoStore.GeoHashEncoder;
+import com.att.research.geoStore.GeoHashRowKey;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import junit.framework.TestCase;
+
+public class GeoHashBoxTest extends TestCase {
+
+  // Roughly the Los Angeles basin
+  static final double LAT0 = 33.70;
+  static final double LAT1 = 34.30;
+  static final double LON0 = -118.70;
+  static final double LON1 = -118.00;
+
+  public GeoHashBoxTest(String name) {
+    super(name);
+  }
+
+  public void testPlanMatchesBox() throws Exception {
+    String[] box = GeoHashBox.getBox(1410000000, 1410086400, LAT0, LAT1, LON0, LON1);
+    int n = box.length / 2;
+    GeoHashBox.ScanPlan plan = GeoHashBox.planBox(1410000000, 1410086400, LAT0, LAT1, LON0, LON1, n);
+    assertEquals(n, plan.size());
+    assertEquals(n, plan.getBoxCells());
+    assertEquals(0, plan.getOverScanCells());
+    assertEquals(0.0, plan.getOverScanRatio());
+
+    String[] starts = Arrays.copyOfRange(box, 0, n);
+    Arrays.sort(starts);
+    assertTrue(Arrays.equals(starts, plan.getStartKeys()));
+  }
+
+  public void testCoalesce() throws Exception {
+    GeoHashBox.ScanPlan all = GeoHashBox.planBox(1410000000, 1410086400, LAT0, LAT1, LON0, LON1, 1000);
+    int n = all.size();
+    assertTrue(n > 8);
+
+    GeoHashBox.ScanPlan eight = GeoHashBox.planBox(1410000000, 1410086400, LAT0, LAT1, LON0, LON1, 8);
+    GeoHashBox.ScanPlan one = GeoHashBox.planBox(1410000000, 1410086400, LAT0, LAT1, LON0, LON1, 1);
+    assertEquals(8, eight.size());
+    assertEquals(1, one.size());
+    assertTrue(eight.getOverScanRatio() <= one.getOverScanRatio());
+    assertTrue(eight.getOverScanCells() <= one.getOverScanCells());
+    assertTrue(one.getOverScanKm2() > 0);
+
+    // Every cell of the box falls inside one of the ranges
+    String[] keys = all.getStartKeys();
+    for (int i = 0; i < n; i++) {
+      boolean covered = false;
+      for (int j = 0; j < eight.size(); j++) {
+        if (keys[i].compareTo(eight.getStartKeys()[j]) >= 0 &&
+            keys[i].compareTo(eight.getEndKeys()[j]) < 0) covered = true;
+      }
+      assertTrue(keys[i], covered);
+    }
+    assertEquals(all.getStartKeys()[0], one.getStartKeys()[0]);
+    assertEquals(all.getEndKeys()[n - 1], one.getEndKeys()[0]);
+  }
+
+  public void testBucketedCover() {
+    GeoHashRowKey layout = new GeoHashRowKey(86400, 4);
+    int ts0 = 1410000000;
+    int ts1 = ts0 + 2 * 86400;
+    byte[][] keys = GeoHashBox.planBucketedBox(layout, ts0, ts1, LAT0, LAT1, LON0, LON1, 8);
+    int n = keys.length / 2;
+    assertTrue(n <= 8 * 4 * 3);
+    for (int i = 0; i + 1 < n; i++) assertTrue(Bytes.compareTo(keys[i + n], keys[i + 1]) <= 0);
+
+    // Every locate in the box and time range falls inside one of the ranges
+    Random rng = new Random(7);
+    for (int k = 0; k < 1000; k++) {
+      double lat = LAT0 + (LAT1 - LAT0) * rng.nextDouble();
+      double lon = LON0 + (LON1 - LON0) * rng.nextDouble();
+      int ts = ts0 + rng.nextInt(ts1 - ts0 + 1);
+      byte[] tail = Integer.toString(310150000 + k).getBytes();
+      byte[] key = layout.encode(GeoHashEncoder.bits(lat, lon, GeoHashRowKey.GEOHASH_BITS), ts,
+                                 tail, 0, tail.length);
+      boolean covered = false;
+      for (int i = 0; i < n; i++) {
+        if (Bytes.compareTo(keys[i], key) <= 0 && Bytes.compareTo(key, keys[i + n]) < 0) covered = true;
+      }
+      assertTrue(lat + "," + lon, covered);
+    }
+
+    // More scans allowed gives finer ranges
+    assertTrue(GeoHashBox.planBucketedBox(layout, ts0, ts1, LAT0, LAT1, LON0, LON1, 64).length > keys.length);
+    assertEquals(2 * 4 * 3, GeoHashBox.planBucketedBox(layout, ts0, ts1, LAT0, LAT1, LON0, LON1, 1).length);
+  }
+
+}
@@ -0,0 +1,227 @@
+package com.att.research.geoStore.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.hbase.client.Result;
+
+import junit.framework.TestCase;
+
+public class ParallelScansTest extends TestCase {
+
+  ExecutorService caller = null;
+
+  public ParallelScansTest(String name) {
+    super(name);
+  }
+
+  @Override
+  protected void setUp() {
+    caller = Executors.newSingleThreadExecutor();
+  }
+
+  @Override
+  protected void tearDown() {
+    caller.shutdownNow();
+  }
+
+  // Returns the rows it is given, then fails if given an error, pausing before each batch
+  static class ListSource extends ParallelScans.Source {
+
+    final List<Result> rows = new ArrayList<Result>();
+    final long pauseMillis;
+    final Exception error;
+    final CountDownLatch closed = new CountDownLatch(1);
+    int pos = 0;
+
+    ListSource(int nrows, long pauseMillis_in, Exception error_in) {
+      for (int i = 0; i < nrows; i++) rows.add(new Result());
+      pauseMillis = pauseMillis_in;
+      error = error_in;
+    }
+
+    void open() {
+    }
+
+    Result[] next(int n) throws IOException {
+      try {
+        Thread.sleep(pauseMillis);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted");
+      }
+      if (pos >= rows.size()) {
+        if (error instanceof IOException) throw (IOException) error;
+        if (error != null) throw (RuntimeException) error;
+        return new Result[0];
+      }
+      int end = Math.min(rows.size(), pos + n);
+      Result[] batch = rows.subList(pos, end).toArray(new Result[end - pos]);
+      pos = end;
+      return batch;
+    }
+
+    void close() {
+      closed.countDown();
+    }
+  }
+
+  // Never runs out of rows
+  static class EndlessSource extends ListSource {
+
+    EndlessSource() {
+      super(0, 0, null);
+    }
+
+    Result[] next(int n) {
+      Result[] batch = new Result[n];
+      for (int i = 0; i < n; i++) batch[i] = new Result();
+      return batch;
+    }
+  }
+
+  // A call of next which blocks fails the test rather than hanging it
+  Result[] next(final ParallelScans ps, final int n) throws Exception {
+    try {
+      return caller.submit(new Callable<Result[]>() {
+        public Result[] call() throws IOException {
+          return ps.next(n);
+        }
+      }).get(10, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      fail("next blocked");
+      return null;
+    } catch (ExecutionException e) {
+      throw (Exception) e.getCause();
+    }
+  }
+
+  List<Result> readAll(ParallelScans ps, int n) throws Exception {
+    List<Result> res = new ArrayList<Result>();
+    Result[] batch;
+    while ((batch = next(ps, n)) != null) {
+      assertTrue(batch.length <= n);
+      res.addAll(Arrays.asList(batch));
+    }
+    return res;
+  }
+
+  // The first scan is the slowest, so that its rows arrive last
+  List<ListSource> sources() {
+    List<ListSource> sources = new ArrayList<ListSource>();
+    sources.add(new ListSource(2500, 20, null));
+    sources.add(new ListSource(1200, 5, null));
+    sources.add(new ListSource(0, 0, null));
+    sources.add(new ListSource(700, 0, null));
+    return sources;
+  }
+
+  public void testOrdered() throws Exception {
+    List<ListSource> sources = sources();
+    List<Result> expected = new ArrayList<Result>();
+    for (ListSource s : sources) expected.addAll(s.rows);
+
+    ParallelScans ps = new ParallelScans(sources, 3, true);
+    List<Result> res = readAll(ps, 333);
+    assertEquals(expected.size(), res.size());
+    for (int i = 0; i < res.size(); i++) assertSame(expected.get(i), res.get(i));
+    assertNull(next(ps, 333));
+    for (ListSource s : sources) assertTrue(s.closed.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testUnordered() throws Exception {
+    List<ListSource> sources = sources();
+    Map<Result, Integer> owner = new IdentityHashMap<Result, Integer>();
+    Map<Result, Integer> index = new IdentityHashMap<Result, Integer>();
+    for (int k = 0; k < sources.size(); k++) {
+      List<Result> rows = sources.get(k).rows;
+      for (int i = 0; i < rows.size(); i++) {
+        owner.put(rows.get(i), k);
+        index.put(rows.get(i), i);
+      }
+    }
+
+    ParallelScans ps = new ParallelScans(sources, 2, false);
+    List<Result> res = readAll(ps, 1000);
+    assertEquals(index.size(), res.size());
+
+    // Every row comes once, and the rows of each scan in their order
+    int[] last = new int[sources.size()];
+    Arrays.fill(last, -1);
+    Map<Result, Boolean> seen = new IdentityHashMap<Result, Boolean>();
+    for (Result r : res) {
+      assertNull(seen.put(r, Boolean.TRUE));
+      int k = owner.get(r);
+      assertEquals(last[k] + 1, index.get(r).intValue());
+      last[k]++;
+    }
+  }
+
+  public void testError() throws Exception {
+    IOException broken = new IOException("region server gone");
+    List<ListSource> sources = new ArrayList<ListSource>();
+    sources.add(new ListSource(1500, 0, null));
+    sources.add(new ListSource(10, 0, broken));
+    sources.add(new EndlessSource());
+
+    ParallelScans ps = new ParallelScans(sources, 3, true);
+    int nrows = 0;
+    try {
+      while (true) nrows += next(ps, 100).length;
+    } catch (IOException e) {
+      assertSame(broken, e);
+    }
+    assertEquals(1510, nrows);
+
+    // The error is thrown again rather than waiting on the closed scans
+    try {
+      next(ps, 100);
+      fail("next should throw once a scan has failed");
+    } catch (IOException e) {
+      assertSame(broken, e);
+    }
+    assertTrue(sources.get(2).closed.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testRuntimeError() throws Exception {
+    IllegalStateException broken = new IllegalStateException("bad filter");
+    List<ListSource> sources = new ArrayList<ListSource>();
+    sources.add(new ListSource(0, 0, broken));
+
+    ParallelScans ps = new ParallelScans(sources, 1, false);
+    try {
+      next(ps, 100);
+      fail("next should throw when a scan fails");
+    } catch (IOException e) {
+      assertSame(broken, e.getCause());
+    }
+  }
+
+  public void testClose() throws Exception {
+    List<ListSource> sources = new ArrayList<ListSource>();
+    sources.add(new EndlessSource());
+    sources.add(new EndlessSource());
+
+    ParallelScans ps = new ParallelScans(sources, 2, false);
+    assertEquals(100, next(ps, 100).length);
+    ps.close();
+    try {
+      next(ps, 100);
+      fail("next should throw once closed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("closed"));
+    }
+    for (ListSource s : sources) assertTrue(s.closed.await(10, TimeUnit.SECONDS));
+  }
+
+}
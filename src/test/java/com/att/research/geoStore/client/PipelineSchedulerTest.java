@@ -0,0 +1,143 @@
+package com.att.research.geoStore.client;
+
+import com.att.research.geoStore.MapRedJob;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+
+public class PipelineSchedulerTest extends TestCase {
+
+  List<String> log = null;
+  PipelineScheduler sched = null;
+
+  public PipelineSchedulerTest(String name) {
+    super(name);
+  }
+
+  @Override
+  protected void setUp() {
+    log = Collections.synchronizedList(new ArrayList<String>());
+    Configuration c = new Configuration(false);
+    c.setInt(PipelineScheduler.CONCURRENCY_KEY, 2);
+    c.setInt(PipelineScheduler.POLL_KEY, 1);
+    sched = new PipelineScheduler(c, new PipelineScheduler.Listener() {
+      public void started(PipelineScheduler.Step step) {
+        log.add("start " + step.getName());
+      }
+      public void finished(PipelineScheduler.Step step) {
+        log.add("end " + step.getName());
+      }
+      public void failed(PipelineScheduler.Step step, Throwable cause) {
+        log.add("fail " + step.getName() + " " + cause.getMessage());
+      }
+    });
+  }
+
+  // Does its work in submit, as a job with nothing to do does
+  static class StubJob extends MapRedJob {
+
+    final String name;
+    final List<String> log;
+    final boolean broken;
+
+    StubJob(String name_in, List<String> log_in, boolean broken_in) {
+      name = name_in;
+      log = log_in;
+      broken = broken_in;
+    }
+
+    @Override
+    public boolean submit() throws IOException {
+      if (broken) throw new IOException(name + " broke");
+      log.add("run " + name);
+      return false;
+    }
+  }
+
+  PipelineScheduler.JobFactory job(final String name, final boolean broken) {
+    return new PipelineScheduler.JobFactory() {
+      public MapRedJob create() {
+        return new StubJob(name, log, broken);
+      }
+    };
+  }
+
+  Callable<Void> action(final String name, final boolean broken) {
+    return new Callable<Void>() {
+      public Void call() throws Exception {
+        if (broken) throw new IOException(name + " broke");
+        log.add("run " + name);
+        return null;
+      }
+    };
+  }
+
+  void assertBefore(String first, String second) {
+    int i = log.indexOf(first);
+    int j = log.indexOf(second);
+    assertTrue(first + " in " + log, i >= 0);
+    assertTrue(second + " in " + log, j >= 0);
+    assertTrue(first + " before " + second + " in " + log, i < j);
+  }
+
+  public void testOrder() throws Exception {
+    PipelineScheduler.Step a = sched.addJob("a", job("a", false));
+    PipelineScheduler.Step b = sched.addAction("b", action("b", false), a);
+    PipelineScheduler.Step c = sched.addJob("c", job("c", false), b);
+    PipelineScheduler.Step d = sched.addAction("d", action("d", false), a, c);
+    PipelineScheduler.Step e = sched.addAction("e", action("e", false));
+    sched.run();
+
+    assertBefore("end a", "start b");
+    assertBefore("run b", "end b");
+    assertBefore("end b", "start c");
+    assertBefore("end c", "start d");
+    assertBefore("run d", "end d");
+    assertTrue(log.contains("run e"));
+    for (PipelineScheduler.Step s : new PipelineScheduler.Step[] {a, b, c, d, e}) {
+      assertTrue(s.getName(), s.succeeded());
+      assertNull(s.getFailure());
+    }
+  }
+
+  public void testFailure() throws Exception {
+    PipelineScheduler.Step a = sched.addJob("a", job("a", true));
+    PipelineScheduler.Step b = sched.addAction("b", action("b", false), a);
+    PipelineScheduler.Step c = sched.addJob("c", job("c", false), b);
+    PipelineScheduler.Step d = sched.addAction("d", action("d", true));
+    PipelineScheduler.Step e = sched.addJob("e", job("e", false), d);
+    PipelineScheduler.Step f = sched.addAction("f", action("f", false));
+    try {
+      sched.run();
+      fail("run should throw");
+    } catch (IOException ex) {
+      String msg = ex.getMessage();
+      assertTrue(msg, msg.contains("a (failed)"));
+      assertTrue(msg, msg.contains("b (skipped)"));
+      assertTrue(msg, msg.contains("c (skipped)"));
+      assertTrue(msg, msg.contains("d (failed)"));
+      assertTrue(msg, msg.contains("e (skipped)"));
+      assertFalse(msg, msg.contains("f ("));
+      assertEquals("a broke", ex.getCause().getMessage());
+    }
+
+    assertTrue(log.contains("fail a a broke"));
+    assertTrue(log.contains("fail d d broke"));
+    assertEquals("d broke", d.getFailure().getMessage());
+    assertFalse(b.succeeded());
+    assertNull(b.getFailure());
+    for (String name : new String[] {"b", "c", "e"}) {
+      assertFalse(log.toString(), log.contains("start " + name));
+    }
+    assertTrue(f.succeeded());
+    assertTrue(log.contains("run f"));
+  }
+
+}